@@ -0,0 +1,130 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import android.Manifest;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Load time benchmark, on the MediaStore of the device - LibraryScanner.scan(), which resolves
+ * the album art with one batched Albums query, compared to the previous load, which ran
+ * an Albums query for every track (1 + N queries).
+ *
+ * Both loads are run a few times, alternately, and the fastest run of each is logged
+ * (tag "LibraryScanBenchmark"). The app needs the storage permission, e.g.
+ * adb shell pm grant com.daniel.awesomemusicplayer android.permission.READ_EXTERNAL_STORAGE
+ */
+@RunWith(AndroidJUnit4.class)
+public class LibraryScanBenchmark {
+
+    /** Log tag */
+    private static final String LOG_TAG = "LibraryScanBenchmark";
+
+    private static final int RUNS = 3;
+
+    private ContentResolver contentResolver;
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        assumeTrue("The storage permission isn't granted",
+                context.checkSelfPermission(Manifest.permission.READ_EXTERNAL_STORAGE)
+                        == PackageManager.PERMISSION_GRANTED);
+        contentResolver = context.getContentResolver();
+    }
+
+    @Test
+    public void loadTime() {
+        long legacyMillis = Long.MAX_VALUE;
+        long scanMillis = Long.MAX_VALUE;
+        Map<Long, String> legacyArt = new HashMap<>();
+        final Map<Long, String> scannedArt = new HashMap<>();
+
+        for (int run = 0; run < RUNS; run++) {
+            legacyArt.clear();
+            long startTime = SystemClock.elapsedRealtime();
+            legacyLoad(legacyArt);
+            legacyMillis = Math.min(legacyMillis, SystemClock.elapsedRealtime() - startTime);
+
+            scannedArt.clear();
+            startTime = SystemClock.elapsedRealtime();
+            new LibraryScanner(contentResolver).scan(new LibraryScanner.ScanListener() {
+                @Override
+                public boolean onTrack(Track track) {
+                    scannedArt.put(track.getId(), track.getAlbumArtURI());
+                    return true;
+                }
+            });
+            scanMillis = Math.min(scanMillis, SystemClock.elapsedRealtime() - startTime);
+        }
+
+        Log.i(LOG_TAG, "Tracks: " + scannedArt.size());
+        Log.i(LOG_TAG, "Per-row album art queries: " + legacyMillis + "ms");
+        Log.i(LOG_TAG, "Batched album art query:   " + scanMillis + "ms");
+        assertEquals("Both loads should resolve the same album art", legacyArt, scannedArt);
+    }
+
+    // --- Helper methods
+
+    /**
+     * The previous load - the tracks, then an Albums query for the album art of every track
+     * @param albumArt Receives the album art path of every track ID
+     */
+    private void legacyLoad(Map<Long, String> albumArt) {
+        Cursor c = contentResolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                null, null, null, MediaStore.Audio.Media.TITLE + " ASC");
+        assertNotNull(c);
+        try {
+            int idColumn = c.getColumnIndex(MediaStore.Audio.Media._ID);
+            int titleColumn = c.getColumnIndex(MediaStore.Audio.Media.TITLE);
+            int artistColumn = c.getColumnIndex(MediaStore.Audio.Media.ARTIST);
+            int durationColumn = c.getColumnIndex(MediaStore.Audio.Media.DURATION);
+            int albumIdColumn = c.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
+            while (c.moveToNext()) {
+                c.getString(titleColumn);
+                c.getString(artistColumn);
+                c.getLong(durationColumn);
+                albumArt.put(c.getLong(idColumn), getAlbumArtURI(c.getInt(albumIdColumn)));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * The previous album art lookup, one query per track
+     */
+    private String getAlbumArtURI(int albumId) {
+        String result = null;
+        Cursor cursor = contentResolver.query(
+                MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
+                new String[] {MediaStore.Audio.Albums.ALBUM_ART},
+                MediaStore.Audio.Albums._ID + " = ?",
+                new String[] {String.valueOf(albumId)},
+                null
+        );
+        if (cursor != null) {
+            if (cursor.moveToFirst())
+                result = cursor.getString(cursor.getColumnIndex(MediaStore.Audio.Albums.ALBUM_ART));
+            cursor.close();
+        }
+        return result;
+    }
+
+}
@@ -2,40 +2,55 @@ package com.daniel.awesomemusicplayer;
 
 import android.Manifest;
 import android.content.ComponentName;
-import android.content.ContentResolver;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.database.Cursor;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
-import android.provider.MediaStore;
 import android.support.annotation.NonNull;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.DividerItemDecoration;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
 import android.widget.Button;
+import android.widget.EditText;
 import android.widget.ImageView;
-import android.widget.ListView;
-import android.widget.ScrollView;
+import android.widget.PopupMenu;
 import android.widget.SeekBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import com.bumptech.glide.Glide;
+import com.daniel.awesomemusicplayer.networking.Lyrics;
 import com.daniel.awesomemusicplayer.networking.LyricsFinder;
 import com.daniel.awesomemusicplayer.service.MusicPlayerService;
 import com.daniel.awesomemusicplayer.service.MusicServiceCallback;
+import com.daniel.awesomemusicplayer.service.PlaybackPublisher;
+import com.daniel.awesomemusicplayer.service.PlaybackSnapshot;
+import com.daniel.awesomemusicplayer.service.PositionTicker;
+import com.daniel.awesomemusicplayer.tracks.LibraryDiff;
+import com.daniel.awesomemusicplayer.tracks.LyricsAdapter;
 import com.daniel.awesomemusicplayer.tracks.RepeatMode;
+import com.daniel.awesomemusicplayer.tracks.SearchIndex;
+import com.daniel.awesomemusicplayer.tracks.SearchIndexBuilder;
+import com.daniel.awesomemusicplayer.tracks.SortOrder;
 import com.daniel.awesomemusicplayer.tracks.Track;
 import com.daniel.awesomemusicplayer.tracks.TrackAdapter;
+import com.daniel.awesomemusicplayer.tracks.TrackLoader;
+import com.daniel.awesomemusicplayer.util.PowerStats;
 import com.daniel.awesomemusicplayer.util.Utils;
 
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This is the app's Main Activity.
@@ -46,24 +61,32 @@ import java.util.ArrayList;
  *
  * 1. onStart:
  *      The service is initialized and bound.
- *      TrackTimerThread is initialized and launched.
  *
  * 2. onServiceConnected:
  *      The necessary data is passed to the service.
- *      If the track list is already loaded on the service, use it in the activity
- *      If the track list hasn't been loaded - load it from the device storage
+ *      If the track list is already loaded on the service, use it in the activity - the adapter
+ *      is kept if the activity still displays the service's list.
+ *      If the track list hasn't been loaded - load it from the device storage on a
+ *      background thread (TrackLoader), the list is displayed page by page as it loads
+ *      and passed to the service once the whole library has been read.
+ *      Once the track list is complete, the search index is built on a background thread
+ *      (SearchIndexBuilder).
+ *      The activity subscribes to the playback snapshots of the service, the latest one is
+ *      delivered right away and the UI is updated from it. Only what changed between two
+ *      snapshots is updated, nothing is pulled from the service.
  *
- * 3. onResume:
- *      The UI is updating using data from the service.
- *
- * 4. onStop:
- *      TrackTimerThread is stopped.
- *      The service callback is removed.
+ * 3. onStop:
+ *      The PositionTicker is stopped.
+ *      The TrackLoader is aborted if the library is still loading.
+ *      The SearchIndexBuilder is aborted if the index is still being built.
+ *      The lyrics request is aborted, if any.
+ *      The service callback and the playback listener are removed.
  *      The service is unbound.
  *      If the music player is stopped - the service is stopped as well.
  */
 @SuppressWarnings("unchecked")
-public class MainActivity extends AppCompatActivity implements MusicServiceCallback {
+public class MainActivity extends AppCompatActivity
+        implements MusicServiceCallback, PlaybackPublisher.Listener {
 
     /** Log tag */
     private static final String LOG_TAG         = "MainActivity";
@@ -76,6 +99,17 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
     private static final String KEY_TRACK_TIME  = "KEY_TRACK_TIME";
     private static final String KEY_SHUFFLE_ON  = "KEY_SHUFFLE_ON";
     private static final String KEY_REPEAT_MODE = "KEY_REPEAT_MODE";
+    private static final String KEY_CROSSFADE   = "KEY_CROSSFADE";
+    private static final String KEY_SORT_ORDER  = "KEY_SORT_ORDER";
+
+    /** Crossfade menu items, and the crossfade length of each item in seconds */
+    private static final int[] CROSSFADE_MENU_ITEMS = {R.id.menuCrossfadeOff, R.id.menuCrossfade2,
+            R.id.menuCrossfade4, R.id.menuCrossfade6, R.id.menuCrossfade8, R.id.menuCrossfade12};
+    private static final int[] CROSSFADE_SECONDS = {0, 2, 4, 6, 8, 12};
+
+    /** Sort menu items, in the order of SortOrder.values() */
+    private static final int[] SORT_MENU_ITEMS = {R.id.menuSortTitle, R.id.menuSortArtist,
+            R.id.menuSortAlbum, R.id.menuSortDuration, R.id.menuSortDateAdded, R.id.menuSortPlayCount};
 
     /**
      * Permission request constant for reading external storage
@@ -86,9 +120,24 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
     /** List of all tracks */
     private ArrayList<Track> tracks;
 
-    /** ListView track adapter */
+    /** RecyclerView track adapter */
     private TrackAdapter trackAdapter;
 
+    /** Background track loader, null if the library isn't being loaded */
+    private TrackLoader trackLoader;
+
+    /** Has the restored track (trackIndex) been displayed since the library started loading? */
+    private boolean restoredTrackShown;
+
+    /** Search index of the track list, null until it has been built */
+    private SearchIndex searchIndex;
+
+    /** Background search index builder, null if the index isn't being built */
+    private SearchIndexBuilder searchIndexBuilder;
+
+    /** Search results, the filter of the track adapter while searching */
+    private int[] searchResults;
+
     /** Music Player Service */
     private MusicPlayerService musicPlayerService;
 
@@ -110,20 +159,37 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
     /** The repeat mode on the service */
     private RepeatMode repeatMode;
 
+    /** Crossfade length in seconds, 0 if crossfade is off */
+    private int crossfadeSeconds;
+
+    /** The order of the track list */
+    private SortOrder sortOrder;
+
     /** Lyrics parser */
     private LyricsFinder lyricsFinder;
 
     /** Are the lyrics available? */
     private boolean lyricsAvailable;
 
+    /** ID of the track whose lyrics are displayed (or being looked up), -1 if none */
+    private long lyricsTrackId = -1;
+
     /** UI components */
-    private ListView lstTracks;
+    private EditText txtSearch;
+    private RecyclerView lstTracks;
+    private LinearLayoutManager trackListLayout;
     private ImageView imgAlbum, btnPrevious, btnPlay,
             btnNext, btnStop, btnShuffle, btnRepeat;
-    private TextView lblPosition, lblDuration, lblTrackName, lblLyrics;
+    private TextView lblPosition, lblDuration, lblTrackName;
     private SeekBar skbrSlider;
     private Button btnShowHideLyrics;
-    private ScrollView scrLyricsPanel;
+    private RecyclerView lstLyrics;
+
+    /** Layout manager of the lyrics list */
+    private LinearLayoutManager lyricsLayout;
+
+    /** Adapter of the lyrics list, one row per line */
+    private LyricsAdapter lyricsAdapter;
 
     /** Shared Preferences */
     private SharedPreferences prefs;
@@ -131,21 +197,46 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
     /** Index of the selected track */
     private int trackIndex;
 
-    /**
-     * Track position timer thread
-     * (A thread updating the seekbar and the position (time) label)
-     */
-    private TrackTimerThread trackTimerThread;
-
     /** Track time (position) IN SECONDS */
     private int trackTime;
 
-    /** Should the timer run? True when a track is playing, otherwise false */
-    private boolean timerRunning;
+    /** Buffer of lblPosition, reused by every tick so formatting the position doesn't allocate */
+    private final char[] positionText = new char[Utils.TIME_BUFFER_LENGTH];
+
+    /** Buffer of lblDuration, reused by every track change */
+    private final char[] durationText = new char[Utils.TIME_BUFFER_LENGTH];
+
+    /** The latest playback snapshot of the service, null while not subscribed */
+    private PlaybackSnapshot playback;
+
+    /** The snapshot displayed by the UI, null if the UI has to be updated in full */
+    private PlaybackSnapshot shownPlayback;
 
-    /** Handler used to update the UI from the TrackTimerThread */
+    /** Scroll to the selected track once it changes, after next / previous has been pressed */
+    private boolean scrollToSelection;
+
+    /** Handler of the main thread - position ticks and lyrics line updates */
     private final Handler handler = new Handler();
 
+    /**
+     * Updates the seekbar and the position label from the player position,
+     * runs while a track is playing and the activity is visible
+     */
+    private final PositionTicker positionTicker = new PositionTicker(handler, new PositionTicker.Listener() {
+        @Override
+        public void onTick(int positionMillis) {
+            // The track may have been removed from the library, until the player is stopped
+            if (trackIndex < 0 || trackIndex >= tracks.size())
+                return;
+            trackTime = positionMillis / 1000;
+            setPositionText(trackTime);
+            long duration = tracks.get(trackIndex).getDuration();
+            if (duration > 0)
+                skbrSlider.setProgress((int) (positionMillis * 100L / duration));
+            updateLyricsLine();
+        }
+    });
+
 
     // --- Activity lifecycle methods
 
@@ -155,6 +246,7 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
         setContentView(R.layout.activity_main);
 
         // Initialize UI
+        txtSearch = findViewById(R.id.txtSearch);
         lstTracks = findViewById(R.id.lstTracks);
         imgAlbum = findViewById(R.id.imgAlbum);
         btnPrevious = findViewById(R.id.btnPrevious);
@@ -168,26 +260,45 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
         lblTrackName = findViewById(R.id.lblTrackName);
         skbrSlider = findViewById(R.id.skbrSlider);
         btnShowHideLyrics = findViewById(R.id.btnShowHideLyrics);
-        lblLyrics = findViewById(R.id.lblLyrics);
-        scrLyricsPanel = findViewById(R.id.scrLyricsPanel);
+        lstLyrics = findViewById(R.id.lstLyrics);
+
+        // Initialize the track list
+        trackListLayout = new LinearLayoutManager(this);
+        lstTracks.setLayoutManager(trackListLayout);
+        lstTracks.setHasFixedSize(true);
+        DividerItemDecoration divider = new DividerItemDecoration(this, DividerItemDecoration.VERTICAL);
+        divider.setDrawable(getDrawable(R.drawable.track_list_divider));
+        lstTracks.addItemDecoration(divider);
+
+        // Initialize the lyrics list
+        lyricsLayout = new LinearLayoutManager(this);
+        lstLyrics.setLayoutManager(lyricsLayout);
+        lstLyrics.setHasFixedSize(true);
+        lyricsAdapter = new LyricsAdapter(this);
+        lstLyrics.setAdapter(lyricsAdapter);
 
         // Initialize data from shared preferences
         prefs = getSharedPreferences(PREFS_KEY, MODE_PRIVATE);
-        trackIndex = prefs.getInt(KEY_TRACK_INDEX, 0);
+        trackIndex = Math.max(0, prefs.getInt(KEY_TRACK_INDEX, 0));
         trackTime = prefs.getInt(KEY_TRACK_TIME, 0);
         shuffleEnabled = prefs.getBoolean(KEY_SHUFFLE_ON, false);
         repeatMode = RepeatMode.values()[prefs.getInt(KEY_REPEAT_MODE, 0)];
+        crossfadeSeconds = prefs.getInt(KEY_CROSSFADE, 0);
+        sortOrder = SortOrder.values()[prefs.getInt(KEY_SORT_ORDER, 0)];
 
         // Initialize the lyrics finder
-        lyricsFinder = new LyricsFinder(new LyricsFinder.LyricsFinderListener() {
+        lyricsFinder = new LyricsFinder(this, new LyricsFinder.LyricsFinderListener() {
             @Override
             public void onResult(String result) {
-                scrLyricsPanel.setVisibility(View.GONE);
+                lstLyrics.setVisibility(View.GONE);
                 if (result != null) {
-                    lblLyrics.setText(result);
+                    // Parsed once, the position ticks only look the current line up
+                    lyricsAdapter.setLyrics(Lyrics.parse(result));
+                    updateLyricsLine();
                     btnShowHideLyrics.setText(R.string.btn_lyrics_show);
                     lyricsAvailable = true;
                 } else {
+                    lyricsAdapter.setLyrics(null);
                     btnShowHideLyrics.setText(R.string.btn_lyrics_unavailable);
                     lyricsAvailable = false;
                 }
@@ -196,42 +307,42 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
 
         // -- Prepare listeners
 
+        txtSearch.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {}
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                // Filter the track list on every keystroke
+                performSearch();
+            }
+        });
+
         btnShowHideLyrics.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
                 if (!lyricsAvailable)
                     return;
 
-                if (scrLyricsPanel.getVisibility() == View.VISIBLE) {
+                if (lstLyrics.getVisibility() == View.VISIBLE) {
                     btnShowHideLyrics.setText(R.string.btn_lyrics_show);
-                    scrLyricsPanel.setVisibility(View.GONE);
+                    lstLyrics.setVisibility(View.GONE);
                 } else {
                     btnShowHideLyrics.setText(R.string.btn_lyrics_hide);
-                    scrLyricsPanel.setVisibility(View.VISIBLE);
+                    lstLyrics.setVisibility(View.VISIBLE);
+                    scrollToLyricsLine(lyricsAdapter.getCurrentLine());
                 }
             }
         });
 
-        lstTracks.setOnItemClickListener(new AdapterView.OnItemClickListener() {
-            @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long l) {
-                if (!serviceBound || position == trackIndex)
-                    return;
-
-                // Select song on the service
-                musicPlayerService.selectTrack(position);
-
-                // Change play button to pause
-                btnPlay.setImageDrawable(getDrawable(R.drawable.btn_pause));
-                serviceRunning = true;
-            }
-        });
-
         btnPlay.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
                 // Play button clicked, toggle play/pause on the service
-                if (!serviceBound) return;
+                if (!isLibraryReady()) return;
                 musicPlayerService.togglePlayPause();
                 serviceRunning = true;
             }
@@ -241,7 +352,7 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
             @Override
             public void onClick(View view) {
                 // Stop button clicked, stop the playback on the service
-                if (!serviceBound) return;
+                if (!isLibraryReady()) return;
                 musicPlayerService.stop();
                 serviceRunning = false;
             }
@@ -251,9 +362,9 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
             @Override
             public void onClick(View view) {
                 // Play the next track
-                if (!serviceBound) return;
+                if (!isLibraryReady()) return;
                 musicPlayerService.playNext();
-                performTrackListSelection(true);
+                scrollToSelection = true;
             }
         });
 
@@ -261,9 +372,9 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
             @Override
             public void onClick(View view) {
                 // Play the previous track
-                if (!serviceBound) return;
+                if (!isLibraryReady()) return;
                 musicPlayerService.playPrevious();
-                performTrackListSelection(true);
+                scrollToSelection = true;
             }
         });
 
@@ -306,20 +417,8 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
     protected void onStart() {
         super.onStart();
 
-        // Start and bind the service
+        // Start and bind the service, the position ticker starts once it's bound
         initService();
-
-        // Initialize and start the timer thread
-        trackTimerThread = new TrackTimerThread();
-        trackTimerThread.start();
-    }
-
-    @Override
-    protected void onResume() {
-        super.onResume();
-
-        // Update the UI using data from the service
-        updateUI();
     }
 
     @Override
@@ -337,13 +436,38 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
     protected void onStop() {
         super.onStop();
 
+        // The position isn't visible - no ticks until the activity is started again
+        positionTicker.stop();
+
         // Unbind the service, don't stop it just yet
         if (serviceBound) {
             musicPlayerService.setCallback(null);
+            musicPlayerService.removePlaybackListener(this);
             unbindService(musicServiceConnection);
             serviceBound = false;
         }
 
+        // Abort the track loader, the library will be loaded again when the service is bound
+        if (trackLoader != null) {
+            trackLoader.stop();
+            trackLoader = null;
+        }
+
+        // Abort the search index builder, the index will be built again when the service is bound
+        if (searchIndexBuilder != null) {
+            searchIndexBuilder.stop();
+            searchIndexBuilder = null;
+        }
+
+        // Abort the lyrics request, the lyrics will be looked up again when the UI is updated
+        lyricsFinder.cancel();
+        lyricsTrackId = -1;
+        handler.removeCallbacks(lyricsLineUpdater);
+
+        // The UI is updated in full from the first snapshot after the activity is started again
+        playback = null;
+        shownPlayback = null;
+
         // If the media player and the activity are stopped - stop the service and close the basta
         if (!serviceRunning) {
 
@@ -357,10 +481,67 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
 
             stopService(serviceIntent);
         }
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.main, menu);
+
+        // Check the selected crossfade length
+        for (int i = 0; i < CROSSFADE_SECONDS.length; i++) {
+            if (CROSSFADE_SECONDS[i] == crossfadeSeconds)
+                menu.findItem(CROSSFADE_MENU_ITEMS[i]).setChecked(true);
+        }
 
-        // Stop the track timer thread to prevent unnecessary memory consumption
-        trackTimerThread.interrupt();
-        trackTimerThread = null;
+        // Check the selected sort order
+        menu.findItem(SORT_MENU_ITEMS[sortOrder.ordinal()]).setChecked(true);
+
+        // The power stats screen is for debug builds
+        menu.findItem(R.id.menuPowerStats).setVisible(BuildConfig.DEBUG);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.menuPowerStats) {
+            startActivity(new Intent(this, PowerStatsActivity.class));
+            return true;
+        }
+
+        for (int i = 0; i < CROSSFADE_MENU_ITEMS.length; i++) {
+            if (item.getItemId() == CROSSFADE_MENU_ITEMS[i]) {
+                // Crossfade length selected - save it and pass it to the service
+                item.setChecked(true);
+                crossfadeSeconds = CROSSFADE_SECONDS[i];
+                prefs.edit()
+                        .putInt(KEY_CROSSFADE, crossfadeSeconds)
+                        .apply();
+                if (serviceBound)
+                    musicPlayerService.setCrossfade(crossfadeSeconds);
+                return true;
+            }
+        }
+
+        for (int i = 0; i < SORT_MENU_ITEMS.length; i++) {
+            if (item.getItemId() == SORT_MENU_ITEMS[i]) {
+                // Sort order selected - save it and sort the list on the service.
+                // Selecting the active order again sorts again (e.g. by the current play counts).
+                item.setChecked(true);
+                SortOrder selected = SortOrder.values()[i];
+                prefs.edit()
+                        .putInt(KEY_SORT_ORDER, selected.ordinal())
+                        .apply();
+                if (serviceBound) {
+                    if (selected == sortOrder)
+                        musicPlayerService.refreshSortOrder();
+                    else
+                        musicPlayerService.setSortOrder(selected);
+                }
+                sortOrder = selected;
+                return true;
+            }
+        }
+        return super.onOptionsItemSelected(item);
     }
 
     @Override
@@ -385,68 +566,140 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
     // --- Helper methods
 
     /**
-     * This method updates the UI based on data from the service
+     * Display the latest playback snapshot. Only what changed since the displayed snapshot
+     * is updated, the UI is updated in full if there's none.
      */
-    private void updateUI() {
-
-        // Pull data from service
-        Track track = null;
-        if (serviceBound) {
-            timerRunning = musicPlayerService.isPlaying();
-            trackTime = timerRunning
-                    ? musicPlayerService.getPosition()
-                    : prefs.getInt(KEY_TRACK_TIME, 0);
-            shuffleEnabled = musicPlayerService.isShuffled();
-            repeatMode = musicPlayerService.getRepeatMode();
-
-            if (tracks.size() > 0) {
-
-                // Update the ListView and select the track
-                performTrackListSelection(true);
-
-                // Update UI components
-                track = tracks.get(trackIndex);
-                Log.d(LOG_TAG, "Selected track on UI update: " + track);
-                int sliderProgress = (int) (trackTime / (track.getDuration() / 1000.0f) * 100.0f);
-                skbrSlider.setProgress(sliderProgress);
-                lblTrackName.setText(track.getFullTitle());
-                lblDuration.setText(Utils.formatMillis(track.getDuration()));
-                lblPosition.setText(Utils.formatSeconds(trackTime));
-                btnPlay.setImageDrawable(getDrawable(musicPlayerService.isPlaying()
-                        ? R.drawable.btn_pause
-                        : R.drawable.btn_play));
-
-                // Update the RepeatMode and shuffle buttons
-                switch (repeatMode) {
-                    case NONE:
-                        btnRepeat.setImageDrawable(getDrawable(R.drawable.btn_repeat_off));
-                        break;
-                    case REPEAT_TRACK:
-                        btnRepeat.setImageDrawable(getDrawable(R.drawable.btn_repeat_track));
-                        break;
-                    case REPEAT_ALL:
-                        btnRepeat.setImageDrawable(getDrawable(R.drawable.btn_repeat_all));
-                        break;
-                }
-
-                btnShuffle.setImageDrawable(getDrawable(shuffleEnabled
-                        ? R.drawable.btn_shuffle_on
-                        : R.drawable.btn_shuffle_off));
+    private void applyPlayback() {
+        PlaybackSnapshot snapshot = playback;
+        if (snapshot == null || !isLibraryReady())
+            return;
+        if (snapshot.getTrackIndex() == -1) {
+            showNoTrack();
+            return;
+        }
+        PlaybackSnapshot shown = shownPlayback;
+        shownPlayback = snapshot;
+
+        PlaybackSnapshot.State state = snapshot.getState();
+        boolean active = state == PlaybackSnapshot.State.PLAYING || state == PlaybackSnapshot.State.PREPARING;
+        boolean wasActive = shown != null && (shown.getState() == PlaybackSnapshot.State.PLAYING
+                || shown.getState() == PlaybackSnapshot.State.PREPARING);
+        trackIndex = snapshot.getTrackIndex();
+        Track track = tracks.get(trackIndex);
 
-                // Load album art image
-                updateAlbumImage(track);
+        // The selected track, its lyrics first - cached lyrics are displayed right away
+        boolean trackChanged = shown == null || shown.getTrackId() != snapshot.getTrackId();
+        if (trackChanged) {
+            Log.d(LOG_TAG, "Selected track: " + track);
+            findLyrics(track);
+            lblTrackName.setText(track.getFullTitle());
+            setDurationText(track.getDuration());
+            updateAlbumImage(track);
+        }
+        if (trackChanged || shown.getTrackIndex() != trackIndex || wasActive != active)
+            trackAdapter.setSelection(trackIndex, active);
+        if (trackChanged && (shown == null || scrollToSelection || snapshot.isShuffled())) {
+            scrollToSelection = false;
+            scrollToTrack(trackIndex);
+        }
 
+        // The position - the restored position is displayed until the player is started
+        if (state == PlaybackSnapshot.State.PLAYING || state == PlaybackSnapshot.State.PAUSED)
+            trackTime = snapshot.getPositionMillis() / 1000;
+        else if (state == PlaybackSnapshot.State.PREPARING || (shown != null
+                && (trackChanged || shown.getState() != PlaybackSnapshot.State.STOPPED)))
+            trackTime = 0;
+
+        // Tick while the track is playing, the ticks update the slider and the lyrics line.
+        // A running ticker is realigned to the position, e.g. after a seek.
+        if (state == PlaybackSnapshot.State.PLAYING) {
+            positionTicker.start(musicPlayerService);
+        } else {
+            positionTicker.stop();
+            setPositionText(trackTime);
+            long duration = track.getDuration();
+            skbrSlider.setProgress(duration > 0 ? (int) (trackTime * 100000L / duration) : 0);
+            if (state == PlaybackSnapshot.State.PAUSED) {
+                updateLyricsLine();
+            } else {
+                handler.removeCallbacks(lyricsLineUpdater);
+                lyricsAdapter.setCurrentLine(-1);
             }
         }
+        if (shown == null || wasActive != active)
+            btnPlay.setImageDrawable(getDrawable(active ? R.drawable.btn_pause : R.drawable.btn_play));
+
+        // The playback modes, changes are confirmed with a toast
+        if (shown == null || shown.getRepeatMode() != snapshot.getRepeatMode())
+            showRepeatMode(snapshot.getRepeatMode(), shown != null);
+        if (shown == null || shown.isShuffled() != snapshot.isShuffled())
+            showShuffleMode(snapshot.isShuffled(), shown != null);
+    }
 
-        if (track != null) {
-            // If there are no lyrics in the label, find and display them
-            if (lblLyrics.getText().toString().length() == 0) {
-                btnShowHideLyrics.setText(R.string.btn_lyrics_loading);
-                lyricsFinder.parse(track);
-            }
+    /**
+     * Clear the selected track, the library is empty.
+     * The UI is updated in full once a track is selected again.
+     */
+    private void showNoTrack() {
+        shownPlayback = null;
+        trackIndex = -1;
+        trackTime = 0;
+        positionTicker.stop();
+        handler.removeCallbacks(lyricsLineUpdater);
+        lyricsAdapter.setCurrentLine(-1);
+        trackAdapter.setSelection(RecyclerView.NO_POSITION, false);
+        lblTrackName.setText("");
+        setPositionText(0);
+        setDurationText(0);
+        skbrSlider.setProgress(0);
+        btnPlay.setImageDrawable(getDrawable(R.drawable.btn_play));
+    }
+
+    /**
+     * Update the repeat button
+     * @param toast Confirm the change with a toast
+     */
+    private void showRepeatMode(RepeatMode repeatMode, boolean toast) {
+        Log.d(LOG_TAG, "Repeat mode: " + repeatMode.toString());
+
+        this.repeatMode = repeatMode;
+
+        String mode = null;
+        int drawableId = 0;
+        switch (repeatMode) {
+            case NONE:
+                mode = "Repeat OFF";
+                drawableId = R.drawable.btn_repeat_off;
+                break;
+            case REPEAT_TRACK:
+                mode = "Repeat ON - Track";
+                drawableId = R.drawable.btn_repeat_track;
+                break;
+            case REPEAT_ALL:
+                mode = "Repeat ON - All";
+                drawableId = R.drawable.btn_repeat_all;
+                break;
         }
+        btnRepeat.setImageDrawable(getDrawable(drawableId));
+        if (toast)
+            Toast.makeText(this, mode, Toast.LENGTH_SHORT).show();
+    }
+
+    /**
+     * Update the shuffle button
+     * @param toast Confirm the change with a toast
+     */
+    private void showShuffleMode(boolean shuffleEnabled, boolean toast) {
+        Log.d(LOG_TAG, "Shuffle enabled: " + shuffleEnabled);
 
+        this.shuffleEnabled = shuffleEnabled;
+
+        btnShuffle.setImageDrawable(getDrawable(shuffleEnabled
+                ? R.drawable.btn_shuffle_on
+                : R.drawable.btn_shuffle_off));
+
+        if (toast)
+            Toast.makeText(this, "Shuffle " + (shuffleEnabled ? "ON" : "OFF"), Toast.LENGTH_SHORT).show();
     }
 
     /**
@@ -462,10 +715,21 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
 
             // If the tracks have already been initialized on the service, grab a reference
             // to use in the Main Activity. If not, pass the loaded tracks to the service.
-            if (musicPlayerService.getTracks() != null) {
-                tracks = musicPlayerService.getTracks();
-                trackAdapter = new TrackAdapter(MainActivity.this, tracks);
-                lstTracks.setAdapter(trackAdapter);
+            ArrayList<Track> serviceTracks = musicPlayerService.getTracks();
+            if (serviceTracks != null) {
+                if (tracks == serviceTracks && trackAdapter != null) {
+                    // The adapter already displays the list, the library may have changed
+                    // while the service was unbound - rebind the rows, the search is performed
+                    // again once the index has been rebuilt
+                    trackAdapter.clearFilter();
+                    trackAdapter.setOrder(musicPlayerService.getSortedTracks());
+                    trackAdapter.notifyDataSetChanged();
+                } else {
+                    tracks = serviceTracks;
+                    attachTrackAdapter();
+                    trackAdapter.setOrder(musicPlayerService.getSortedTracks());
+                }
+                buildSearchIndex();
             } else {
                 initTrackList();
             }
@@ -476,8 +740,11 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
                 musicPlayerService.setShuffle(shuffleEnabled);
                 musicPlayerService.setRepeatMode(repeatMode);
             }
+            musicPlayerService.setCrossfade(crossfadeSeconds);
+            musicPlayerService.setSortOrder(sortOrder);
 
-            updateUI();
+            // The current snapshot is delivered right away
+            musicPlayerService.addPlaybackListener(MainActivity.this);
             Log.d(LOG_TAG, "Service bound.");
         }
 
@@ -502,7 +769,8 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
     }
 
     /**
-     * Load the track list from the device's external storage
+     * Load the track list from the device's external storage.
+     * The tracks are read on a background thread and added to the RecyclerView page by page.
      */
     private void initTrackList() {
 
@@ -520,254 +788,383 @@ public class MainActivity extends AppCompatActivity implements MusicServiceCallb
             }
         }
 
-        Log.d(LOG_TAG, "Reading tracks...");
+        // Abort a previous load, if there is one
+        if (trackLoader != null)
+            trackLoader.stop();
 
-        // Load the tracks
-        ContentResolver contentResolver = getContentResolver();
-        Cursor c = contentResolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                null, null, null, MediaStore.Audio.Media.TITLE + " ASC");
-        if (c != null && c.moveToFirst()) {
-
-            // Save the column indexes to variables
-            int idColumn = c.getColumnIndex(MediaStore.Audio.Media._ID);
-            int titleColumn = c.getColumnIndex(MediaStore.Audio.Media.TITLE);
-            int artistColumn = c.getColumnIndex(MediaStore.Audio.Media.ARTIST);
-            int durationColumn = c.getColumnIndex(MediaStore.Audio.Media.DURATION);
-            int albumIdColumn = c.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
-
-            // Create the track objects and add them to the list
-            do {
-                Track track = new Track();
-                track.setId(c.getLong(idColumn));
-                track.setTitle(c.getString(titleColumn));
-                track.setArtist(c.getString(artistColumn));
-                track.setDuration(c.getLong(durationColumn));
-                track.setAlbumArtURI(getAlbumArtURI(c.getInt(albumIdColumn)));
-                tracks.add(track);
-            } while (c.moveToNext());
-            c.close();
+        // Attach an empty adapter, the pages are added to it as they arrive.
+        // The search index is built once the whole list has been loaded.
+        if (searchIndexBuilder != null) {
+            searchIndexBuilder.stop();
+            searchIndexBuilder = null;
         }
+        searchIndex = null;
+        tracks.clear();
+        restoredTrackShown = false;
+        attachTrackAdapter();
 
-        // Pass the track list to the service
-        if (serviceBound) {
-            musicPlayerService.setTracks(tracks);
-        }
+        // Load the tracks
+        trackLoader = new TrackLoader(this, new TrackLoader.TrackLoaderListener() {
+            @Override
+            public void onPageLoaded(List<Track> page) {
+                int start = tracks.size();
+                tracks.addAll(page);
+                trackAdapter.notifyItemRangeInserted(start, page.size());
+
+                // Display the restored track as soon as its page has been loaded
+                if (!restoredTrackShown && trackIndex >= 0 && trackIndex < tracks.size())
+                    showRestoredTrack();
+            }
+
+            @Override
+            public void onLoadFinished(int trackCount) {
+                trackLoader = null;
+                Log.d(LOG_TAG, "Library loaded: " + trackCount + " tracks.");
+
+                // If the trackIndex pulled from prefs is larger than the list size,
+                // meaning the list has been changed - reset the index
+                if (trackIndex < 0 || trackIndex >= tracks.size()) {
+                    trackIndex = 0;
+                    if (tracks.size() > 0)
+                        showRestoredTrack();
+                }
+
+                buildSearchIndex();
 
-        // If the trackIndex pulled from prefs is larger than the list size,
-        // meaning the list has been changed - reset the index
-        if (trackIndex >= tracks.size())
-            trackIndex = 0;
+                // Pass the track list to the service, the UI is updated from the next snapshot
+                if (serviceBound) {
+                    musicPlayerService.setTracks(tracks);
+                    if (!musicPlayerService.isReady())
+                        musicPlayerService.setTrackIndex(trackIndex);
+                }
+            }
+
+            @Override
+            public void onLibraryUpdated(LibraryDiff diff) {
+                trackLoader = null;
+
+                // The service owns the track list, it applies the diff and calls onLibraryChanged()
+                if (isLibraryReady())
+                    musicPlayerService.applyLibraryDiff(diff);
+            }
+        });
+        trackLoader.start();
+    }
 
+    /**
+     * Select and display the track restored from the shared preferences (trackIndex)
+     */
+    private void showRestoredTrack() {
         Log.d(LOG_TAG, "Initializing UI...");
+        restoredTrackShown = true;
 
         // Prepare the UI
         Track track = tracks.get(trackIndex);
         int sliderProgress = (int) ((trackTime * 1000.0f) / track.getDuration() * 100.0f);
         skbrSlider.setProgress(sliderProgress);
-        track.setSelected(true);
+        trackAdapter.setSelection(trackIndex, false);
+        scrollToTrack(trackIndex);
         lblTrackName.setText(track.getFullTitle());
-        trackAdapter = new TrackAdapter(this, tracks);
-        lstTracks.setAdapter(trackAdapter);
-        lblPosition.setText(Utils.formatSeconds(trackTime));
+        setPositionText(trackTime);
         updateAlbumImage(track);
     }
 
     /**
-     * Get the album art path using the album ID
-     * @param albumId Album ID
-     * @return the path to the album thumb art as string
+     * Create an adapter for the track list and attach it to the RecyclerView
      */
-    private String getAlbumArtURI(int albumId) {
-        String result = null;
-
-        // Query
-        Cursor cursor = getContentResolver().query(
-                MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
-                new String[] {MediaStore.Audio.Albums.ALBUM_ART},
-                MediaStore.Audio.Albums._ID + " = ?",
-                new String[] {String.valueOf(albumId)},
-                null
-        );
-
-        // If data exists - grab it
-        if (cursor != null) {
-            if (cursor.moveToFirst()) {
-                result = cursor.getString(
-                        cursor.getColumnIndex(MediaStore.Audio.Albums.ALBUM_ART));
+    private void attachTrackAdapter() {
+        // Nothing is selected in the new adapter
+        shownPlayback = null;
+        trackAdapter = new TrackAdapter(this, tracks, new TrackAdapter.OnTrackClickListener() {
+            @Override
+            public void onTrackClick(int position) {
+                if (!isLibraryReady() || position == trackIndex)
+                    return;
+
+                // Select song on the service
+                musicPlayerService.selectTrack(position);
+
+                // Change play button to pause
+                btnPlay.setImageDrawable(getDrawable(R.drawable.btn_pause));
+                serviceRunning = true;
             }
-            cursor.close();
-        }
 
-        return result;
+            @Override
+            public void onTrackLongClick(int position, View view) {
+                if (isLibraryReady())
+                    showTrackMenu(position, view);
+            }
+        });
+        lstTracks.setAdapter(trackAdapter);
     }
 
     /**
-     * Handles track selection on the ListView
-     * @param moveToItem if true, the ListView will scroll to the item position
+     * Build the search index of the track list on a background thread.
+     * The current search is performed again once the index is ready.
      */
-    private void performTrackListSelection(boolean moveToItem) {
-        if (!serviceBound)
-            return;
+    private void buildSearchIndex() {
+        if (searchIndexBuilder != null)
+            searchIndexBuilder.stop();
 
-        tracks.get(trackIndex).setSelected(false);
-        trackIndex = musicPlayerService.getSelectedTrackIndex();
-        tracks.get(trackIndex).setSelected(true);
-        trackAdapter.notifyDataSetChanged();
-        if (moveToItem)
-            lstTracks.setSelection(Math.max(0, trackIndex - 3));
-        Log.d(LOG_TAG, "Performing selection: " + trackIndex);
+        searchIndex = null;
+        searchIndexBuilder = new SearchIndexBuilder(tracks, new SearchIndexBuilder.SearchIndexListener() {
+            @Override
+            public void onIndexBuilt(SearchIndex index) {
+                searchIndexBuilder = null;
+                searchIndex = index;
+                searchResults = new int[index.getTrackCount()];
+                performSearch();
+            }
+        });
+        searchIndexBuilder.start();
     }
 
     /**
-     * Load the album art image of the selected track to the imgAlbum ImageView
-     * @param track selected track
+     * Filter the track list by the text of the search field.
+     * The whole list is displayed if the field is empty, or until the index has been built.
      */
-    private void updateAlbumImage(Track track) {
-        Log.d(LOG_TAG, "Track Album URI: " + track.getAlbumArtURI());
-        if (track.getAlbumArtURI() != null) {
-            Glide.with(this)
-                    .load(track.getAlbumArtURI())
-                    .placeholder(R.drawable.amp_icon)
-                    .error(R.drawable.amp_icon)
-                    .into(imgAlbum);
-        } else {
-            imgAlbum.setImageDrawable(getDrawable(R.drawable.amp_icon));
+    private void performSearch() {
+        if (trackAdapter == null)
+            return;
+
+        String query = txtSearch.getText().toString();
+        if (query.trim().isEmpty() || searchIndex == null) {
+            if (trackAdapter.isFiltered()) {
+                trackAdapter.clearFilter();
+                scrollToTrack(trackIndex);
+            }
+            return;
         }
+
+        int count = searchIndex.search(query, searchResults, trackAdapter.getOrder());
+        trackAdapter.setFilter(searchResults, count);
+        trackListLayout.scrollToPosition(0);
     }
 
     /**
-     * TrackTimerThread is controlling the position label value and seekbar progress value
-     * based on the amount of time passed from a track's beginning.
-     * The thread starts running at onStart() and stops at onStop().
+     * Scroll the track list to a track, if it is displayed
+     * @param trackIndex The track index
      */
-    private class TrackTimerThread extends Thread {
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    Thread.sleep(1000L);
-                    if (timerRunning) {
-                        handler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                synchronized (this) {
-                                    trackTime++;
-                                    String formattedTime = Utils.formatSeconds(trackTime);
-                                    lblPosition.setText(formattedTime);
-                                    Track track = tracks.get(trackIndex);
-                                    int sliderProgress = (int) ((trackTime * 1000.0f)
-                                            / track.getDuration() * 100.0f);
-                                    skbrSlider.setProgress(sliderProgress);
-                                    Log.d(LOG_TAG, "Progress: " + sliderProgress + "% ["
-                                            + Utils.formatSeconds(trackTime) + "/"
-                                            + Utils.formatMillis(track.getDuration()) + "]");
-                                }
-                            }
-                        });
-                    }
-                    Log.d(LOG_TAG, "Timer Running: " + timerRunning + ", Track Time: " + trackTime);
-                } catch (InterruptedException ignored) {
-                    break;
+    private void scrollToTrack(int trackIndex) {
+        int position = trackAdapter.getAdapterPosition(trackIndex);
+        if (position != RecyclerView.NO_POSITION)
+            trackListLayout.scrollToPositionWithOffset(Math.max(0, position - 3), 0);
+    }
+
+    /**
+     * Show the queue actions of a track
+     * @param position The track index
+     * @param anchor The row view
+     */
+    private void showTrackMenu(final int position, View anchor) {
+        PopupMenu popupMenu = new PopupMenu(this, anchor);
+        popupMenu.inflate(R.menu.track);
+        popupMenu.setOnMenuItemClickListener(new PopupMenu.OnMenuItemClickListener() {
+            @Override
+            public boolean onMenuItemClick(MenuItem item) {
+                if (!isLibraryReady())
+                    return false;
+
+                int count;
+                switch (item.getItemId()) {
+                    case R.id.menuPlayNext:
+                        musicPlayerService.playAfterCurrent(position);
+                        count = 1;
+                        break;
+                    case R.id.menuAddToQueue:
+                        musicPlayerService.addToQueue(position);
+                        count = 1;
+                        break;
+                    case R.id.menuQueueAlbum:
+                        count = musicPlayerService.addAlbumToQueue(position);
+                        break;
+                    default:
+                        return false;
                 }
+
+                Toast.makeText(MainActivity.this, getResources().getQuantityString(
+                        R.plurals.toast_queued, count, count,
+                        musicPlayerService.getPlayQueue().size()), Toast.LENGTH_SHORT).show();
+                return true;
             }
-        }
+        });
+        popupMenu.show();
     }
 
-    // --- MusicServiceCallback methods
+    /**
+     * Is the track list loaded and shared with the service?
+     * @return true if the service is bound and has the track list, otherwise false
+     */
+    private boolean isLibraryReady() {
+        return serviceBound && musicPlayerService.getTracks() != null;
+    }
 
-    @Override
-    public void onTrackStarted(int trackIndex) {
-
-        // Update UI
-        scrLyricsPanel.setVisibility(View.GONE);
-        lblLyrics.setText("");
-        trackAdapter.notifyDataSetChanged();
-        performTrackListSelection(shuffleEnabled);
-        timerRunning = true;
-        trackTime = 0;
-        Track track = tracks.get(trackIndex);
-        lblPosition.setText(Utils.formatMillis(0));
-        lblDuration.setText(Utils.formatMillis(track.getDuration()));
-        lblTrackName.setText(track.getFullTitle());
-        btnPlay.setImageDrawable(getDrawable(R.drawable.btn_pause));
+    /**
+     * Find the lyrics of the selected track and display them, unless they're already displayed.
+     * @param track selected track
+     */
+    private void findLyrics(Track track) {
+        if (track.getId() == lyricsTrackId)
+            return;
+        lyricsTrackId = track.getId();
 
-        // Find the lyrics and display them
+        lstLyrics.setVisibility(View.GONE);
+        lyricsAdapter.setLyrics(null);
+        handler.removeCallbacks(lyricsLineUpdater);
         lyricsAvailable = false;
         btnShowHideLyrics.setText(R.string.btn_lyrics_loading);
         lyricsFinder.parse(track);
-
-        // Load album image
-        updateAlbumImage(track);
     }
 
-    @Override
-    public void onTrackPaused() {
-        trackAdapter.notifyDataSetChanged();
-        btnPlay.setImageDrawable(getDrawable(R.drawable.btn_play));
-        timerRunning = false;
+    /**
+     * Display the playback position, in seconds
+     */
+    private void setPositionText(int seconds) {
+        lblPosition.setText(positionText, 0, Utils.formatSeconds(seconds, positionText));
     }
 
-    @Override
-    public void onTrackResumed() {
-        trackAdapter.notifyDataSetChanged();
-        btnPlay.setImageDrawable(getDrawable(R.drawable.btn_pause));
-        timerRunning = true;
+    /**
+     * Display the duration of the track, in milliseconds
+     */
+    private void setDurationText(long millis) {
+        lblDuration.setText(durationText, 0, Utils.formatMillis(millis, durationText));
     }
 
-    @Override
-    public void onTrackStopped() {
-        trackAdapter.notifyDataSetChanged();
-        btnPlay.setImageDrawable(getDrawable(R.drawable.btn_play));
-        lblPosition.setText(Utils.formatMillis(0));
-        skbrSlider.setProgress(0);
-        timerRunning = false;
-        trackTime = 0;
-    }
+    /**
+     * Highlight the line of the synced lyrics at the playback position. Called on every position
+     * tick, and scheduled at the start time of the next line while the track is playing,
+     * so the lines change on time and not on the next tick.
+     */
+    private void updateLyricsLine() {
+        handler.removeCallbacks(lyricsLineUpdater);
+        Lyrics lyrics = lyricsAdapter.getLyrics();
+        if (lyrics == null || !lyrics.isSynced() || !serviceBound)
+            return;
 
-    @Override
-    public void onRepeatModeChanged(RepeatMode repeatMode) {
-        Log.d(LOG_TAG, "Repeat mode selected: " + repeatMode.toString());
+        int position = musicPlayerService.getPositionMillis();
+        int line = lyrics.getLineAt(position);
+        if (lyricsAdapter.setCurrentLine(line)
+                && lstLyrics.getScrollState() == RecyclerView.SCROLL_STATE_IDLE)
+            scrollToLyricsLine(line);
 
-        this.repeatMode = repeatMode;
+        if (positionTicker.isRunning() && line + 1 < lyrics.getLineCount()) {
+            handler.postDelayed(lyricsLineUpdater, lyrics.getTime(line + 1) - position);
+            PowerStats.post(PowerStats.Component.LYRICS_LINES);
+        }
+    }
 
-        String mode = null;
-        int drawableId = 0;
-        switch (repeatMode) {
-            case NONE:
-                mode = "Repeat OFF";
-                drawableId = R.drawable.btn_repeat_off;
-                break;
-            case REPEAT_TRACK:
-                mode = "Repeat ON - Track";
-                drawableId = R.drawable.btn_repeat_track;
-                break;
-            case REPEAT_ALL:
-                mode = "Repeat ON - All";
-                drawableId = R.drawable.btn_repeat_all;
-                break;
+    /** Runs updateLyricsLine() when the next line starts */
+    private final Runnable lyricsLineUpdater = new Runnable() {
+        @Override
+        public void run() {
+            long cpu = PowerStats.begin();
+            updateLyricsLine();
+            PowerStats.end(PowerStats.Component.LYRICS_LINES, cpu);
         }
-        btnRepeat.setImageDrawable(getDrawable(drawableId));
-        Toast.makeText(this, mode, Toast.LENGTH_SHORT).show();
+    };
 
+    /**
+     * Scroll the visible lyrics panel so a line is in the upper third
+     */
+    private void scrollToLyricsLine(int line) {
+        if (line >= 0 && lstLyrics.getVisibility() == View.VISIBLE)
+            lyricsLayout.scrollToPositionWithOffset(line, lstLyrics.getHeight() / 3);
     }
 
+    /**
+     * Load the album art image of the selected track to the imgAlbum ImageView
+     * @param track selected track
+     */
+    private void updateAlbumImage(Track track) {
+        Log.d(LOG_TAG, "Track Album URI: " + track.getAlbumArtURI());
+        if (track.getAlbumArtURI() != null) {
+            Glide.with(this)
+                    .load(track.getAlbumArtURI())
+                    .placeholder(R.drawable.amp_icon)
+                    .error(R.drawable.amp_icon)
+                    .into(imgAlbum);
+        } else {
+            imgAlbum.setImageDrawable(getDrawable(R.drawable.amp_icon));
+        }
+    }
+
+    // --- PlaybackPublisher.Listener methods
+
     @Override
-    public void onShuffleModeChanged(boolean shuffleEnabled) {
-        Log.d(LOG_TAG, "Shuffle enabled: " + shuffleEnabled);
+    public void onPlaybackChanged(@NonNull PlaybackSnapshot snapshot) {
+        // The same snapshot may be delivered twice right after subscribing
+        if (playback != null && snapshot.getVersion() <= playback.getVersion())
+            return;
+        playback = snapshot;
+        applyPlayback();
+    }
 
-        this.shuffleEnabled = shuffleEnabled;
+    // --- MusicServiceCallback methods
 
-        btnShuffle.setImageDrawable(getDrawable(shuffleEnabled
-                ? R.drawable.btn_shuffle_on
-                : R.drawable.btn_shuffle_off));
+    @Override
+    public void onLibraryChanged(LibraryDiff diff) {
+        // The selected track is displayed from the next snapshot if it has changed
+        trackIndex = musicPlayerService.getSelectedTrackIndex();
 
-        Toast.makeText(this, "Shuffle " + (shuffleEnabled ? "ON" : "OFF"), Toast.LENGTH_SHORT).show();
+        int[] sortedTracks = musicPlayerService.getSortedTracks();
+        if (trackAdapter.isFiltered()) {
+            // Move the search results to the new positions and drop the removed tracks,
+            // the search is performed again once the index has been rebuilt
+            int count = 0;
+            for (int i = 0; i < trackAdapter.getItemCount(); i++) {
+                int position = diff.mapPosition(searchResults[i], false);
+                if (position != -1)
+                    searchResults[count++] = position;
+            }
+            trackAdapter.setOrder(sortedTracks);
+            trackAdapter.setFilter(searchResults, count);
+        } else if (sortedTracks != null) {
+            // The service has moved the sort order to the new positions, rows can't be
+            // matched one by one in the sorted list - rebind everything
+            trackAdapter.setOrder(sortedTracks);
+        } else if (diff.isLarge()) {
+            // Too many changes to animate - rebind everything,
+            // keeping the track at the top of the list in place
+            int firstVisiblePosition = trackListLayout.findFirstVisibleItemPosition();
+            View firstVisibleView = lstTracks.getChildAt(0);
+            int firstVisibleTop = firstVisibleView != null ? firstVisibleView.getTop() : 0;
+            trackAdapter.notifyDataSetChanged();
+            int newFirstVisiblePosition = diff.mapPosition(firstVisiblePosition, true);
+            if (newFirstVisiblePosition != -1)
+                trackListLayout.scrollToPositionWithOffset(newFirstVisiblePosition, firstVisibleTop);
+        } else {
+            // Replay the changes in the order they were applied to the list,
+            // the RecyclerView keeps the visible rows in place by itself
+            int firstShifted = tracks.size();
+            int[] removed = diff.getRemoved();
+            for (int i = removed.length - 1; i >= 0; i--) {
+                trackAdapter.notifyItemRemoved(removed[i]);
+                firstShifted = Math.min(firstShifted, removed[i]);
+            }
+            for (int position : diff.getInserted()) {
+                trackAdapter.notifyItemInserted(position);
+                firstShifted = Math.min(firstShifted, position);
+            }
+            for (int position : diff.getUpdated())
+                trackAdapter.notifyItemChanged(position);
+
+            // Rows after an insertion or removal changed parity, refresh their background
+            trackAdapter.notifyPositionsShifted(firstShifted);
+        }
+        trackAdapter.setSelection(trackIndex, musicPlayerService.isPlaying());
+        buildSearchIndex();
     }
 
     @Override
-    public void onPositionChanged(int trackTime) {
-        this.trackTime = trackTime;
-        lblPosition.setText(Utils.formatSeconds(trackTime));
+    public void onSortOrderChanged(SortOrder sortOrder) {
+        Log.d(LOG_TAG, "Sort order: " + sortOrder);
+        trackAdapter.setOrder(musicPlayerService.getSortedTracks());
+
+        // Search results with the same score follow the sort order, search again
+        if (trackAdapter.isFiltered())
+            performSearch();
+        else
+            scrollToTrack(trackIndex);
     }
 
 }
@@ -0,0 +1,74 @@
+package com.daniel.awesomemusicplayer;
+
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.daniel.awesomemusicplayer.util.PowerStats;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Debug screen showing the PowerStats report - the runs, posts and CPU time of every
+ * instrumented component, the power state and the budget violations.
+ * The report can be reset, and saved to a file to be pulled from the device.
+ */
+public class PowerStatsActivity extends AppCompatActivity {
+
+    private static final String LOG_TAG = PowerStatsActivity.class.getSimpleName();
+
+    private TextView lblPowerStats;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_power_stats);
+
+        lblPowerStats = findViewById(R.id.lblPowerStats);
+
+        findViewById(R.id.btnRefreshPowerStats).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                showReport();
+            }
+        });
+
+        findViewById(R.id.btnResetPowerStats).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                PowerStats.reset();
+                showReport();
+            }
+        });
+
+        findViewById(R.id.btnDumpPowerStats).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                // The report is a few lines, it's written right away
+                try {
+                    File file = PowerStats.dump(PowerStatsActivity.this);
+                    Toast.makeText(PowerStatsActivity.this, "Saved to " + file.getPath(), Toast.LENGTH_LONG).show();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Failed to save the power stats.", e);
+                    Toast.makeText(PowerStatsActivity.this, "Failed to save the power stats.", Toast.LENGTH_LONG).show();
+                }
+                showReport();
+            }
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        showReport();
+    }
+
+    private void showReport() {
+        lblPowerStats.setText(PowerStats.getReport());
+    }
+
+}
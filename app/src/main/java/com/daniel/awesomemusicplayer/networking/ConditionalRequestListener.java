@@ -0,0 +1,24 @@
+package com.daniel.awesomemusicplayer.networking;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Listener of a conditional request - a request revalidating a cached response with its Validators.
+ */
+public interface ConditionalRequestListener extends RequestListener {
+
+    /**
+     * This method is called in the background thread when the server returns a new response,
+     * before doOnBackgroundThread().
+     * @param validators The validators of the new response, to cache with it. null if it has none.
+     */
+    void onValidators(@Nullable Validators validators);
+
+    /**
+     * This method is called in the background thread instead of doOnBackgroundThread()
+     * when the server answers 304 Not Modified - the cached response is still valid.
+     * doOnUIThread() is called with null afterwards.
+     */
+    void onNotModified();
+
+}
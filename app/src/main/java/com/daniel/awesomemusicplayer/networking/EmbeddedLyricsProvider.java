@@ -0,0 +1,408 @@
+package com.daniel.awesomemusicplayer.networking;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.daniel.awesomemusicplayer.util.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+/**
+ * EmbeddedLyricsProvider reads the lyrics stored in the tags of the audio file:
+ * - ID3v2 (2.2 to 2.4) USLT frames, used by MP3 files (and some FLAC files)
+ * - Vorbis comments LYRICS or UNSYNCEDLYRICS, used by FLAC and Ogg (Vorbis and Opus) files
+ *
+ * The I/O is bounded: only the frame and block headers are read while looking for the lyrics,
+ * the other frames and blocks (e.g. the cover art) are skipped with a seek, and lyrics longer
+ * than MAX_LYRICS_BYTES are ignored. Ogg files are read up to MAX_OGG_BYTES.
+ */
+public class EmbeddedLyricsProvider implements LyricsProvider {
+
+    /** Log tag */
+    private static final String LOG_TAG = "EmbeddedLyrics";
+
+    /** Maximum size of a frame or block holding the lyrics */
+    private static final int MAX_LYRICS_BYTES = 256 * 1024;
+
+    /** Maximum size of a FLAC comment block */
+    private static final int MAX_COMMENT_BLOCK_BYTES = 1024 * 1024;
+
+    /** Maximum number of bytes read from the beginning of an Ogg file to find the comment packet */
+    private static final int MAX_OGG_BYTES = 1024 * 1024;
+
+    /** Maximum number of frames or blocks looked at */
+    private static final int MAX_FRAMES = 1024;
+
+    /** Time the chain waits for the tags */
+    private static final long TIMEOUT_MILLIS = 500;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+    private static final Charset UTF_16 = Charset.forName("UTF-16");
+    private static final Charset UTF_16BE = Charset.forName("UTF-16BE");
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Nullable
+    @Override
+    public String getLyrics(@NonNull File audioFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(audioFile, "r");
+        try {
+            byte[] magic = new byte[4];
+            if (!readAt(file, 0, magic))
+                return null;
+
+            long audioStart = 0;
+            if (magic[0] == 'I' && magic[1] == 'D' && magic[2] == '3') {
+                String lyrics = readID3(file);
+                if (lyrics != null)
+                    return lyrics;
+                // FLAC files may start with an ID3 tag
+                audioStart = getID3Length(file);
+                if (!readAt(file, audioStart, magic))
+                    return null;
+            }
+
+            if (magic[0] == 'f' && magic[1] == 'L' && magic[2] == 'a' && magic[3] == 'C')
+                return readFLAC(file, audioStart + 4);
+            if (magic[0] == 'O' && magic[1] == 'g' && magic[2] == 'g' && magic[3] == 'S')
+                return readOgg(file, audioStart);
+            return null;
+        } finally {
+            Utils.closeQuietly(file);
+        }
+    }
+
+    @Override
+    public long getTimeoutMillis() {
+        return TIMEOUT_MILLIS;
+    }
+
+    // --- ID3v2
+
+    /**
+     * @return The length of the ID3v2 tag at the beginning of the file, header and footer included
+     */
+    private static long getID3Length(RandomAccessFile file) throws IOException {
+        byte[] header = new byte[10];
+        if (!readAt(file, 0, header))
+            return 0;
+        boolean footer = header[3] == 4 && (header[5] & 0x10) != 0;
+        return 10 + synchsafe(header, 6) + (footer ? 10 : 0);
+    }
+
+    /**
+     * @return The lyrics of the first USLT frame of the ID3v2 tag, or null
+     */
+    @Nullable
+    private static String readID3(RandomAccessFile file) throws IOException {
+        byte[] header = new byte[10];
+        if (!readAt(file, 0, header))
+            return null;
+
+        int version = header[3];
+        int flags = header[5] & 0xFF;
+        long end = 10 + synchsafe(header, 6);
+        if (version < 2 || version > 4) {
+            Log.d(LOG_TAG, "Unsupported ID3 version: 2." + version);
+            return null;
+        }
+        // A compressed 2.2 tag, or a 2.3 tag unsynchronised as a whole - the frames can't be walked
+        if ((version == 2 && (flags & 0x40) != 0) || (version == 3 && (flags & 0x80) != 0))
+            return null;
+
+        long position = 10;
+        if (version >= 3 && (flags & 0x40) != 0) {
+            // Skip the extended header
+            byte[] size = new byte[4];
+            if (!readAt(file, position, size))
+                return null;
+            position += version == 3 ? 4 + bigEndian(size, 0, 4) : synchsafe(size, 0);
+        }
+        boolean tagUnsynchronised = version == 4 && (flags & 0x80) != 0;
+
+        int headerLength = version == 2 ? 6 : 10;
+        byte[] frameHeader = new byte[headerLength];
+        for (int frames = 0; frames < MAX_FRAMES && position + headerLength <= end; frames++) {
+            if (!readAt(file, position, frameHeader) || frameHeader[0] == 0)
+                break; // Padding
+
+            String id;
+            long size;
+            int frameFlags = 0;
+            if (version == 2) {
+                id = new String(frameHeader, 0, 3, ISO_8859_1);
+                size = bigEndian(frameHeader, 3, 3);
+            } else {
+                id = new String(frameHeader, 0, 4, ISO_8859_1);
+                size = version == 3 ? bigEndian(frameHeader, 4, 4) : synchsafe(frameHeader, 4);
+                frameFlags = frameHeader[9] & 0xFF;
+            }
+            long dataStart = position + headerLength;
+            position = dataStart + size;
+            if (position > end)
+                break;
+
+            if (!id.equals(version == 2 ? "ULT" : "USLT") || size > MAX_LYRICS_BYTES)
+                continue;
+
+            // Compressed or encrypted frames are skipped
+            if ((version == 3 && (frameFlags & 0xC0) != 0) || (version == 4 && (frameFlags & 0x0C) != 0))
+                continue;
+
+            byte[] data = new byte[(int) size];
+            if (!readAt(file, dataStart, data))
+                break;
+            int offset = 0;
+            int length = data.length;
+            if (version == 4) {
+                if (tagUnsynchronised || (frameFlags & 0x02) != 0)
+                    length = resynchronise(data, length);
+                if ((frameFlags & 0x01) != 0)
+                    offset = 4; // Data length indicator
+            }
+
+            String lyrics = decodeUSLT(data, offset, length);
+            if (lyrics != null && !lyrics.trim().isEmpty())
+                return lyrics.trim();
+        }
+        return null;
+    }
+
+    /**
+     * Decode the contents of a USLT frame: encoding, language, null-terminated descriptor, lyrics
+     */
+    @Nullable
+    private static String decodeUSLT(byte[] data, int offset, int length) {
+        if (length - offset < 4)
+            return null;
+        int encoding = data[offset];
+        Charset charset;
+        switch (encoding) {
+            case 0: charset = ISO_8859_1; break;
+            case 1: charset = UTF_16; break;
+            case 2: charset = UTF_16BE; break;
+            case 3: charset = UTF_8; break;
+            default: return null;
+        }
+        boolean wide = encoding == 1 || encoding == 2;
+
+        // Skip the descriptor and its terminator
+        int start = offset + 4;
+        int i = start;
+        if (wide) {
+            while (i + 1 < length && (data[i] != 0 || data[i + 1] != 0))
+                i += 2;
+            i += 2;
+        } else {
+            while (i < length && data[i] != 0)
+                i++;
+            i++;
+        }
+        if (i >= length)
+            return null;
+
+        // A UTF-16 text has its own byte order mark
+        return new String(data, i, length - i, charset).replace("\u0000", "");
+    }
+
+    /**
+     * Undo the unsynchronisation of frame data - remove the 0x00 inserted after every 0xFF
+     * @return The new length of the data
+     */
+    private static int resynchronise(byte[] data, int length) {
+        int out = 0;
+        for (int i = 0; i < length; i++) {
+            data[out++] = data[i];
+            if (data[i] == (byte) 0xFF && i + 1 < length && data[i + 1] == 0)
+                i++;
+        }
+        return out;
+    }
+
+    // --- FLAC
+
+    /**
+     * @return The lyrics in the Vorbis comment block of a FLAC file, or null
+     */
+    @Nullable
+    private static String readFLAC(RandomAccessFile file, long position) throws IOException {
+        byte[] header = new byte[4];
+        for (int blocks = 0; blocks < MAX_FRAMES; blocks++) {
+            if (!readAt(file, position, header))
+                return null;
+            boolean last = (header[0] & 0x80) != 0;
+            int type = header[0] & 0x7F;
+            int length = (int) bigEndian(header, 1, 3);
+            position += 4;
+
+            if (type == 4) {
+                if (length > MAX_COMMENT_BLOCK_BYTES)
+                    return null;
+                byte[] block = new byte[length];
+                return readAt(file, position, block) ? readVorbisComments(block, 0, length) : null;
+            }
+            if (last)
+                return null;
+            position += length;
+        }
+        return null;
+    }
+
+    // --- Ogg
+
+    /**
+     * @return The lyrics in the comment packet (the second packet) of the first logical stream of an Ogg file, or null
+     */
+    @Nullable
+    private static String readOgg(RandomAccessFile file, long position) throws IOException {
+        byte[] header = new byte[27];
+        byte[] lacing = new byte[255];
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        int packetIndex = 0;
+        long serial = -1;
+        long limit = position + MAX_OGG_BYTES;
+
+        while (position < limit) {
+            if (!readAt(file, position, header) || header[0] != 'O' || header[1] != 'g'
+                    || header[2] != 'g' || header[3] != 'S')
+                return null;
+            int segments = header[26] & 0xFF;
+            if (!readAt(file, position + 27, lacing, segments))
+                return null;
+            long pageSerial = littleEndian(header, 14, 4);
+            position += 27 + segments;
+
+            int dataLength = 0;
+            for (int i = 0; i < segments; i++)
+                dataLength += lacing[i] & 0xFF;
+            if (serial == -1)
+                serial = pageSerial;
+            if (pageSerial != serial) {
+                position += dataLength;
+                continue;
+            }
+
+            byte[] data = new byte[dataLength];
+            if (!readAt(file, position, data))
+                return null;
+            position += dataLength;
+
+            int offset = 0;
+            for (int i = 0; i < segments; i++) {
+                int segment = lacing[i] & 0xFF;
+                if (packetIndex == 1)
+                    packet.write(data, offset, segment);
+                offset += segment;
+                if (segment < 255) {
+                    // The end of a packet
+                    if (packetIndex == 1)
+                        return readCommentPacket(packet.toByteArray());
+                    packetIndex++;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The lyrics in a Vorbis ("\3vorbis") or Opus ("OpusTags") comment packet, or null
+     */
+    @Nullable
+    private static String readCommentPacket(byte[] packet) {
+        if (packet.length >= 7 && packet[0] == 3 && new String(packet, 1, 6, ISO_8859_1).equals("vorbis"))
+            return readVorbisComments(packet, 7, packet.length);
+        if (packet.length >= 8 && new String(packet, 0, 8, ISO_8859_1).equals("OpusTags"))
+            return readVorbisComments(packet, 8, packet.length);
+        return null;
+    }
+
+    // --- Vorbis comments
+
+    /**
+     * Read the lyrics from Vorbis comments: vendor string, number of comments, then the "NAME=value"
+     * comments, every string preceded by its length (little endian)
+     * @return The value of the LYRICS or UNSYNCEDLYRICS comment, or null
+     */
+    @Nullable
+    private static String readVorbisComments(byte[] data, int offset, int end) {
+        if (end - offset < 8)
+            return null;
+        long vendorLength = littleEndian(data, offset, 4);
+        if (vendorLength > end - offset - 8)
+            return null;
+        offset += 4 + (int) vendorLength;
+        long count = littleEndian(data, offset, 4);
+        offset += 4;
+
+        for (long i = 0; i < count && end - offset >= 4; i++) {
+            long length = littleEndian(data, offset, 4);
+            offset += 4;
+            if (length > end - offset)
+                return null;
+            int separator = -1;
+            for (int j = offset; j < offset + length; j++) {
+                if (data[j] == '=') {
+                    separator = j;
+                    break;
+                }
+            }
+            if (separator != -1 && length <= MAX_LYRICS_BYTES) {
+                String name = new String(data, offset, separator - offset, ISO_8859_1);
+                if (name.equalsIgnoreCase("LYRICS") || name.equalsIgnoreCase("UNSYNCEDLYRICS")) {
+                    String lyrics = new String(data, separator + 1, offset + (int) length - separator - 1, UTF_8).trim();
+                    if (!lyrics.isEmpty())
+                        return lyrics;
+                }
+            }
+            offset += (int) length;
+        }
+        return null;
+    }
+
+    // --- Helper methods
+
+    private static boolean readAt(RandomAccessFile file, long position, byte[] buffer) throws IOException {
+        return readAt(file, position, buffer, buffer.length);
+    }
+
+    /**
+     * Read length bytes at a position
+     * @return false if the file ends before
+     */
+    private static boolean readAt(RandomAccessFile file, long position, byte[] buffer, int length) throws IOException {
+        if (position < 0 || position + length > file.length())
+            return false;
+        file.seek(position);
+        file.readFully(buffer, 0, length);
+        return true;
+    }
+
+    private static long bigEndian(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = 0; i < length; i++)
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        return value;
+    }
+
+    private static long littleEndian(byte[] bytes, int offset, int length) {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--)
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        return value;
+    }
+
+    /**
+     * @return A 28 bit synchsafe integer - 4 bytes of 7 bits
+     */
+    private static long synchsafe(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 4; i++)
+            value = (value << 7) | (bytes[offset + i] & 0x7F);
+        return value;
+    }
+
+}
@@ -0,0 +1,210 @@
+package com.daniel.awesomemusicplayer.networking;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lyrics - the lines of the lyrics of a track, and their times if the lyrics are synced.
+ *
+ * Synced lyrics are parsed from the LRC format: every line is preceded by one or more time tags
+ * ("[mm:ss.xx]"), and the line is displayed from that time on. The times are parsed once into
+ * a sorted int[] index, so the line at a playback position is found by a binary search.
+ * Lyrics without time tags are plain lines, with no times.
+ */
+public final class Lyrics {
+
+    /** The lines, in display order */
+    private final String[] lines;
+
+    /** The start time of every line in milliseconds, ascending. null if the lyrics aren't synced. */
+    private final int[] times;
+
+    private Lyrics(String[] lines, int[] times) {
+        this.lines = lines;
+        this.times = times;
+    }
+
+    /**
+     * Parse lyrics, synced if they have LRC time tags, plain otherwise.
+     * In synced lyrics, the lines without time tags (e.g. ID tags like "[ar:Artist]") are dropped,
+     * and the "[offset:+/-ms]" tag shifts the times.
+     * A line with several time tags is repeated at every time.
+     * @param text The lyrics
+     */
+    @NonNull
+    public static Lyrics parse(@NonNull String text) {
+        String[] rawLines = text.split("\r\n|\r|\n", -1);
+        List<String> lines = new ArrayList<>();
+        long[] entries = new long[16];
+        int entryCount = 0;
+        int offset = 0;
+
+        for (String rawLine : rawLines) {
+            int position = 0;
+            int timeCount = 0;
+            int[] lineTimes = null;
+
+            // Read the tags at the beginning of the line
+            while (position < rawLine.length() && rawLine.charAt(position) == '[') {
+                int end = rawLine.indexOf(']', position);
+                if (end == -1)
+                    break;
+                int time = parseTime(rawLine, position + 1, end);
+                if (time >= 0) {
+                    if (lineTimes == null)
+                        lineTimes = new int[2];
+                    else if (timeCount == lineTimes.length)
+                        lineTimes = Arrays.copyOf(lineTimes, timeCount * 2);
+                    lineTimes[timeCount++] = time;
+                } else if (rawLine.startsWith("[offset:", position)) {
+                    try {
+                        String value = rawLine.substring(position + "[offset:".length(), end);
+                        offset = Integer.parseInt(value.trim().replace("+", ""));
+                    } catch (NumberFormatException ignored) {}
+                } else if (rawLine.indexOf(':', position) > end
+                        || rawLine.indexOf(':', position) == -1) {
+                    // Not a tag, but text in brackets
+                    break;
+                }
+                position = end + 1;
+            }
+
+            // Lines without a time tag aren't displayed in synced lyrics
+            if (timeCount == 0)
+                continue;
+
+            // Entry: the time in the high bits, the line index in the low bits,
+            // so sorting by time keeps the file order
+            int lineIndex = lines.size();
+            lines.add(rawLine.substring(position).trim());
+            for (int i = 0; i < timeCount; i++) {
+                if (entryCount == entries.length)
+                    entries = Arrays.copyOf(entries, entryCount * 2);
+                entries[entryCount++] = ((long) lineTimes[i] << 32) | lineIndex;
+            }
+        }
+
+        if (entryCount == 0)
+            return new Lyrics(trim(rawLines), null);
+
+        // Synced - the lines are the timed lines, in time order
+        Arrays.sort(entries, 0, entryCount);
+        String[] syncedLines = new String[entryCount];
+        int[] times = new int[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            syncedLines[i] = lines.get((int) entries[i]);
+            // A positive offset makes the lines appear sooner
+            times[i] = Math.max(0, (int) (entries[i] >>> 32) - offset);
+        }
+        return new Lyrics(syncedLines, times);
+    }
+
+    /**
+     * @return The number of lines
+     */
+    public int getLineCount() {
+        return lines.length;
+    }
+
+    @NonNull
+    public String getLine(int index) {
+        return lines[index];
+    }
+
+    /**
+     * @return true if the lines have times
+     */
+    public boolean isSynced() {
+        return times != null;
+    }
+
+    /**
+     * @return The start time of a line in milliseconds, the lyrics must be synced
+     */
+    public int getTime(int index) {
+        return times[index];
+    }
+
+    /**
+     * Find the line displayed at a playback position
+     * @param positionMillis The playback position
+     * @return The index of the last line that starts at or before the position,
+     *         -1 if the position is before the first line or the lyrics aren't synced
+     */
+    public int getLineAt(int positionMillis) {
+        if (times == null)
+            return -1;
+        int low = 0;
+        int high = times.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] <= positionMillis)
+                low = middle + 1;
+            else
+                high = middle - 1;
+        }
+        return high;
+    }
+
+    /**
+     * Parse a time tag, "mm:ss", "mm:ss.x", "mm:ss.xx" or "mm:ss.xxx"
+     * @return The time in milliseconds, or -1 if the tag isn't a time tag
+     */
+    private static int parseTime(String line, int start, int end) {
+        int colon = line.indexOf(':', start);
+        if (colon <= start || colon >= end)
+            return -1;
+        int minutes = parseDigits(line, start, colon);
+        int dot = colon + 1;
+        while (dot < end && line.charAt(dot) != '.' && line.charAt(dot) != ':')
+            dot++;
+        int seconds = parseDigits(line, colon + 1, dot);
+        if (minutes < 0 || minutes > 9999 || seconds < 0 || seconds >= 60)
+            return -1;
+
+        int millis = 0;
+        if (dot < end) {
+            int fraction = parseDigits(line, dot + 1, end);
+            int digits = end - dot - 1;
+            if (fraction < 0 || digits > 3)
+                return -1;
+            for (int i = digits; i < 3; i++)
+                fraction *= 10;
+            millis = fraction;
+        }
+        return (minutes * 60 + seconds) * 1000 + millis;
+    }
+
+    /**
+     * @return The value of a run of 1 to 6 decimal digits, or -1 if there are other characters
+     */
+    private static int parseDigits(String line, int start, int end) {
+        if (start >= end || end - start > 6)
+            return -1;
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /**
+     * @return The lines without the leading and trailing blank lines
+     */
+    private static String[] trim(String[] lines) {
+        int start = 0;
+        int end = lines.length;
+        while (start < end && lines[start].trim().isEmpty())
+            start++;
+        while (end > start && lines[end - 1].trim().isEmpty())
+            end--;
+        return Arrays.copyOfRange(lines, start, end);
+    }
+
+}
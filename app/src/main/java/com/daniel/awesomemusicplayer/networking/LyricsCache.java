@@ -0,0 +1,425 @@
+package com.daniel.awesomemusicplayer.networking;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.daniel.awesomemusicplayer.util.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * LyricsCache keeps the lyrics of tracks by track ID, so a track's lyrics are downloaded once
+ * and not on every play or activity restart.
+ *
+ * There are two tiers: an in-memory LRU bounded by the size of the lyrics, and a directory of
+ * gzip-compressed files (one per track) in the app's cache directory, bounded by its total size.
+ * Memory lookups are synchronous, disk lookups and writes run on a single background thread.
+ *
+ * Tracks without lyrics are cached as well, as entries without lyrics, so they don't hit the
+ * network on every play. These entries expire after NEGATIVE_TTL_MILLIS, since the lyrics may
+ * be published later.
+ *
+ * Entries with lyrics keep the Validators of the page they were extracted from. After
+ * REVALIDATE_AFTER_MILLIS they're stale: they're still used, but they're revalidated with a
+ * conditional request, which costs a 304 response instead of the page if the lyrics haven't changed.
+ */
+public class LyricsCache {
+
+    /** Cache entry - the lyrics of a track, or the fact that it has none */
+    public static final class Entry {
+
+        /** The lyrics, null if the track has no lyrics */
+        private final String lyrics;
+
+        /** The time the lyrics have been looked up or revalidated, in System.currentTimeMillis() time */
+        private final long fetchTime;
+
+        /** The validators of the page, null if it had none */
+        private final Validators validators;
+
+        Entry(@Nullable String lyrics, long fetchTime, @Nullable Validators validators) {
+            this.lyrics = lyrics;
+            this.fetchTime = fetchTime;
+            this.validators = validators;
+        }
+
+        /**
+         * @return The lyrics, or null if the track has no lyrics
+         */
+        @Nullable
+        public String getLyrics() {
+            return lyrics;
+        }
+
+        public long getFetchTime() {
+            return fetchTime;
+        }
+
+        /**
+         * @return The validators of the page the lyrics were extracted from, or null
+         */
+        @Nullable
+        public Validators getValidators() {
+            return validators;
+        }
+
+        /**
+         * @return true if the lyrics should be revalidated - they're older than REVALIDATE_AFTER_MILLIS
+         */
+        public boolean isStale() {
+            long now = System.currentTimeMillis();
+            return lyrics != null && (now - fetchTime > REVALIDATE_AFTER_MILLIS || now < fetchTime);
+        }
+
+        /**
+         * @return true if the entry should no longer be used - it has no lyrics and it's older than the TTL
+         */
+        boolean isExpired(long now) {
+            return lyrics == null && (now - fetchTime > NEGATIVE_TTL_MILLIS || now < fetchTime);
+        }
+
+        /**
+         * @return The approximate memory size of the entry
+         */
+        int getSize() {
+            return ENTRY_OVERHEAD + (lyrics != null ? lyrics.length() * 2 : 0);
+        }
+
+    }
+
+    /** Callback of load(), called on the UI thread */
+    public interface LoadListener {
+        /**
+         * @param entry The cached entry, or null if the track isn't cached
+         */
+        void onLoaded(@Nullable Entry entry);
+    }
+
+    /** Log tag */
+    private static final String LOG_TAG = "LyricsCache";
+
+    /** Name of the cache directory */
+    private static final String DIRECTORY_NAME = "lyrics";
+
+    /** Extension of the cache files */
+    private static final String FILE_EXTENSION = ".gz";
+
+    /** Magic number at the beginning of a cache file */
+    private static final int MAGIC = 0x4C595243;
+
+    /** File format version */
+    private static final int VERSION = 2;
+
+    /** I/O buffer size */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /** Maximum total size of the lyrics kept in memory, in bytes */
+    private static final int MAX_MEMORY_BYTES = 1024 * 1024;
+
+    /** Maximum total size of the cache files, in bytes */
+    private static final long MAX_DISK_BYTES = 4 * 1024 * 1024;
+
+    /** Approximate memory size of an entry without the lyrics */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    /** Time after which a track without lyrics is looked up again */
+    private static final long NEGATIVE_TTL_MILLIS = 3 * 24 * 60 * 60 * 1000L;
+
+    /** Time after which cached lyrics are revalidated */
+    private static final long REVALIDATE_AFTER_MILLIS = 14 * 24 * 60 * 60 * 1000L;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** The cache instance shared by the entire process */
+    private static LyricsCache instance;
+
+    /** The memory tier */
+    private final LruCache<Long, Entry> memory;
+
+    /** The disk tier directory */
+    private final File directory;
+
+    /** Thread of the disk tier */
+    private final ExecutorService diskExecutor = Executors.newSingleThreadExecutor();
+
+    /** Handler of the UI thread, for the LoadListener callbacks */
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /** Total size of the cache files, -1 until it's been computed. Accessed on the disk thread. */
+    private long diskBytes = -1;
+
+    private LyricsCache(@NonNull File directory) {
+        this.directory = directory;
+        this.memory = new LruCache<Long, Entry>(MAX_MEMORY_BYTES) {
+            @Override
+            protected int sizeOf(Long trackId, Entry entry) {
+                return entry.getSize();
+            }
+        };
+    }
+
+    /**
+     * @return The cache instance shared by the entire process
+     */
+    public static synchronized LyricsCache getInstance(@NonNull Context context) {
+        if (instance == null)
+            instance = new LyricsCache(new File(context.getApplicationContext().getCacheDir(), DIRECTORY_NAME));
+        return instance;
+    }
+
+    /**
+     * Look a track up in the memory tier
+     * @return The entry, or null if it isn't in memory (it may still be on disk, see load())
+     */
+    @Nullable
+    public Entry get(long trackId) {
+        Entry entry = memory.get(trackId);
+        if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+            memory.remove(trackId);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Look a track up in both tiers. An entry found on disk is moved to the memory tier.
+     * @param listener Called on the UI thread with the entry, or null if the track isn't cached
+     */
+    public void load(final long trackId, @NonNull final LoadListener listener) {
+        Entry entry = get(trackId);
+        if (entry != null) {
+            listener.onLoaded(entry);
+            return;
+        }
+
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Entry entry = readEntry(trackId);
+                if (entry != null)
+                    memory.put(trackId, entry);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onLoaded(entry);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Cache the lookup result of a track. Putting the lyrics of an entry that has been revalidated
+     * renews it.
+     * @param lyrics The lyrics, or null if the track has no lyrics
+     * @param validators The validators of the page the lyrics were extracted from, or null
+     */
+    public void put(final long trackId, @Nullable String lyrics, @Nullable Validators validators) {
+        final Entry entry = new Entry(lyrics, System.currentTimeMillis(), validators);
+        memory.put(trackId, entry);
+        diskExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writeEntry(trackId, entry);
+            }
+        });
+    }
+
+    // --- Disk tier, all methods are called on the disk thread
+
+    private File getFile(long trackId) {
+        return new File(directory, trackId + FILE_EXTENSION);
+    }
+
+    /**
+     * Read the entry of a track from its file
+     * File format (gzip-compressed, big endian): int magic, int version, long fetch time,
+     * the ETag and the Last-Modified validators (see readString()), int lyrics length in bytes
+     * (-1 if the track has no lyrics), then the lyrics in UTF-8.
+     * @return The entry, or null if there's no valid entry
+     */
+    @Nullable
+    private Entry readEntry(long trackId) {
+        File file = getFile(trackId);
+        if (!file.exists())
+            return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new GZIPInputStream(new FileInputStream(file), BUFFER_SIZE), BUFFER_SIZE));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Unknown format");
+
+            long fetchTime = in.readLong();
+            String etag = readString(in);
+            String lastModified = readString(in);
+            int length = in.readInt();
+            String lyrics = null;
+            if (length >= 0) {
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                lyrics = new String(bytes, UTF_8);
+            }
+            in.close();
+            in = null;
+
+            Validators validators = etag != null || lastModified != null
+                    ? new Validators(etag, lastModified) : null;
+            Entry entry = new Entry(lyrics, fetchTime, validators);
+            if (entry.isExpired(System.currentTimeMillis())) {
+                deleteFile(file);
+                return null;
+            }
+
+            // The files are trimmed by last modified time, so touch the ones in use
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(System.currentTimeMillis());
+            return entry;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Discarding an unreadable cache file: " + file, e);
+            Utils.closeQuietly(in);
+            deleteFile(file);
+            return null;
+        }
+    }
+
+    /**
+     * Write the entry of a track to its file, see readEntry() for the format
+     */
+    private void writeEntry(long trackId, Entry entry) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(LOG_TAG, "Failed to create the cache directory.");
+            return;
+        }
+
+        File file = getFile(trackId);
+        File tempFile = new File(file.getPath() + ".tmp");
+        long previousLength = file.length();
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(entry.getFetchTime());
+            Validators validators = entry.getValidators();
+            writeString(out, validators != null ? validators.getETag() : null);
+            writeString(out, validators != null ? validators.getLastModified() : null);
+            if (entry.getLyrics() != null) {
+                byte[] bytes = entry.getLyrics().getBytes(UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            } else {
+                out.writeInt(-1);
+            }
+            out.close();
+            out = null;
+
+            if (!tempFile.renameTo(file))
+                throw new IOException("Failed to rename " + tempFile);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to write the cache file of track " + trackId, e);
+            Utils.closeQuietly(out);
+            deleteFile(tempFile);
+            return;
+        }
+
+        if (diskBytes == -1)
+            diskBytes = computeDiskBytes();
+        else
+            diskBytes += file.length() - previousLength;
+        if (diskBytes > MAX_DISK_BYTES)
+            trim();
+    }
+
+    /**
+     * @return The total size of the cache files
+     */
+    private long computeDiskBytes() {
+        File[] files = directory.listFiles();
+        long total = 0;
+        if (files != null) {
+            for (File file : files)
+                total += file.length();
+        }
+        return total;
+    }
+
+    /**
+     * Delete the least recently used files, until the cache is at 3/4 of its maximum size
+     */
+    private void trim() {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(lastModified[a], lastModified[b]);
+            }
+        });
+
+        long total = computeDiskBytes();
+        int deleted = 0;
+        for (int i = 0; i < order.length && total > MAX_DISK_BYTES * 3 / 4; i++) {
+            File file = files[order[i]];
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+                deleted++;
+            }
+        }
+        diskBytes = total;
+        Log.d(LOG_TAG, "Trimmed " + deleted + " cache files, " + total + " bytes left.");
+    }
+
+    /**
+     * Read a nullable string - a boolean telling whether it's there, followed by the string in modified UTF-8
+     */
+    @Nullable
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Write a nullable string, see readString()
+     */
+    private static void writeString(DataOutputStream out, @Nullable String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null)
+            out.writeUTF(string);
+    }
+
+    private static void deleteFile(File file) {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+}
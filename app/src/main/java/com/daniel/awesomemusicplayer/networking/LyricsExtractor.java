@@ -0,0 +1,135 @@
+package com.daniel.awesomemusicplayer.networking;
+
+import com.daniel.awesomemusicplayer.util.Utils;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * LyricsExtractor extracts the lyrics from an azlyrics.com page while it's being downloaded.
+ *
+ * The lyrics are the contents of the div that follows the comment ending with ". -->"
+ * (the licensing notice), up to its closing tag. A small state machine scans the page one
+ * character at a time: it looks for the end of the comment, then copies the text - decoding
+ * entities, turning <br> tags into line breaks and dropping the other tags - and stops reading
+ * at the </div>, so the rest of the page is never downloaded. Line breaks in the HTML source
+ * are whitespace, only <br> tags break lines.
+ *
+ * The extractor keeps no state between pages, one instance can be shared by all threads.
+ */
+public class LyricsExtractor implements ResponseReader {
+
+    /** The end of the comment that precedes the lyrics */
+    private static final String START_MARKER = ". -->";
+
+    /** Number of characters of a tag that are kept, enough to tell the tags apart */
+    private static final int MAX_TAG_LENGTH = 8;
+
+    /** Maximum length of an entity name, longer names are taken as text */
+    private static final int MAX_ENTITY_LENGTH = 10;
+
+    /** Size of the read buffer, in chars */
+    private static final int BUFFER_SIZE = 4 * 1024;
+
+    /** Scanner states */
+    private static final int STATE_SEEK_START   = 0;
+    private static final int STATE_TEXT         = 1;
+    private static final int STATE_TAG          = 2;
+    private static final int STATE_ENTITY       = 3;
+
+    /**
+     * Read a page up to the end of the lyrics
+     * @return The lyrics as plain text, or null if the page has no lyrics
+     */
+    @Override
+    public String read(Reader reader) throws IOException {
+        char[] buffer = new char[BUFFER_SIZE];
+        char[] name = new char[Math.max(MAX_TAG_LENGTH, MAX_ENTITY_LENGTH)];
+        int nameLength = 0;
+        StringBuilder lyrics = new StringBuilder();
+        int state = STATE_SEEK_START;
+        int matched = 0;
+
+        int count;
+        while ((count = reader.read(buffer)) != -1) {
+            for (int i = 0; i < count; i++) {
+                char c = buffer[i];
+                switch (state) {
+                    case STATE_SEEK_START:
+                        if (c == START_MARKER.charAt(matched)) {
+                            if (++matched == START_MARKER.length())
+                                state = STATE_TEXT;
+                        } else {
+                            // The first character of the marker doesn't appear in the rest of it
+                            matched = c == START_MARKER.charAt(0) ? 1 : 0;
+                        }
+                        break;
+
+                    case STATE_TEXT:
+                        if (c == '<') {
+                            state = STATE_TAG;
+                            nameLength = 0;
+                        } else if (c == '&') {
+                            state = STATE_ENTITY;
+                            nameLength = 0;
+                        } else if (c != '\r' && c != '\n') {
+                            lyrics.append(c);
+                        }
+                        break;
+
+                    case STATE_TAG:
+                        if (c == '>') {
+                            // The end of the lyrics - stop reading
+                            if (isTag(name, nameLength, "/div"))
+                                return lyrics.toString();
+                            if (isTag(name, nameLength, "br"))
+                                lyrics.append("\r\n");
+                            state = STATE_TEXT;
+                        } else if (nameLength < MAX_TAG_LENGTH) {
+                            name[nameLength++] = Character.toLowerCase(c);
+                        }
+                        break;
+
+                    case STATE_ENTITY:
+                        if (c == ';') {
+                            int codePoint = Utils.decodeHTMLEntity(name, nameLength);
+                            if (codePoint != -1)
+                                lyrics.appendCodePoint(codePoint);
+                            else
+                                lyrics.append('&').append(name, 0, nameLength).append(';');
+                            state = STATE_TEXT;
+                        } else if (nameLength < MAX_ENTITY_LENGTH && (Character.isLetterOrDigit(c) || c == '#')) {
+                            name[nameLength++] = c;
+                        } else {
+                            // Not an entity - a literal '&', the character is scanned again as text
+                            lyrics.append('&').append(name, 0, nameLength);
+                            state = STATE_TEXT;
+                            i--;
+                        }
+                        break;
+                }
+            }
+        }
+
+        // The page ended before the lyrics did
+        return null;
+    }
+
+    /**
+     * @return true if the beginning of a tag is the given tag name, followed by its end,
+     *         whitespace or '/' (e.g. "br", "br/" and "br class=x" are all "br")
+     */
+    private static boolean isTag(char[] name, int length, String tag) {
+        if (length < tag.length())
+            return false;
+        for (int i = 0; i < tag.length(); i++) {
+            if (name[i] != tag.charAt(i))
+                return false;
+        }
+        if (length == tag.length())
+            return true;
+        char next = name[tag.length()];
+        return next == '/' || Character.isWhitespace(next);
+    }
+
+}
@@ -1,13 +1,23 @@
 package com.daniel.awesomemusicplayer.networking;
 
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.daniel.awesomemusicplayer.tracks.Track;
-import com.daniel.awesomemusicplayer.util.Utils;
+
+import java.net.HttpURLConnection;
+import java.util.concurrent.Future;
 
 /**
- * LyricsFinder is responsible for executing an HTTP request to azlyrics.com.
- * It finds, reads and parses the lyrics of a requested track (song).
+ * LyricsFinder finds the lyrics of a requested track (song).
+ * The local sources - sidecar files and tags, see LyricsProviderChain - are looked at first.
+ * If they have no lyrics, the lyrics are read from the LyricsCache, or downloaded from
+ * azlyrics.com and cached, so a track is downloaded only once. Stale cached lyrics are
+ * displayed right away and revalidated in the background, the listener is called again
+ * only if they have changed.
  */
 public class LyricsFinder {
 
@@ -23,14 +33,31 @@ public class LyricsFinder {
     /** Log tag */
     private static final String LOG_TAG = "LyricsFinder";
 
-    /** The HTTP request task */
-    private RequestExecutor task;
+    /** Reads the lyrics out of the pages, shared by all the requests */
+    private static final LyricsExtractor LYRICS_EXTRACTOR = new LyricsExtractor();
+
+    /** The lookup in the local sources */
+    private Future<?> localTask;
+
+    /** The HTTP request */
+    private RequestEngine.Request task;
 
     /** Callback instance */
     private LyricsFinderListener lyricsFinderListener;
 
-    public LyricsFinder(LyricsFinderListener lyricsFinderListener) {
+    /** The local sources */
+    private final LyricsProviderChain lyricsProviderChain;
+
+    /** The lyrics cache */
+    private final LyricsCache lyricsCache;
+
+    /** Number of requests so far, results of any request but the last one are ignored */
+    private int requestCount;
+
+    public LyricsFinder(@NonNull Context context, LyricsFinderListener lyricsFinderListener) {
         this.lyricsFinderListener = lyricsFinderListener;
+        this.lyricsProviderChain = LyricsProviderChain.getInstance(context);
+        this.lyricsCache = LyricsCache.getInstance(context);
     }
 
     /**
@@ -38,38 +65,150 @@ public class LyricsFinder {
      * This method passes null to lyricsFinderListener.onResult() if lyrics are not found.
      * @param track The selected track
      */
-    public void parse(Track track) {
+    public void parse(final Track track) {
         // Abort the previous request and start a new one
+        cancel();
+        final int request = requestCount;
+
+        localTask = lyricsProviderChain.find(track, new LyricsProviderChain.Listener() {
+            @Override
+            public void onResult(@Nullable String lyrics) {
+                if (request != requestCount)
+                    return;
+                localTask = null;
+                if (lyrics != null) {
+                    Log.d(LOG_TAG, "Local lyrics found: " + track);
+                    if (lyricsFinderListener != null)
+                        lyricsFinderListener.onResult(lyrics);
+                } else {
+                    findOnline(track, request);
+                }
+            }
+        });
+    }
+
+    /**
+     * Abort the current request, the listener won't be called until parse() is called again.
+     * Called when the activity is stopped, so a request in flight doesn't keep it alive.
+     */
+    public void cancel() {
+        requestCount++;
+        if (localTask != null) {
+            localTask.cancel(true);
+            localTask = null;
+        }
         if (task != null) {
-            task.stop();
+            task.cancel();
             task = null;
         }
+    }
+
+    /**
+     * Get the lyrics of a track that has no local lyrics from the cache, or download them
+     * @param request The number of the request, the lookup stops if another one has started
+     */
+    private void findOnline(final Track track, final int request) {
+        // Look the track up in memory, then on disk, and download it only if it isn't cached
+        lyricsCache.load(track.getId(), new LyricsCache.LoadListener() {
+            @Override
+            public void onLoaded(@Nullable final LyricsCache.Entry entry) {
+                if (request != requestCount)
+                    return;
+                if (entry != null) {
+                    Log.d(LOG_TAG, "Cached lyrics found: " + track);
+                    if (lyricsFinderListener != null)
+                        lyricsFinderListener.onResult(entry.getLyrics());
+                    if (!entry.isStale())
+                        return;
+
+                    // Revalidate, and update the lyrics only if they have changed
+                    task = download(track, lyricsCache, entry, true, new LyricsFinderListener() {
+                        @Override
+                        public void onResult(String result) {
+                            task = null;
+                            if (lyricsFinderListener != null && !TextUtils.equals(result, entry.getLyrics()))
+                                lyricsFinderListener.onResult(result);
+                        }
+                    });
+                } else {
+                    task = download(track, lyricsCache, null, false, new LyricsFinderListener() {
+                        @Override
+                        public void onResult(String result) {
+                            task = null;
+                            if (lyricsFinderListener != null)
+                                lyricsFinderListener.onResult(result);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Start downloading the lyrics of a track. The result is cached before it's passed to the listener.
+     * @param staleEntry The cached entry to revalidate, null to download the lyrics unconditionally.
+     *                   If the revalidation fails, the listener gets the stale lyrics.
+     * @param background Should the request run in the background, at a low priority?
+     * @param listener Called on the UI thread with the lyrics (null if not found), may be null
+     * @return The request
+     */
+    static RequestEngine.Request download(final Track track, final LyricsCache lyricsCache,
+                                          @Nullable final LyricsCache.Entry staleEntry, boolean background,
+                                          final LyricsFinderListener listener) {
+        // Initialize the listener
+        ConditionalRequestListener requestListener = new ConditionalRequestListener() {
+
+            /** Should the result be cached? Not after an error, unless the page doesn't exist */
+            private boolean cacheable = true;
+
+            /** The validators of the page */
+            private Validators validators;
+
+            /** Has the stale entry been found valid? */
+            private boolean notModified;
+
+            @Override
+            public void onValidators(@Nullable Validators validators) {
+                this.validators = validators;
+            }
+
+            @Override
+            public void onNotModified() {
+                notModified = true;
+            }
 
-        // Initialize the task
-        RequestExecutor requestExecutor = new RequestExecutor(new RequestListener() {
             @Override
             public String doOnBackgroundThread(String result) {
-                return extractLyrics(result);
+                // The lyrics have already been extracted by the LyricsExtractor
+                return result;
             }
 
             @Override
             public void doOnUIThread(String result) {
-                task = null;
-                if (lyricsFinderListener != null)
-                    lyricsFinderListener.onResult(result);
+                if (notModified) {
+                    // Renew the stale entry
+                    result = staleEntry.getLyrics();
+                    lyricsCache.put(track.getId(), result, staleEntry.getValidators());
+                } else if (cacheable) {
+                    lyricsCache.put(track.getId(), result, validators);
+                } else if (staleEntry != null) {
+                    // Keep using the stale lyrics, they're revalidated again next time
+                    result = staleEntry.getLyrics();
+                }
+                if (listener != null)
+                    listener.onResult(result);
             }
 
             @Override
             public void onError(int errorCode, Exception e) {
                 Log.d(LOG_TAG, "Error: [" + errorCode + "] " + e.getMessage());
+                cacheable = errorCode == HttpURLConnection.HTTP_NOT_FOUND;
             }
-        });
-
-        // Give a reference to the running task
-        task = requestExecutor;
+        };
 
         // Parse the track data and convert it to the URL
-        String artistName = track.getArtist().replaceAll("[^A-Za-z0-9]", "")
+        String artist = track.getArtist() != null ? track.getArtist() : "";
+        String artistName = artist.replaceAll("[^A-Za-z0-9]", "")
                 .replaceAll("\\s", "").toLowerCase();
         String songName = track.getTitle().replaceAll("[^A-Za-z0-9]", "")
                 .replaceAll("\\s", "").toLowerCase();
@@ -78,33 +217,11 @@ public class LyricsFinder {
         Log.d(LOG_TAG, "Lyrics URL: " + lyricsURL);
 
         // Execute the request
-        requestExecutor.execute(lyricsURL);
-    }
-
-    /**
-     * Extracts the lyrics from the webpage
-     * @param data HTML content of the webpage
-     * @return The song lyrics as plain text
-     */
-    private String extractLyrics(String data) {
-
-        String find = ". -->";
-
-        int index = data.indexOf(find);
-        if (index != -1) {
-
-            int startPoint = index + find.length();
-
-            String rawText = data.substring(startPoint, data.indexOf("</div>", startPoint));
-
-            // Convert HTML special characters and tags to text
-            return Utils.translateSpecialHTMLCharacters(rawText)
-                    .replaceAll("<br>", "\r\n")
-                    .replaceAll("<i>", "")
-                    .replaceAll("</i>", "");
-        }
-
-        return null;
+        RequestEngine requestEngine = RequestEngine.getInstance();
+        Validators validators = staleEntry != null ? staleEntry.getValidators() : null;
+        return background
+                ? requestEngine.executeInBackground(lyricsURL, LYRICS_EXTRACTOR, validators, requestListener)
+                : requestEngine.execute(lyricsURL, LYRICS_EXTRACTOR, validators, requestListener);
     }
 
-}
\ No newline at end of file
+}
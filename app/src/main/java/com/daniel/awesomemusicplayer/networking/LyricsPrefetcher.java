@@ -0,0 +1,138 @@
+package com.daniel.awesomemusicplayer.networking;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.daniel.awesomemusicplayer.tracks.Track;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * LyricsPrefetcher downloads the lyrics of the tracks that are about to be played into the
+ * LyricsCache, so they are displayed as soon as the tracks start.
+ *
+ * The requests run on the RequestEngine's background thread, at a low priority, so they don't
+ * compete with the playback or the UI. The prediction is replaced on every call to prefetch(),
+ * and requests for tracks that are no longer predicted are cancelled. Stale cached lyrics
+ * are revalidated.
+ * Tracks with local lyrics (see LyricsProviderChain) are never downloaded.
+ */
+public class LyricsPrefetcher {
+
+    /** Log tag */
+    private static final String LOG_TAG = "LyricsPrefetcher";
+
+    /** The local sources */
+    private final LyricsProviderChain lyricsProviderChain;
+
+    /** The lyrics cache */
+    private final LyricsCache lyricsCache;
+
+    /** The lookups in the local sources, by track ID */
+    private final LongSparseArray<Future<?>> localLookups = new LongSparseArray<>();
+
+    /** The running and pending requests, by track ID */
+    private final LongSparseArray<RequestEngine.Request> requests = new LongSparseArray<>();
+
+    /** IDs of the predicted tracks */
+    private long[] predictedIds = new long[0];
+
+    public LyricsPrefetcher(@NonNull Context context) {
+        this.lyricsProviderChain = LyricsProviderChain.getInstance(context);
+        this.lyricsCache = LyricsCache.getInstance(context);
+    }
+
+    /**
+     * Prefetch the lyrics of the tracks that are predicted to play next.
+     * Requests for tracks that are no longer predicted are cancelled.
+     * @param tracks The predicted tracks, empty to cancel all the requests
+     */
+    public void prefetch(@NonNull List<Track> tracks) {
+        long[] ids = new long[tracks.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = tracks.get(i).getId();
+        predictedIds = ids;
+
+        // Cancel the lookups and requests of tracks that are no longer predicted
+        for (int i = localLookups.size() - 1; i >= 0; i--) {
+            if (!isPredicted(localLookups.keyAt(i))) {
+                localLookups.valueAt(i).cancel(true);
+                localLookups.removeAt(i);
+            }
+        }
+        for (int i = requests.size() - 1; i >= 0; i--) {
+            if (!isPredicted(requests.keyAt(i))) {
+                Log.d(LOG_TAG, "Cancelling the prefetch of track " + requests.keyAt(i));
+                requests.valueAt(i).cancel();
+                requests.removeAt(i);
+            }
+        }
+
+        for (final Track track : tracks) {
+            final long trackId = track.getId();
+            LyricsCache.Entry cached = lyricsCache.get(trackId);
+            if (localLookups.get(trackId) != null || requests.get(trackId) != null
+                    || (cached != null && !cached.isStale()))
+                continue;
+
+            localLookups.put(trackId, lyricsProviderChain.find(track, new LyricsProviderChain.Listener() {
+                @Override
+                public void onResult(@Nullable String lyrics) {
+                    localLookups.remove(trackId);
+                    if (lyrics == null && isPredicted(trackId))
+                        prefetchOnline(track);
+                }
+            }));
+        }
+    }
+
+    /**
+     * Cancel all the requests
+     */
+    public void cancel() {
+        predictedIds = new long[0];
+        for (int i = 0; i < localLookups.size(); i++)
+            localLookups.valueAt(i).cancel(true);
+        localLookups.clear();
+        for (int i = 0; i < requests.size(); i++)
+            requests.valueAt(i).cancel();
+        requests.clear();
+    }
+
+    /**
+     * Download the lyrics of a track without local lyrics, unless they're cached
+     */
+    private void prefetchOnline(final Track track) {
+        final long trackId = track.getId();
+        // Download the lyrics if they aren't on disk either (or are stale), and the track is still predicted
+        lyricsCache.load(trackId, new LyricsCache.LoadListener() {
+            @Override
+            public void onLoaded(@Nullable LyricsCache.Entry entry) {
+                if ((entry != null && !entry.isStale()) || !isPredicted(trackId) || requests.get(trackId) != null)
+                    return;
+
+                Log.d(LOG_TAG, (entry != null ? "Revalidating lyrics: " : "Prefetching lyrics: ") + track);
+                requests.put(trackId, LyricsFinder.download(track, lyricsCache, entry, true,
+                        new LyricsFinder.LyricsFinderListener() {
+                            @Override
+                            public void onResult(String result) {
+                                requests.remove(trackId);
+                            }
+                        }));
+            }
+        });
+    }
+
+    private boolean isPredicted(long trackId) {
+        for (long id : predictedIds) {
+            if (id == trackId)
+                return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,31 @@
+package com.daniel.awesomemusicplayer.networking;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A local source of lyrics, one tier of the LyricsProviderChain.
+ * Providers are called on a worker thread and must read a bounded amount of data.
+ */
+public interface LyricsProvider {
+
+    /**
+     * Look the lyrics of a track up
+     * @param audioFile The audio file of the track
+     * @return The lyrics, or null if this provider has no lyrics for the track
+     * @throws IOException If the source can't be read, the next tier is tried
+     */
+    @WorkerThread
+    @Nullable
+    String getLyrics(@NonNull File audioFile) throws IOException;
+
+    /**
+     * @return The time the chain waits for this provider before moving on to the next tier
+     */
+    long getTimeoutMillis();
+
+}
@@ -0,0 +1,168 @@
+package com.daniel.awesomemusicplayer.networking;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.daniel.awesomemusicplayer.tracks.LibraryScanner;
+import com.daniel.awesomemusicplayer.tracks.Track;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * LyricsProviderChain looks the lyrics of a track up in the local sources - the LyricsProviders -
+ * in order, and returns the first lyrics found. It's the first step of a lookup: the cache and
+ * the network are used only if no local source has the lyrics.
+ *
+ * Every provider gets its own timeout. A provider that doesn't answer in time (e.g. a file on a
+ * slow SD card) is abandoned on its thread, and the chain moves on to the next tier.
+ */
+public class LyricsProviderChain {
+
+    /** Callback of find(), called on the UI thread */
+    public interface Listener {
+        /**
+         * @param lyrics The lyrics, or null if no provider has lyrics for the track
+         */
+        void onResult(@Nullable String lyrics);
+    }
+
+    /** Log tag */
+    private static final String LOG_TAG = "LyricsProviderChain";
+
+    /** Maximum number of provider threads, including the abandoned ones that are still running */
+    private static final int MAX_PROVIDER_THREADS = 3;
+
+    /** Time an idle provider thread is kept alive */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /** The chain instance shared by the entire process */
+    private static LyricsProviderChain instance;
+
+    /** The providers, in the order they're called */
+    private final List<LyricsProvider> providers;
+
+    /** Finds the audio files */
+    private final LibraryScanner libraryScanner;
+
+    /** Runs the lookups, one at a time */
+    private final ExecutorService chainExecutor = Executors.newSingleThreadExecutor();
+
+    /** Runs the providers, so they can be abandoned when they time out */
+    private final ThreadPoolExecutor providerExecutor = new ThreadPoolExecutor(0, MAX_PROVIDER_THREADS,
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+
+    /** Handler of the UI thread, for the Listener callbacks */
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    public LyricsProviderChain(@NonNull Context context, @NonNull LyricsProvider... providers) {
+        this.libraryScanner = new LibraryScanner(context.getApplicationContext().getContentResolver());
+        this.providers = new ArrayList<>(Arrays.asList(providers));
+    }
+
+    /**
+     * @return The chain instance shared by the entire process: sidecar files, then the tags of the audio file
+     */
+    public static synchronized LyricsProviderChain getInstance(@NonNull Context context) {
+        if (instance == null)
+            instance = new LyricsProviderChain(context, new SidecarLyricsProvider(), new EmbeddedLyricsProvider());
+        return instance;
+    }
+
+    /**
+     * Look the lyrics of a track up
+     * @param listener Called on the UI thread with the result, unless the lookup is cancelled
+     * @return The lookup, cancel it to stop it and drop its result
+     */
+    @NonNull
+    public Future<?> find(@NonNull final Track track, @NonNull final Listener listener) {
+        final long trackId = track.getId();
+        return chainExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final String lyrics = lookUp(trackId);
+                if (Thread.currentThread().isInterrupted())
+                    return;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onResult(lyrics);
+                    }
+                });
+            }
+        });
+    }
+
+    // --- Helper methods, called on the chain thread
+
+    @Nullable
+    private String lookUp(long trackId) {
+        String path = libraryScanner.queryPath(trackId);
+        if (path == null)
+            return null;
+
+        File audioFile = new File(path);
+        for (LyricsProvider provider : providers) {
+            if (Thread.currentThread().isInterrupted())
+                return null;
+            String lyrics = call(provider, audioFile);
+            if (lyrics != null) {
+                Log.d(LOG_TAG, "Lyrics of track " + trackId + " found by " + provider.getClass().getSimpleName());
+                return lyrics;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Call a provider on a provider thread, and wait for it up to its timeout
+     * @return The lyrics, or null if the provider has none, failed or timed out
+     */
+    @Nullable
+    private String call(final LyricsProvider provider, final File audioFile) {
+        String name = provider.getClass().getSimpleName();
+        Future<String> future;
+        try {
+            future = providerExecutor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return provider.getLyrics(audioFile);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // All the threads are stuck in providers that have timed out
+            Log.w(LOG_TAG, "No thread for " + name + ", skipping it.");
+            return null;
+        }
+
+        try {
+            return future.get(provider.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.w(LOG_TAG, name + " timed out on " + audioFile);
+        } catch (ExecutionException e) {
+            Log.w(LOG_TAG, name + " failed on " + audioFile, e.getCause());
+        } catch (InterruptedException e) {
+            // The lookup has been cancelled
+            Thread.currentThread().interrupt();
+        }
+        future.cancel(true);
+        return null;
+    }
+
+}
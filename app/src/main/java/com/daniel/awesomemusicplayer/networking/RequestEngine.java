@@ -0,0 +1,566 @@
+package com.daniel.awesomemusicplayer.networking;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.daniel.awesomemusicplayer.util.PowerStats;
+import com.daniel.awesomemusicplayer.util.Utils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * RequestEngine executes HTTP GET requests on bounded thread pools and passes the responses
+ * to RequestListeners.
+ *
+ * - Every connection has connect and read timeouts, so a stalled server can't hold a thread.
+ * - Cancelling a request disconnects its connection, which aborts a blocking connect or read
+ *   right away instead of letting it run to the end.
+ * - The body is read by a ResponseReader, which may stop as soon as it has what it needs -
+ *   the connection is closed right after it returns, the rest of the body is never downloaded.
+ * - Connections whose body has been read to the end are closed without being disconnected,
+ *   so HttpURLConnection keeps them alive and the next request to the host reuses them.
+ * - Responses are requested gzip-compressed and decompressed while they're read.
+ * - A request can carry the Validators of a cached response. The server then answers
+ *   304 Not Modified without a body if the response hasn't changed, and the listener
+ *   (a ConditionalRequestListener) is told so instead of getting a body.
+ * - Requests for a URL that is already in flight (with the same ResponseReader and Validators)
+ *   share its connection. The response is read once, and every request gets its own
+ *   doOnBackgroundThread() call with the result. The connection is cancelled once all the
+ *   requests sharing it have been cancelled. A foreground request joining a background call
+ *   that hasn't started moves it to the foreground pool, a background call that is already
+ *   running isn't shared with foreground requests.
+ * - A request drops its listener as soon as it's finished or cancelled, so the engine never
+ *   keeps a listener (and the activity it references) alive longer than the request.
+ *
+ * Requests run on a pool of FOREGROUND_THREADS threads, background requests (prefetches) on
+ * a single thread with background priority. Both pools have a bounded queue, requests that
+ * don't fit fail with a RejectedExecutionException.
+ */
+public class RequestEngine {
+
+    /** A request, the handle for cancelling it */
+    public static final class Request {
+
+        /** The connection the request is waiting for */
+        private final Call call;
+
+        /** The listener, null once the request is finished or cancelled */
+        private volatile RequestListener listener;
+
+        private Request(Call call, RequestListener listener) {
+            this.call = call;
+            this.listener = listener;
+        }
+
+        /**
+         * Cancel the request, its listener won't be called. Must be called on the callback thread.
+         */
+        public void cancel() {
+            if (listener == null)
+                return;
+            listener = null;
+            call.engine.cancel(this);
+        }
+
+    }
+
+    /** Reads the entire body */
+    public static final ResponseReader FULL_BODY = new ResponseReader() {
+        @Override
+        public String read(Reader reader) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[BUFFER_SIZE];
+            int count;
+            while ((count = reader.read(buffer)) != -1)
+                sb.append(buffer, 0, count);
+            return sb.toString();
+        }
+    };
+
+    /** Log tag */
+    private static final String LOG_TAG = "RequestEngine";
+
+    /** Number of threads executing foreground requests */
+    private static final int FOREGROUND_THREADS = 2;
+
+    /** Maximum number of requests waiting for a thread, in each pool */
+    private static final int MAX_QUEUED_REQUESTS = 32;
+
+    /** Time an idle thread is kept alive */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /** Default connect timeout */
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+    /** Default read timeout, between two reads of the response */
+    private static final int READ_TIMEOUT_MILLIS = 15000;
+
+    /** Size of the buffer the response is read with, in chars */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /** Content encoding of compressed responses */
+    private static final String GZIP = "gzip";
+
+    private static final String USER_AGENT =
+            "Mozilla/5.0 (Windows NT 6.2; WOW64; rv:43.0) Gecko/20100101 Firefox/43.0";
+
+    private static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+    /** The engine instance shared by the entire process */
+    private static RequestEngine instance;
+
+    /** Executes the foreground requests */
+    private final ThreadPoolExecutor foregroundExecutor;
+
+    /** Executes the background requests */
+    private final ThreadPoolExecutor backgroundExecutor;
+
+    /** Runs the doOnUIThread() callbacks */
+    private final Executor callbackExecutor;
+
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    /** The calls in flight by URL. Guarded by itself. */
+    private final Map<String, Call> calls = new HashMap<>();
+
+    /**
+     * @param callbackExecutor Runs the doOnUIThread() callbacks, and is the thread Request.cancel()
+     *                         must be called on
+     */
+    public RequestEngine(@NonNull Executor callbackExecutor, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.callbackExecutor = callbackExecutor;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.foregroundExecutor = createExecutor(FOREGROUND_THREADS, Process.THREAD_PRIORITY_DEFAULT);
+        this.backgroundExecutor = createExecutor(1, Process.THREAD_PRIORITY_BACKGROUND);
+    }
+
+    /**
+     * @return The engine instance shared by the entire process, it calls doOnUIThread() on the UI thread
+     */
+    public static synchronized RequestEngine getInstance() {
+        if (instance == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            instance = new RequestEngine(new Executor() {
+                @Override
+                public void execute(@NonNull Runnable runnable) {
+                    handler.post(runnable);
+                }
+            }, CONNECT_TIMEOUT_MILLIS, READ_TIMEOUT_MILLIS);
+        }
+        return instance;
+    }
+
+    /**
+     * Execute a GET request, the listener gets the entire body
+     * @param url The URL
+     * @param listener The listener, see RequestListener for the threads its methods are called on
+     * @return The request
+     */
+    @NonNull
+    public Request execute(@NonNull String url, @NonNull RequestListener listener) {
+        return execute(url, FULL_BODY, null, listener, false);
+    }
+
+    /**
+     * Execute a GET request
+     * @param url The URL
+     * @param responseReader Reads the body, the listener gets its result
+     * @param listener The listener, see RequestListener for the threads its methods are called on
+     * @return The request
+     */
+    @NonNull
+    public Request execute(@NonNull String url, @NonNull ResponseReader responseReader,
+                           @NonNull RequestListener listener) {
+        return execute(url, responseReader, null, listener, false);
+    }
+
+    /**
+     * Execute a conditional GET request, revalidating a cached response
+     * @param validators The validators of the cached response, null to request a new response
+     * @see #execute(String, ResponseReader, RequestListener)
+     */
+    @NonNull
+    public Request execute(@NonNull String url, @NonNull ResponseReader responseReader,
+                           @Nullable Validators validators, @NonNull ConditionalRequestListener listener) {
+        return execute(url, responseReader, validators, listener, false);
+    }
+
+    /**
+     * Execute a GET request on the background pool, at background thread priority
+     * @see #execute(String, ResponseReader, RequestListener)
+     */
+    @NonNull
+    public Request executeInBackground(@NonNull String url, @NonNull ResponseReader responseReader,
+                                       @NonNull RequestListener listener) {
+        return execute(url, responseReader, null, listener, true);
+    }
+
+    /**
+     * Execute a conditional GET request on the background pool, at background thread priority
+     * @see #execute(String, ResponseReader, Validators, ConditionalRequestListener)
+     */
+    @NonNull
+    public Request executeInBackground(@NonNull String url, @NonNull ResponseReader responseReader,
+                                       @Nullable Validators validators,
+                                       @NonNull ConditionalRequestListener listener) {
+        return execute(url, responseReader, validators, listener, true);
+    }
+
+    /**
+     * Stop the threads, cancelling all the calls in flight. The engine can't be used afterwards.
+     */
+    public void shutdown() {
+        synchronized (calls) {
+            for (Call call : calls.values())
+                call.cancel();
+            calls.clear();
+        }
+        foregroundExecutor.shutdownNow();
+        backgroundExecutor.shutdownNow();
+    }
+
+    // --- Helper methods
+
+    private Request execute(String url, ResponseReader responseReader, Validators validators,
+                            RequestListener listener, boolean background) {
+        Call call;
+        Request request;
+        boolean execute = false;
+        boolean inBackground;
+        synchronized (calls) {
+            call = calls.get(url);
+            if (call == null || call.responseReader != responseReader
+                    || !(validators == null ? call.validators == null : validators.equals(call.validators))) {
+                // A call with another reader or validators isn't shared, but the in flight one stays in the map
+                call = new Call(this, url, responseReader, validators);
+                call.background = background;
+                if (!calls.containsKey(url))
+                    calls.put(url, call);
+                execute = true;
+            } else if (!background && call.background) {
+                // A foreground request doesn't wait behind the prefetches: a call that hasn't started
+                // moves to the foreground pool, a call already running at background priority isn't shared
+                if (backgroundExecutor.remove(call)) {
+                    Log.d(LOG_TAG, "Moving the request in flight to the foreground, URL: " + url);
+                    call.background = false;
+                } else {
+                    call = new Call(this, url, responseReader, validators);
+                }
+                execute = true;
+            } else {
+                Log.d(LOG_TAG, "Joining the request in flight to URL: " + url);
+            }
+            request = new Request(call, listener);
+            call.requests.add(request);
+            inBackground = call.background;
+        }
+
+        if (execute) {
+            try {
+                (inBackground ? backgroundExecutor : foregroundExecutor).execute(call);
+                PowerStats.post(PowerStats.Component.LYRICS_REQUESTS);
+            } catch (RejectedExecutionException e) {
+                call.finish(0, null, e);
+            }
+        }
+        return request;
+    }
+
+    /**
+     * Remove a cancelled request from its call, and cancel the call if it has no other requests
+     */
+    private void cancel(Request request) {
+        Call call = request.call;
+        synchronized (calls) {
+            call.requests.remove(request);
+            if (!call.requests.isEmpty() || call.finished)
+                return;
+            if (calls.get(call.url) == call)
+                calls.remove(call.url);
+        }
+        Log.d(LOG_TAG, "Cancelling the request to URL: " + call.url);
+        call.cancel();
+        foregroundExecutor.remove(call);
+        backgroundExecutor.remove(call);
+    }
+
+    /**
+     * Pass the result of a request to its listener on the callback thread
+     */
+    private void deliver(final Request request, final String result) {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                RequestListener listener = request.listener;
+                request.listener = null;
+                if (listener != null)
+                    listener.doOnUIThread(result);
+            }
+        });
+    }
+
+    private static ThreadPoolExecutor createExecutor(int threads, final int priority) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS), new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(priority);
+                        runnable.run();
+                    }
+                }, LOG_TAG);
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * @return The charset of a response, from its Content-Type header
+     */
+    private static Charset getCharset(HttpURLConnection connection) {
+        String contentType = connection.getContentType();
+        if (contentType != null) {
+            int index = contentType.toLowerCase().indexOf("charset=");
+            if (index != -1) {
+                String name = contentType.substring(index + "charset=".length()).trim();
+                int end = name.indexOf(';');
+                if (end != -1)
+                    name = name.substring(0, end).trim();
+                try {
+                    return Charset.forName(name.replace("\"", ""));
+                } catch (RuntimeException ignored) {}
+            }
+        }
+        return DEFAULT_CHARSET;
+    }
+
+    /**
+     * Call - one connection to a URL, shared by all the requests made to the URL while it's in flight
+     */
+    private static final class Call implements Runnable {
+
+        private final RequestEngine engine;
+        private final String url;
+
+        /** Reads the body */
+        private final ResponseReader responseReader;
+
+        /** The validators of the cached response, null if the request isn't conditional */
+        private final Validators validators;
+
+        /** Is the call executed by the background pool? Guarded by engine.calls. */
+        private boolean background;
+
+        /** The requests waiting for the response. Guarded by engine.calls. */
+        private final List<Request> requests = new ArrayList<>();
+
+        /** The connection, once it has been opened */
+        private volatile HttpURLConnection connection;
+
+        /** Has the call been cancelled? */
+        private volatile boolean cancelled;
+
+        /** Have the requests been passed the result? Guarded by engine.calls. */
+        private boolean finished;
+
+        /** The validators of the response. Accessed on the request thread. */
+        private Validators responseValidators;
+
+        /** Has the server answered 304 Not Modified? Accessed on the request thread. */
+        private boolean notModified;
+
+        /** Can the connection be kept alive, i.e. has the response been read to the end? Accessed on the request thread. */
+        private boolean reusable;
+
+        private Call(RequestEngine engine, String url, ResponseReader responseReader, Validators validators) {
+            this.engine = engine;
+            this.url = url;
+            this.responseReader = responseReader;
+            this.validators = validators;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled)
+                return;
+
+            long cpu = PowerStats.begin();
+            Log.d(LOG_TAG, "Executing request to URL: " + url);
+            int responseCode = 0;
+            String body = null;
+            Exception error = null;
+            HttpURLConnection con = null;
+            try {
+                con = (HttpURLConnection) new URL(url).openConnection();
+                connection = con;
+                // Disconnect if the call was cancelled before the connection has been published
+                if (cancelled)
+                    throw new IOException("Cancelled");
+
+                con.setConnectTimeout(engine.connectTimeoutMillis);
+                con.setReadTimeout(engine.readTimeoutMillis);
+                con.setRequestProperty("User-Agent", USER_AGENT);
+                con.setRequestProperty("Accept-Encoding", GZIP);
+                if (validators != null)
+                    validators.apply(con);
+
+                responseCode = con.getResponseCode();
+                if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && validators != null) {
+                    Log.d(LOG_TAG, "Not modified: " + url);
+                    notModified = true;
+                    // There's no body, the connection is ready for the next request
+                    con.getInputStream().close();
+                    reusable = true;
+                } else if (responseCode / 100 != 2) {
+                    throw new IOException("HTTP " + responseCode);
+                } else {
+                    responseValidators = Validators.of(con);
+                    body = readBody(con);
+                }
+            } catch (IOException | RuntimeException e) {
+                error = e;
+                reusable = false;
+            } finally {
+                // A closed connection stays alive for reuse, disconnecting closes its socket
+                if (con != null && !reusable)
+                    con.disconnect();
+            }
+            finish(responseCode, body, error);
+            PowerStats.end(PowerStats.Component.LYRICS_REQUESTS, cpu);
+        }
+
+        /**
+         * Read the response body with the response reader, decompressing it if needed.
+         * The connection is reusable if the reader has read the body to the end.
+         */
+        private String readBody(HttpURLConnection con) throws IOException {
+            InputStream in = con.getInputStream();
+            try {
+                EndTrackingInputStream body = new EndTrackingInputStream(
+                        GZIP.equalsIgnoreCase(con.getContentEncoding()) ? new GZIPInputStream(in, BUFFER_SIZE) : in);
+                String result = responseReader.read(new InputStreamReader(body, getCharset(con)));
+                reusable = body.ended;
+                return result;
+            } finally {
+                if (reusable) {
+                    in.close();
+                } else {
+                    // Disconnect first, closing the stream of a partially read body would download the rest
+                    con.disconnect();
+                    Utils.closeQuietly(in);
+                }
+            }
+        }
+
+        /**
+         * Pass the result to the requests that haven't been cancelled
+         * @param body The response body, null if the request failed
+         * @param error The error, null if the request succeeded
+         */
+        private void finish(int responseCode, String body, Exception error) {
+            List<Request> listeners;
+            synchronized (engine.calls) {
+                if (engine.calls.get(url) == this)
+                    engine.calls.remove(url);
+                listeners = new ArrayList<>(requests);
+                requests.clear();
+                finished = true;
+            }
+            if (cancelled)
+                return;
+
+            for (Request request : listeners) {
+                RequestListener listener = request.listener;
+                if (listener == null)
+                    continue;
+
+                String result = null;
+                if (error != null) {
+                    listener.onError(responseCode, error);
+                } else if (notModified) {
+                    // Only requests with the call's validators share it, they all have conditional listeners
+                    ((ConditionalRequestListener) listener).onNotModified();
+                } else {
+                    try {
+                        if (listener instanceof ConditionalRequestListener)
+                            ((ConditionalRequestListener) listener).onValidators(responseValidators);
+                        result = listener.doOnBackgroundThread(body);
+                    } catch (RuntimeException e) {
+                        listener.onError(responseCode, e);
+                    }
+                }
+                engine.deliver(request, result);
+            }
+        }
+
+        /**
+         * Cancel the call, aborting the connection if it's open
+         */
+        private void cancel() {
+            cancelled = true;
+            HttpURLConnection con = connection;
+            if (con != null)
+                con.disconnect();
+        }
+
+    }
+
+    /**
+     * Remembers whether the end of a stream has been reached
+     */
+    private static final class EndTrackingInputStream extends FilterInputStream {
+
+        /** Has read() returned -1? */
+        private boolean ended;
+
+        private EndTrackingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1)
+                ended = true;
+            return b;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+            int count = super.read(buffer, offset, length);
+            if (count == -1)
+                ended = true;
+            return count;
+        }
+
+    }
+
+}
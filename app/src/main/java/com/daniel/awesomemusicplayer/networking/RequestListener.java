@@ -1,7 +1,7 @@
 package com.daniel.awesomemusicplayer.networking;
 
 /**
- * RequestExecutor event listener.
+ * RequestEngine event listener.
  */
 public interface RequestListener {
 
@@ -14,13 +14,15 @@ public interface RequestListener {
     String doOnBackgroundThread(String result);
 
     /**
-     * This method is called in the UI thread after the task is finished.
-     * @param result The string passed from doOnBackgroundThread()
+     * This method is called in the UI thread after the request is finished,
+     * unless it has been cancelled.
+     * @param result The string passed from doOnBackgroundThread(), null in case of an error
      */
     void doOnUIThread(String result);
 
     /**
-     * This method is called in case of an error
+     * This method is called in the background thread in case of an error,
+     * doOnUIThread() is called with null afterwards.
      * @param errorCode The response code. 0 if the connection hasn't been established.
      * @param e The exception that has been thrown
      */
@@ -0,0 +1,19 @@
+package com.daniel.awesomemusicplayer.networking;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads the body of a response on the RequestEngine thread.
+ * A reader may stop before the end of the body, the connection is closed once it returns.
+ */
+public interface ResponseReader {
+
+    /**
+     * Read the response body
+     * @param reader The body, decoded with the charset of the response
+     * @return The result passed to RequestListener.doOnBackgroundThread()
+     */
+    String read(Reader reader) throws IOException;
+
+}
@@ -0,0 +1,93 @@
+package com.daniel.awesomemusicplayer.networking;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.daniel.awesomemusicplayer.util.Utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * SidecarLyricsProvider reads the lyrics from a file next to the audio file, with the same name
+ * and a .lrc or .txt extension (e.g. "Song.lrc" for "Song.mp3").
+ *
+ * LRC files are returned with their time tags, they're parsed into synced Lyrics.
+ * Files larger than MAX_FILE_BYTES aren't lyrics, and are ignored.
+ */
+public class SidecarLyricsProvider implements LyricsProvider {
+
+    /** Sidecar extensions, in the order they're looked for */
+    private static final String[] EXTENSIONS = { ".lrc", ".LRC", ".txt", ".TXT" };
+
+    /** Maximum size of a sidecar file */
+    private static final int MAX_FILE_BYTES = 256 * 1024;
+
+    /** Time the chain waits for the files */
+    private static final long TIMEOUT_MILLIS = 300;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset UTF_16 = Charset.forName("UTF-16");
+
+    @Nullable
+    @Override
+    public String getLyrics(@NonNull File audioFile) throws IOException {
+        String name = audioFile.getName();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+
+        for (String extension : EXTENSIONS) {
+            File file = new File(audioFile.getParentFile(), baseName + extension);
+            if (!file.isFile() || file.length() > MAX_FILE_BYTES)
+                continue;
+
+            String text = decode(readFile(file, (int) file.length())).trim();
+            if (!text.isEmpty())
+                return text;
+        }
+        return null;
+    }
+
+    @Override
+    public long getTimeoutMillis() {
+        return TIMEOUT_MILLIS;
+    }
+
+    /**
+     * @return The bytes of a file, at most length bytes
+     */
+    private static byte[] readFile(File file, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        InputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            int count;
+            while (offset < length && (count = in.read(bytes, offset, length - offset)) != -1)
+                offset += count;
+            if (offset < length) {
+                byte[] truncated = new byte[offset];
+                System.arraycopy(bytes, 0, truncated, 0, offset);
+                return truncated;
+            }
+            return bytes;
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Decode a text file - UTF-16 if it starts with a UTF-16 byte order mark, otherwise UTF-8
+     */
+    private static String decode(byte[] bytes) {
+        if (bytes.length >= 2 && ((bytes[0] == (byte) 0xFF && bytes[1] == (byte) 0xFE)
+                || (bytes[0] == (byte) 0xFE && bytes[1] == (byte) 0xFF)))
+            return new String(bytes, UTF_16);
+        if (bytes.length >= 3 && bytes[0] == (byte) 0xEF && bytes[1] == (byte) 0xBB && bytes[2] == (byte) 0xBF)
+            return new String(bytes, 3, bytes.length - 3, UTF_8);
+        return new String(bytes, UTF_8);
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.daniel.awesomemusicplayer.networking;
+
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import java.net.HttpURLConnection;
+
+/**
+ * The cache validators of a response - its ETag and Last-Modified headers.
+ * They are sent back with a conditional request (If-None-Match and If-Modified-Since),
+ * so the server answers 304 Not Modified without a body if the resource hasn't changed.
+ */
+public final class Validators {
+
+    /** The ETag header, null if the response didn't have one */
+    @Nullable
+    private final String etag;
+
+    /** The Last-Modified header, null if the response didn't have one */
+    @Nullable
+    private final String lastModified;
+
+    public Validators(@Nullable String etag, @Nullable String lastModified) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return The validators of a response, or null if it has none
+     */
+    @Nullable
+    static Validators of(HttpURLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        String lastModified = connection.getHeaderField("Last-Modified");
+        if (etag == null && lastModified == null)
+            return null;
+        return new Validators(etag, lastModified);
+    }
+
+    @Nullable
+    public String getETag() {
+        return etag;
+    }
+
+    @Nullable
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Add the conditional headers to a request
+     */
+    void apply(HttpURLConnection connection) {
+        if (etag != null)
+            connection.setRequestProperty("If-None-Match", etag);
+        if (lastModified != null)
+            connection.setRequestProperty("If-Modified-Since", lastModified);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Validators))
+            return false;
+        Validators other = (Validators) o;
+        return TextUtils.equals(etag, other.etag) && TextUtils.equals(lastModified, other.lastModified);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (etag != null ? etag.hashCode() : 0) + (lastModified != null ? lastModified.hashCode() : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "ETag: " + etag + ", Last-Modified: " + lastModified;
+    }
+
+}
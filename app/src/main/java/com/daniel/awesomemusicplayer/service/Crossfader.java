@@ -0,0 +1,102 @@
+package com.daniel.awesomemusicplayer.service;
+
+import android.media.MediaPlayer;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import com.daniel.awesomemusicplayer.util.PowerStats;
+
+/**
+ * Crossfader ramps the volumes of two playing MediaPlayers - one fading out and one fading in.
+ * The volumes are updated in steps posted to a Handler, so no thread is used and nothing runs
+ * between the steps. When the fade is over the player that faded out is released.
+ * All methods must be called on the thread of the Handler.
+ */
+class Crossfader implements Runnable {
+
+    /** Interval between volume updates */
+    private static final int STEP_MILLIS = 100;
+
+    /** Handler the volume steps are posted to */
+    private final Handler handler;
+
+    /** The player fading out, null if there's no fade in progress */
+    private MediaPlayer fadingOut;
+
+    /** The player fading in, null if there's no fade in progress */
+    private MediaPlayer fadingIn;
+
+    /** Length of the fade */
+    private int fadeMillis;
+
+    /** Uptime at which the fade started */
+    private long startTime;
+
+    Crossfader(@NonNull Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Start fading between two players. A fade in progress is finished first.
+     * The player fading in is muted, it should be started right after this call.
+     * @param out The playing player, released when the fade is over
+     * @param in The player to fade in
+     * @param fadeMillis Length of the fade
+     */
+    void start(@NonNull MediaPlayer out, @NonNull MediaPlayer in, int fadeMillis) {
+        finish();
+        fadingOut = out;
+        fadingIn = in;
+        this.fadeMillis = Math.max(1, fadeMillis);
+        startTime = SystemClock.uptimeMillis();
+        in.setVolume(0f, 0f);
+        handler.postDelayed(this, STEP_MILLIS);
+        PowerStats.post(PowerStats.Component.CROSSFADER);
+    }
+
+    /**
+     * Jump to the end of the fade in progress - the player fading in gets its full volume
+     * and the player fading out is released. Does nothing if there's no fade in progress.
+     */
+    void finish() {
+        handler.removeCallbacks(this);
+        if (fadingOut == null)
+            return;
+
+        fadingIn.setVolume(1f, 1f);
+        fadingOut.release();
+        fadingOut = null;
+        fadingIn = null;
+    }
+
+    /**
+     * @return true if the player is fading out
+     */
+    boolean isFadingOut(MediaPlayer mp) {
+        return mp != null && mp == fadingOut;
+    }
+
+    @Override
+    public void run() {
+        long cpu = PowerStats.begin();
+        try {
+            float progress = (SystemClock.uptimeMillis() - startTime) / (float) fadeMillis;
+            if (progress >= 1f) {
+                finish();
+                return;
+            }
+
+            // Equal power curves, the total loudness stays constant through the fade
+            float in = (float) Math.sin(progress * Math.PI / 2);
+            float out = (float) Math.cos(progress * Math.PI / 2);
+            fadingIn.setVolume(in, in);
+            fadingOut.setVolume(out, out);
+            handler.postDelayed(this, STEP_MILLIS);
+            PowerStats.post(PowerStats.Component.CROSSFADER);
+        } finally {
+            PowerStats.end(PowerStats.Component.CROSSFADER, cpu);
+        }
+    }
+
+}
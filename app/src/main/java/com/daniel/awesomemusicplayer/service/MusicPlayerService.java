@@ -1,31 +1,45 @@
 package com.daniel.awesomemusicplayer.service;
 
-import android.app.Notification;
-import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.ContentUris;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.media.AudioAttributes;
 import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.PowerManager;
 import android.provider.MediaStore;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
-import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 import android.widget.Toast;
 
-import com.daniel.awesomemusicplayer.App;
-import com.daniel.awesomemusicplayer.MainActivity;
-import com.daniel.awesomemusicplayer.R;
+import com.daniel.awesomemusicplayer.networking.LyricsPrefetcher;
+import com.daniel.awesomemusicplayer.tracks.LibraryDiff;
+import com.daniel.awesomemusicplayer.tracks.LibraryObserver;
+import com.daniel.awesomemusicplayer.tracks.PlayCounts;
+import com.daniel.awesomemusicplayer.tracks.PlayQueue;
 import com.daniel.awesomemusicplayer.tracks.RepeatMode;
+import com.daniel.awesomemusicplayer.tracks.ShuffleOrder;
+import com.daniel.awesomemusicplayer.tracks.SortOrder;
 import com.daniel.awesomemusicplayer.tracks.Track;
+import com.daniel.awesomemusicplayer.tracks.TrackSorter;
+import com.daniel.awesomemusicplayer.util.PowerStats;
 import com.daniel.awesomemusicplayer.util.Utils;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Random;
-import java.util.Stack;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * MusicPlayerService is in charge of playing the music using the android.media.MediaPlayer class,
@@ -33,19 +47,95 @@ import java.util.Stack;
  * After an event is handled, the service communicates back to MainActivity using the
  * MusicServiceCallback interface.
  * The rules of communication and binding are described in MainActivity.
+ *
+ * Gapless playback: while a track is playing, a second MediaPlayer (nextPlayer) is prepared
+ * with the track that will follow it, and chained with setNextMediaPlayer() so the platform
+ * starts it as soon as the current track completes. The prepared player is discarded and
+ * prepared again whenever the prediction may have changed - shuffle or repeat mode changes,
+ * a manual selection or a library update.
+ *
+ * Crossfade: if a crossfade length is set, nextPlayer isn't chained. Instead, it is started
+ * muted when the current track has crossfade length left to play, and the two players overlap
+ * while the Crossfader ramps their volumes. The start of the fade is scheduled on the main
+ * Handler once nextPlayer is prepared, and rescheduled on seeks and resumes.
+ *
+ * Sort orders: the track list always stays in the library order. A sort order is a permutation
+ * of the track indexes (sortedTracks), computed by a TrackSorter on the I/O thread, which
+ * the sequential playback and the track list follow. The selected track, the queue and
+ * the shuffle order keep using track indexes, so changing the order doesn't affect them.
+ *
+ * Lyrics prefetch: whenever the next track is predicted for gapless playback, the lyrics of the
+ * next LYRICS_PREFETCH_COUNT tracks playNext() would select are prefetched into the shared
+ * LyricsCache by a LyricsPrefetcher, which cancels the requests of tracks no longer predicted.
+ *
+ * Notification: the foreground notification is a listener of the playback snapshots
+ * (PlaybackNotification), its transport actions are sent back to onStartCommand().
  */
 public class MusicPlayerService extends Service implements MediaPlayer.OnErrorListener,
-        MediaPlayer.OnCompletionListener, MediaPlayer.OnPreparedListener {
+        MediaPlayer.OnCompletionListener, MediaPlayer.OnPreparedListener,
+        LibraryObserver.LibraryObserverListener, PositionTicker.Clock {
 
     /** Log tag */
     private static final String LOG_TAG         = "MusicPlayerService";
 
-    /** Foreground notification ID */
-    private static final int NOTIFICATION_ID    = 1234;
+    /** File the shuffle order is saved to, in the app's private storage */
+    private static final String SHUFFLE_ORDER_FILE = "shuffle.order";
+
+    /** File the play counts are saved to, in the app's private storage */
+    private static final String PLAY_COUNTS_FILE = "play.counts";
+
+    /** Number of upcoming tracks whose lyrics are prefetched */
+    private static final int LYRICS_PREFETCH_COUNT = 2;
 
     /** MediaPlayer instance */
     private MediaPlayer mediaPlayer;
 
+    /** MediaPlayer holding the track that follows the current one, null if none is prepared */
+    private MediaPlayer nextPlayer;
+
+    /** Index of the track in nextPlayer, -1 if there's no nextPlayer */
+    private int nextTrackIndex;
+
+    /** Is the track in nextPlayer the head of the queue? */
+    private boolean nextPlayerFromQueue;
+
+    /** Has nextPlayer been prepared? */
+    private boolean nextPlayerPrepared;
+
+    /** Is nextPlayer chained to mediaPlayer with setNextMediaPlayer()? False in crossfade mode. */
+    private boolean nextPlayerChained;
+
+    /** Crossfade length in milliseconds, 0 if crossfade is off */
+    private int crossfadeMillis;
+
+    /** Handler used to schedule the crossfades */
+    private final Handler handler = new Handler();
+
+    /** Fades between the players */
+    private final Crossfader crossfader = new Crossfader(handler);
+
+    /** Starts the crossfade when it's time, see scheduleCrossfade() */
+    private final Runnable crossfadeStarter = new Runnable() {
+        @Override
+        public void run() {
+            long cpu = PowerStats.begin();
+            checkCrossfade();
+            PowerStats.end(PowerStats.Component.CROSSFADER, cpu);
+        }
+    };
+
+    /** Publishes the playback state to the activity and the notification */
+    private final PlaybackPublisher playbackPublisher = new PlaybackPublisher(handler, new PlaybackPublisher.Source() {
+        @NonNull
+        @Override
+        public PlaybackSnapshot takeSnapshot(long version) {
+            return createPlaybackSnapshot(version);
+        }
+    });
+
+    /** The foreground notification, follows the playback snapshots */
+    private PlaybackNotification playbackNotification;
+
     /** Binder instance */
     private final IBinder musicServiceBinder = new MusicServiceBinder();
 
@@ -58,24 +148,84 @@ public class MusicPlayerService extends Service implements MediaPlayer.OnErrorLi
     /** Index of the selected track */
     private int trackIndex;
 
+    /** The "Up Next" queue, played before the playback continues through the track list */
+    private final PlayQueue playQueue = new PlayQueue();
+
+    /**
+     * While tracks from the queue are playing - the track that was playing before them,
+     * the playback continues from it once the queue is empty. Otherwise -1.
+     */
+    private int queueReturnIndex = -1;
+
     /** Full track title to be displayed */
     private String trackTitle;
 
     /** Shuffle mode */
     private boolean shuffle;
 
-    /** Stack of track indexes saved when traversing the track list with shuffle mode enabled */
-    private Stack<Integer> shuffleStack;
+    /**
+     * The play order in shuffle mode, null if shuffle mode is off or the order hasn't been
+     * created yet (see getShuffleOrder())
+     */
+    private ShuffleOrder shuffleOrder;
 
     /** Random number generator for shuffling */
     private Random random;
 
+    /** Incremented whenever the track list is replaced or changed, to detect stale results */
+    private int tracksVersion;
+
+    /** Background thread for reading and saving the shuffle order and the play counts, and sorting */
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+
+    /** The order the track list is played and displayed in */
+    private SortOrder sortOrder = SortOrder.TITLE;
+
+    /** Sort keys of the track list, null until they have been computed */
+    private TrackSorter trackSorter;
+
+    /** Orders computed in the background along with the sort keys, PLAY_COUNT isn't cached */
+    private final EnumMap<SortOrder, int[]> sortedTracksCache = new EnumMap<>(SortOrder.class);
+
+    /** Track indexes in the sort order, null for the library order */
+    private int[] sortedTracks;
+
+    /** Position in the sort order of every track index, null for the library order */
+    private int[] sortedPositions;
+
+    /** How many times every track has been played */
+    private final PlayCounts playCounts = new PlayCounts();
+
+    /** Have the saved play counts been added to playCounts? They aren't saved until then. */
+    private boolean playCountsRestored;
+
     /** Repeat mode */
     private RepeatMode repeatMode;
 
     /** Variable that determines if the media player is either playing or paused (not stopped) */
     private boolean playerReady;
 
+    /** Is the selected track being prepared by mediaPlayer? */
+    private boolean preparing;
+
+    /** Keeps the track list up to date with the MediaStore */
+    private LibraryObserver libraryObserver;
+
+    /** Downloads the lyrics of the upcoming tracks */
+    private LyricsPrefetcher lyricsPrefetcher;
+
+    /** Is the screen on? Together with the callback and the player, decides the power state */
+    private boolean screenInteractive = true;
+
+    /** Follows the screen, for the power state */
+    private final BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            screenInteractive = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+            updatePowerState();
+        }
+    };
+
     // --- Service lifecycle methods
 
     @Override
@@ -85,18 +235,58 @@ public class MusicPlayerService extends Service implements MediaPlayer.OnErrorLi
 
         // Initialize default values
         trackIndex = 0;
+        nextTrackIndex = -1;
         random = new Random();
         shuffle = false;
         repeatMode = RepeatMode.NONE;
-        shuffleStack = new Stack<>();
         playerReady = false;
 
         // Initialize media player
         mediaPlayer = initMediaPlayer();
 
+        // The observer is registered once the track list is set
+        libraryObserver = new LibraryObserver(this, this);
+
+        lyricsPrefetcher = new LyricsPrefetcher(this);
+        restorePlayCounts();
+
+        // Follow the screen for the power budget
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        if (powerManager != null)
+            screenInteractive = powerManager.isInteractive();
+        IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        registerReceiver(screenReceiver, screenFilter);
+        updatePowerState();
+
+        // The notification is posted once a track is playing or paused
+        playbackNotification = new PlaybackNotification(this, handler);
+        playbackPublisher.addListener(playbackNotification);
+
         Log.d(LOG_TAG, "Service created.");
     }
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // Transport actions of the notification, ignored until the track list is set
+        String action = intent != null ? intent.getAction() : null;
+        if (action != null && tracks != null && !tracks.isEmpty()) {
+            Log.d(LOG_TAG, "Notification action: " + action);
+            switch (action) {
+                case PlaybackNotification.ACTION_PREVIOUS:
+                    playPrevious();
+                    break;
+                case PlaybackNotification.ACTION_PLAY_PAUSE:
+                    togglePlayPause();
+                    break;
+                case PlaybackNotification.ACTION_NEXT:
+                    playNext();
+                    break;
+            }
+        }
+        return super.onStartCommand(intent, flags, startId);
+    }
+
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
@@ -106,7 +296,19 @@ public class MusicPlayerService extends Service implements MediaPlayer.OnErrorLi
     @Override
     public void onDestroy() {
         Log.i(LOG_TAG, "In onDestroy.");
+        unregisterReceiver(screenReceiver);
+        playbackPublisher.release();
+        playbackNotification.release();
+        libraryObserver.unregister();
+        lyricsPrefetcher.cancel();
+        crossfader.finish();
+        releaseNextPlayer();
         mediaPlayer.release();
+        PowerStats.setState(PowerStats.State.IDLE_PAUSED);
+
+        // Save the state, the queued writes finish before the thread exits
+        saveState();
+        ioExecutor.shutdown();
     }
 
     // --- Helper methods
@@ -130,21 +332,21 @@ public class MusicPlayerService extends Service implements MediaPlayer.OnErrorLi
      * Plays the selected track from the start
      */
     public void playTrack() {
-        // Reset the player
+        if (!hasSelectedTrack())
+            return;
+
+        // Reset the player, the next track is prepared again once this one starts
+        crossfader.finish();
+        releaseNextPlayer();
         mediaPlayer.reset();
 
-        // Get the track title and update it's state to "playing"
+        // Get the track title
         Track track = tracks.get(trackIndex);
         trackTitle = track.getArtist() + " - " + track.getTitle();
-        track.setPlaying(true);
-
-        // Get the track URI
-        Uri trackUri = ContentUris.withAppendedId(
-                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, track.getId());
 
         // Set the data source
         try {
-            mediaPlayer.setDataSource(getApplicationContext(), trackUri);
+            mediaPlayer.setDataSource(getApplicationContext(), getTrackUri(track));
         } catch (Exception e) {
             Toast.makeText(getApplicationContext(),
                     "Error: Failed to load track: " + trackTitle, Toast.LENGTH_LONG).show();
@@ -154,6 +356,8 @@ public class MusicPlayerService extends Service implements MediaPlayer.OnErrorLi
 
         // Prepare the track asynchronously
         mediaPlayer.prepareAsync();
+        preparing = true;
+        playbackPublisher.invalidate();
     }
 
     /**
@@ -170,16 +374,9 @@ public class MusicPlayerService extends Service implements MediaPlayer.OnErrorLi
         } else {
             // If the track is not playing and the media player is ready, resume it
             mediaPlayer.start();
-
-            // Update the state
-            tracks.get(trackIndex).setPlaying(true);
-
-            // Callback
-            if (callback != null)
-                callback.onTrackResumed();
-
-            // Start "Playing" foreground notification
-            notifyAndStartForeground("Now Playing...", trackTitle);
+            scheduleCrossfade();
+            playbackPublisher.invalidate();
+            updatePowerState();
         }
     }
 
@@ -187,92 +384,160 @@ public class MusicPlayerService extends Service implements MediaPlayer.OnErrorLi
      * Pauses the track
      */
     public void pause() {
-        // Pause the track and update the state
+        // Pause the track, a fade in progress is cut short
+        handler.removeCallbacks(crossfadeStarter);
+        crossfader.finish();
         mediaPlayer.pause();
-        tracks.get(trackIndex).setPlaying(false);
-
-        // Callback
-        if (callback != null)
-            callback.onTrackPaused();
-
-        // Start "Paused" foreground notification
-        notifyAndStartForeground("Paused", trackTitle);
+        playbackPublisher.invalidate();
+        updatePowerState();
+        saveState();
     }
 
     /**
      * Stops the media player
      */
     public void stop() {
-        // Update the track state
-        tracks.get(trackIndex).setPlaying(false);
-
         // Stop the media player
-        if (mediaPlayer.isPlaying())
+        crossfader.finish();
+        releaseNextPlayer();
+        lyricsPrefetcher.cancel();
+        if (preparing)
+            mediaPlayer.reset();
+        else if (mediaPlayer.isPlaying())
             mediaPlayer.stop();
 
         playerReady = false;
-
-        // Callback
-        if (callback != null)
-            callback.onTrackStopped();
-
-        // Stop the foreground notification
-        stopForeground(true);
+        preparing = false;
+        playbackPublisher.invalidate();
+        updatePowerState();
+        saveState();
     }
 
     /**
      * Calculates the next track to select, while considering shuffle mode,
-     * shuffle stack and repeat mode.
+     * shuffle order and repeat mode.
      */
     public void playNext() {
-        // Deselect the last track
-        Track lastTrack = tracks.get(trackIndex);
-        lastTrack.setPlaying(false);
-        lastTrack.setSelected(false);
-
-        if (shuffle) {
-            // Save last song in stack
-            shuffleStack.push(trackIndex);
-
-            // Find new track
-            int newPosition;
-            do {
-                newPosition = random.nextInt(tracks.size());
-            } while (trackIndex == newPosition);
-            trackIndex = newPosition;
+        boolean fromQueue = !playQueue.isEmpty();
+        int newPosition = peekNextIndex();
+        if (newPosition == -1) {
+            // Reached the end of the list, or the list is empty
+            stop();
+            return;
+        }
+
+        // The new index is selected - play the track, using the prepared player if possible
+        if (nextPlayerPrepared && nextTrackIndex == newPosition
+                && nextPlayerFromQueue == fromQueue && repeatMode != RepeatMode.REPEAT_TRACK) {
+            crossfader.finish();
+            takeNextPlayer().release();
+            mediaPlayer.start();
+            onPlaybackStarted();
         } else {
-            shuffleStack.clear();
-            trackIndex++;
-            if (trackIndex >= tracks.size()) {
-                if (repeatMode == RepeatMode.REPEAT_ALL) {
-                    trackIndex = 0;
-                } else {
-                    trackIndex--;
-                    stop();
-                    return;
-                }
+            recordAdvance(fromQueue);
+            trackIndex = newPosition;
+            playTrack();
+        }
+    }
+
+    /**
+     * Find the track playNext() will select, without selecting it.
+     * The head of the queue comes first. After the queue, the playback continues from
+     * the track that was playing before it.
+     * In shuffle mode, once all the tracks have been played the order is reshuffled if
+     * the repeat mode is REPEAT_ALL.
+     * @return The index of the next track, -1 if the playback should stop
+     */
+    private int peekNextIndex() {
+        if (tracks == null || tracks.isEmpty())
+            return -1;
+        if (!playQueue.isEmpty())
+            return playQueue.peek();
+
+        int currentIndex = queueReturnIndex != -1 ? queueReturnIndex : trackIndex;
+        if (shuffle && tracks.size() > 1) {
+            ShuffleOrder order = getShuffleOrder();
+            int newPosition = order.peekNext();
+            if (newPosition == -1 && repeatMode == RepeatMode.REPEAT_ALL) {
+                order.reshuffle(currentIndex, random);
+                newPosition = order.peekNext();
             }
+            return newPosition;
         }
 
-        // The new index is selected - play the track
-        playTrack();
+        int newPosition = toSortedPosition(currentIndex) + 1;
+        if (newPosition >= tracks.size()) {
+            if (repeatMode != RepeatMode.REPEAT_ALL)
+                return -1;
+            newPosition = 0;
+        }
+        return fromSortedPosition(newPosition);
+    }
+
+    /**
+     * Find the tracks playNext() will select, in the order it will select them, without
+     * changing the state. The prediction ends where peekNextIndex() would reshuffle or stop.
+     * @param result Receives the track indexes, its length is the number of tracks to predict
+     * @return The number of predicted tracks
+     */
+    private int peekNextIndexes(int[] result) {
+        if (tracks == null || tracks.isEmpty())
+            return 0;
+        int count = 0;
+        for (int i = 0; i < playQueue.size() && count < result.length; i++)
+            result[count++] = playQueue.get(i);
+
+        int currentIndex = queueReturnIndex != -1 ? queueReturnIndex : trackIndex;
+        if (shuffle && tracks.size() > 1) {
+            ShuffleOrder order = getShuffleOrder();
+            for (int offset = 1; count < result.length; offset++) {
+                int index = order.peek(offset);
+                if (index == -1)
+                    break;
+                result[count++] = index;
+            }
+            return count;
+        }
+
+        int position = toSortedPosition(currentIndex);
+        while (count < result.length) {
+            if (++position >= tracks.size()) {
+                if (repeatMode != RepeatMode.REPEAT_ALL)
+                    break;
+                position = 0;
+            }
+            int index = fromSortedPosition(position);
+            if (index == currentIndex)
+                break;
+            result[count++] = index;
+        }
+        return count;
     }
 
     /**
-     * Calculates the previous track to select, while considering shuffle mode and shuffle stack.
+     * Calculates the previous track to select, while considering shuffle mode and shuffle order.
      */
     public void playPrevious() {
-        // Deselect the last track
-        Track lastTrack = tracks.get(trackIndex);
-        lastTrack.setPlaying(false);
-        lastTrack.setSelected(false);
+        if (tracks == null || tracks.isEmpty())
+            return;
+
+        // Playing from the queue - put the track back in the queue and return to the track before it
+        if (queueReturnIndex != -1) {
+            playQueue.addFirst(trackIndex);
+            trackIndex = queueReturnIndex;
+            queueReturnIndex = -1;
+            playTrack();
+            return;
+        }
 
-        if (shuffle && !shuffleStack.isEmpty()) {
-            trackIndex = shuffleStack.pop();
+        int previous = shuffle && shuffleOrder != null ? shuffleOrder.previous() : -1;
+        if (previous != -1) {
+            trackIndex = previous;
         } else {
-            trackIndex--;
-            if (trackIndex < 0)
-                trackIndex = tracks.size() - 1;
+            int position = toSortedPosition(trackIndex) - 1;
+            if (position < 0)
+                position = tracks.size() - 1;
+            trackIndex = fromSortedPosition(position);
         }
 
         // The new index is selected - play the track
@@ -287,6 +552,47 @@ public class MusicPlayerService extends Service implements MediaPlayer.OnErrorLi
 
     public ArrayList<Track> getTracks() { return tracks; }
 
+    public PlayQueue getPlayQueue() { return playQueue; }
+
+    /**
+     * Add a track to the head of the queue, it's played after the current track
+     * @param trackPosition The track index
+     */
+    public void playAfterCurrent(int trackPosition) {
+        playQueue.addFirst(trackPosition);
+        invalidateNextPlayer();
+    }
+
+    /**
+     * Add a track to the end of the queue
+     * @param trackPosition The track index
+     */
+    public void addToQueue(int trackPosition) {
+        playQueue.add(trackPosition);
+        invalidateNextPlayer();
+    }
+
+    /**
+     * Add all the tracks of an album to the end of the queue, in the track list order
+     * @param trackPosition The index of a track of the album
+     * @return The number of tracks added
+     */
+    public int addAlbumToQueue(int trackPosition) {
+        int albumId = tracks.get(trackPosition).getAlbumId();
+        int[] albumTracks = new int[16];
+        int count = 0;
+        for (int i = 0; i < tracks.size(); i++) {
+            if (tracks.get(i).getAlbumId() != albumId)
+                continue;
+            if (count == albumTracks.length)
+                albumTracks = Arrays.copyOf(albumTracks, count * 2);
+            albumTracks[count++] = i;
+        }
+        playQueue.addAll(albumTracks, count, false);
+        invalidateNextPlayer();
+        return count;
+    }
+
     /**
      * Seeks to the requested position in the track
      * @param position the requested position
@@ -295,8 +601,8 @@ public class MusicPlayerService extends Service implements MediaPlayer.OnErrorLi
         if (playerReady) {
             int trackTime = (int) (mediaPlayer.getDuration() / 100.0f * position);
             mediaPlayer.seekTo(trackTime);
-            if (callback != null)
-                callback.onPositionChanged(trackTime / 1000);
+            scheduleCrossfade();
+            playbackPublisher.invalidate();
         }
     }
 
@@ -304,6 +610,11 @@ public class MusicPlayerService extends Service implements MediaPlayer.OnErrorLi
         return (int) (mediaPlayer.getCurrentPosition() / 1000.0f);
     }
 
+    @Override
+    public int getPositionMillis() {
+        return mediaPlayer.getCurrentPosition();
+    }
+
     public int getDuration() {
         return mediaPlayer.getDuration();
     }
@@ -317,8 +628,9 @@ public class MusicPlayerService extends Service implements MediaPlayer.OnErrorLi
      */
     public void toggleShuffle() {
         shuffle = !shuffle;
-        if (callback != null)
-            callback.onShuffleModeChanged(shuffle);
+        shuffleOrder = null;
+        invalidateNextPlayer();
+        playbackPublisher.invalidate();
     }
 
     public RepeatMode getRepeatMode() {
@@ -330,20 +642,109 @@ public class MusicPlayerService extends Service implements MediaPlayer.OnErrorLi
      */
     public void toggleRepeatMode() {
         repeatMode = RepeatMode.values()[(repeatMode.ordinal() + 1) % RepeatMode.values().length];
-        if (callback != null)
-            callback.onRepeatModeChanged(repeatMode);
+        invalidateNextPlayer();
+        playbackPublisher.invalidate();
+    }
+
+    /**
+     * @return The crossfade length in seconds, 0 if crossfade is off
+     */
+    public int getCrossfade() {
+        return crossfadeMillis / 1000;
+    }
+
+    /**
+     * Set the crossfade length
+     * @param seconds The overlap between consecutive tracks, 0 to turn crossfade off
+     */
+    public void setCrossfade(int seconds) {
+        if (seconds * 1000 == crossfadeMillis)
+            return;
+        crossfadeMillis = seconds * 1000;
+
+        // Chain or unchain the next player
+        invalidateNextPlayer();
     }
 
     public void setShuffle(boolean shuffle) {
+        if (this.shuffle == shuffle)
+            return;
         this.shuffle = shuffle;
+        shuffleOrder = null;
+        invalidateNextPlayer();
+        playbackPublisher.invalidate();
     }
 
     public void setRepeatMode(RepeatMode repeatMode) {
         this.repeatMode = repeatMode;
+        invalidateNextPlayer();
+        playbackPublisher.invalidate();
     }
 
     public void setTracks(ArrayList<Track> tracks) {
         this.tracks = tracks;
+        tracksVersion++;
+        playQueue.setTracks(tracks);
+        queueReturnIndex = -1;
+        shuffleOrder = null;
+        sortedTracks = null;
+        sortedPositions = null;
+        invalidateNextPlayer();
+        playbackPublisher.invalidate();
+
+        // The list is in the library order until the sort keys have been computed
+        buildSortKeys();
+
+        // Continue the shuffle order of the previous session
+        if (shuffle)
+            restoreShuffleOrder();
+
+        // Keep the list up to date from now on
+        libraryObserver.register();
+    }
+
+    /**
+     * Apply changes in the library to the shared track list, keeping the selected track selected.
+     * If the selected track has been removed while it's playing, paused or preparing, the player
+     * is stopped. If the list is now empty, no track is selected (the index is -1).
+     * @param diff the changes, ignored if they don't match the current track list
+     */
+    @Override
+    public void applyLibraryDiff(LibraryDiff diff) {
+        if (tracks == null || !diff.matches(tracks)) {
+            Log.d(LOG_TAG, "Ignoring a stale library diff.");
+            return;
+        }
+
+        boolean selectedTrackRemoved = diff.mapPosition(trackIndex, false) == -1;
+
+        diff.applyTo(tracks);
+        tracksVersion++;
+        trackIndex = diff.mapSelection(trackIndex);
+        playQueue.applyDiff(diff);
+        if (queueReturnIndex != -1)
+            queueReturnIndex = diff.mapSelection(queueReturnIndex);
+
+        // Move the shuffle order to the new positions, the prepared next track is no longer valid
+        if (shuffleOrder != null) {
+            shuffleOrder.applyDiff(diff, random);
+            shuffleOrder.select(trackIndex);
+        }
+
+        // Keep the sort order until the list has been sorted again, new tracks go at the end
+        if (sortedTracks != null)
+            setSortedTracks(remapSortedTracks(diff));
+        buildSortKeys();
+        invalidateNextPlayer();
+        playbackPublisher.invalidate();
+        Log.d(LOG_TAG, "Library changed, " + diff + ", selected index: " + trackIndex);
+
+        // The player must not go on with a file that is no longer in the library
+        if (selectedTrackRemoved && (playerReady || preparing))
+            stop();
+
+        if (callback != null)
+            callback.onLibraryChanged(diff);
     }
 
     /**
@@ -351,88 +752,609 @@ public class MusicPlayerService extends Service implements MediaPlayer.OnErrorLi
      * @param trackPosition the new index
      */
     public void selectTrack(int trackPosition) {
-        // Track selected manually, clear the shuffle stack
-        shuffleStack.clear();
+        // Track selected manually, the shuffle order is updated once it starts.
+        // The queue is kept, the playback continues from the selected track after it.
         trackIndex = trackPosition;
+        queueReturnIndex = -1;
         Log.d(LOG_TAG, "Performing selection: " + trackIndex);
         playTrack();
     }
 
     public void setTrackIndex(int trackIndex) {
         this.trackIndex = trackIndex;
+        queueReturnIndex = -1;
+        if (shuffleOrder != null)
+            shuffleOrder.select(trackIndex);
+        invalidateNextPlayer();
+        playbackPublisher.invalidate();
     }
 
+    /**
+     * @return Index of the selected track, -1 if the track list is empty
+     */
     public int getSelectedTrackIndex() {
         return trackIndex;
     }
 
+    /**
+     * @return true if the selected track index is a position in the track list
+     */
+    private boolean hasSelectedTrack() {
+        return tracks != null && trackIndex >= 0 && trackIndex < tracks.size();
+    }
+
     public String getTrackTitle() {
         return trackTitle;
     }
 
+    public SortOrder getSortOrder() {
+        return sortOrder;
+    }
+
+    /**
+     * @return The track indexes in the sort order, null for the library order.
+     *         The array is shared, it must not be modified.
+     */
+    public int[] getSortedTracks() {
+        return sortedTracks;
+    }
+
+    /**
+     * Change the order the track list is played and displayed in. The order is applied once
+     * the sort keys have been computed, and onSortOrderChanged() is called.
+     */
+    public void setSortOrder(SortOrder sortOrder) {
+        if (this.sortOrder == sortOrder)
+            return;
+        this.sortOrder = sortOrder;
+        applySortOrder();
+    }
+
+    /**
+     * Sort the track list again by the active order, e.g. by the current play counts
+     */
+    public void refreshSortOrder() {
+        applySortOrder();
+    }
+
     public void setCallback(MusicServiceCallback callback) {
         this.callback = callback;
+        updatePowerState();
     }
 
     /**
-     * Creates a notification and starts foreground
-     * @param title notification title
-     * @param message notification content text and ticker
+     * Subscribe to the playback state, the listener gets the current state right away.
+     * Snapshots are delivered on the main thread, at most once per frame.
      */
-    private void notifyAndStartForeground(String title, String message) {
-        // Build the notification and start the foreground service
-        Intent notificationIntent = new Intent(this, MainActivity.class);
-        notificationIntent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
-        PendingIntent pendingIntent = PendingIntent.getActivity(this, 0,
-                notificationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+    public void addPlaybackListener(PlaybackPublisher.Listener listener) {
+        playbackPublisher.addListener(listener);
+    }
 
-        Notification notification = new NotificationCompat.Builder(this, App.SERVICE_CHANNEL_ID)
-                .setSmallIcon(R.drawable.amp_icon_alpha)
-                .setContentIntent(pendingIntent)
-                .setContentTitle(title)
-                .setContentText(message)
-                .setTicker(message)
-                .setOngoing(true)
-                .build();
+    public void removePlaybackListener(PlaybackPublisher.Listener listener) {
+        playbackPublisher.removeListener(listener);
+    }
 
-        startForeground(NOTIFICATION_ID, notification);
+    /**
+     * @return The current playback state
+     */
+    public PlaybackSnapshot getPlaybackSnapshot() {
+        return playbackPublisher.getSnapshot();
     }
 
+    /**
+     * Take a snapshot of the playback state, see PlaybackPublisher
+     */
+    private PlaybackSnapshot createPlaybackSnapshot(long version) {
+        PlaybackSnapshot.State state;
+        int position = 0;
+        if (preparing) {
+            // The position can't be read until the track has been prepared
+            state = PlaybackSnapshot.State.PREPARING;
+        } else if (!playerReady) {
+            state = PlaybackSnapshot.State.STOPPED;
+        } else {
+            state = mediaPlayer.isPlaying() ? PlaybackSnapshot.State.PLAYING : PlaybackSnapshot.State.PAUSED;
+            position = mediaPlayer.getCurrentPosition();
+        }
+
+        boolean hasTrack = hasSelectedTrack();
+        return new PlaybackSnapshot(version, hasTrack ? trackIndex : -1,
+                hasTrack ? tracks.get(trackIndex).getId() : -1, state, position, shuffle, repeatMode);
+    }
+
+    /**
+     * Report the power state: interactive while the activity is visible on a screen that's on,
+     * otherwise playing in the background or idle. The idle and background states have a budget.
+     */
+    private void updatePowerState() {
+        if (screenInteractive && callback != null)
+            PowerStats.setState(PowerStats.State.INTERACTIVE);
+        else if (mediaPlayer.isPlaying())
+            PowerStats.setState(PowerStats.State.BACKGROUND_PLAYBACK);
+        else
+            PowerStats.setState(PowerStats.State.IDLE_PAUSED);
+    }
+
+    /**
+     * @return The content URI of a track
+     */
+    private static Uri getTrackUri(Track track) {
+        return ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, track.getId());
+    }
+
+    // --- Gapless playback
+
+    /**
+     * Prepare nextPlayer with the track that will be played when the current one completes.
+     * It is chained to the current player once it's prepared (see onPrepared()).
+     */
+    private void prepareNextPlayer() {
+        releaseNextPlayer();
+        if (tracks == null || tracks.isEmpty())
+            return;
+
+        boolean fromQueue = repeatMode != RepeatMode.REPEAT_TRACK && !playQueue.isEmpty();
+        int index = repeatMode == RepeatMode.REPEAT_TRACK ? trackIndex : peekNextIndex();
+        prefetchLyrics();
+        if (index == -1)
+            return;
+
+        MediaPlayer mp = initMediaPlayer();
+        try {
+            mp.setDataSource(getApplicationContext(), getTrackUri(tracks.get(index)));
+        } catch (Exception e) {
+            // Not fatal, the track is loaded again when it's selected
+            Log.w(LOG_TAG, "Failed to prepare the next track: " + tracks.get(index), e);
+            mp.release();
+            return;
+        }
+        nextPlayer = mp;
+        nextTrackIndex = index;
+        nextPlayerFromQueue = fromQueue;
+        mp.prepareAsync();
+    }
+
+    /**
+     * Discard the prepared next track, and prepare it again if a track is playing or paused.
+     * Called whenever the track that follows the current one may have changed.
+     */
+    private void invalidateNextPlayer() {
+        releaseNextPlayer();
+        if (playerReady)
+            prepareNextPlayer();
+    }
+
+    /**
+     * Unchain and release nextPlayer
+     */
+    private void releaseNextPlayer() {
+        handler.removeCallbacks(crossfadeStarter);
+        if (nextPlayer == null)
+            return;
+
+        if (nextPlayerChained) {
+            try {
+                mediaPlayer.setNextMediaPlayer(null);
+            } catch (IllegalStateException e) {
+                Log.w(LOG_TAG, "Failed to unchain the next player.", e);
+            }
+        }
+        nextPlayer.release();
+        nextPlayer = null;
+        nextTrackIndex = -1;
+        nextPlayerFromQueue = false;
+        nextPlayerPrepared = false;
+        nextPlayerChained = false;
+    }
+
+    /**
+     * Make the prepared nextPlayer the current player. The caller is responsible for
+     * starting it and calling onPlaybackStarted().
+     * @return The previous player, to be released by the caller
+     */
+    private MediaPlayer takeNextPlayer() {
+        if (repeatMode != RepeatMode.REPEAT_TRACK)
+            recordAdvance(nextPlayerFromQueue);
+
+        MediaPlayer lastPlayer = mediaPlayer;
+        mediaPlayer = nextPlayer;
+        trackIndex = nextTrackIndex;
+        nextPlayer = null;
+        nextTrackIndex = -1;
+        nextPlayerFromQueue = false;
+        nextPlayerPrepared = false;
+        nextPlayerChained = false;
+
+        Track track = tracks.get(trackIndex);
+        trackTitle = track.getArtist() + " - " + track.getTitle();
+        return lastPlayer;
+    }
+
+    /**
+     * Update the queue before moving to the next track
+     * @param fromQueue Is the next track the head of the queue?
+     */
+    private void recordAdvance(boolean fromQueue) {
+        if (fromQueue) {
+            playQueue.poll();
+            if (queueReturnIndex == -1)
+                queueReturnIndex = trackIndex;
+        } else {
+            queueReturnIndex = -1;
+        }
+    }
+
+    // --- Lyrics prefetch
+
+    /**
+     * Prefetch the lyrics of the tracks playNext() will select, cancelling the previous prediction
+     */
+    private void prefetchLyrics() {
+        int[] indexes = new int[LYRICS_PREFETCH_COUNT];
+        int count = peekNextIndexes(indexes);
+        List<Track> upcoming = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            upcoming.add(tracks.get(indexes[i]));
+        lyricsPrefetcher.prefetch(upcoming);
+    }
+
+    // --- Shuffle order
+
+    /**
+     * @return The shuffle order, a new one is created if there's none for the current track list
+     */
+    private ShuffleOrder getShuffleOrder() {
+        if (shuffleOrder == null || shuffleOrder.size() != tracks.size())
+            shuffleOrder = new ShuffleOrder(tracks.size(), trackIndex, random);
+        return shuffleOrder;
+    }
+
+    private File getShuffleOrderFile() {
+        return new File(getFilesDir(), SHUFFLE_ORDER_FILE);
+    }
+
+    /**
+     * Read the saved shuffle order on the I/O thread, it's used unless the track list or
+     * the shuffle mode have changed, or an order has been created in the meantime.
+     */
+    private void restoreShuffleOrder() {
+        final File file = getShuffleOrderFile();
+        final List<Track> savedTracks = new ArrayList<>(tracks);
+        final int version = tracksVersion;
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ShuffleOrder restored = ShuffleOrder.read(file, savedTracks, random);
+                if (restored == null)
+                    return;
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!shuffle || shuffleOrder != null || version != tracksVersion)
+                            return;
+                        Log.d(LOG_TAG, "Shuffle order restored.");
+                        shuffleOrder = restored;
+                        shuffleOrder.select(trackIndex);
+                        invalidateNextPlayer();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Save the shuffle order on the I/O thread, or delete the saved one if shuffle mode is off
+     */
+    private void saveShuffleOrder() {
+        if (tracks == null || ioExecutor.isShutdown())
+            return;
+
+        final File file = getShuffleOrderFile();
+        final long[] trackIds = shuffle && shuffleOrder != null ? shuffleOrder.getTrackIds(tracks) : null;
+        final int cursor = trackIds != null ? shuffleOrder.getCursor() : -1;
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (trackIds != null) {
+                    ShuffleOrder.write(file, trackIds, cursor);
+                } else {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        });
+    }
+
+    private File getPlayCountsFile() {
+        return new File(getFilesDir(), PLAY_COUNTS_FILE);
+    }
+
+    /**
+     * Read the saved play counts on the I/O thread, and add them to the plays counted in the meantime
+     */
+    private void restorePlayCounts() {
+        final File file = getPlayCountsFile();
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final PlayCounts restored = PlayCounts.read(file);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        playCounts.addAll(restored);
+                        playCountsRestored = true;
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Save the shuffle order and the play counts on the I/O thread.
+     * The play counts are only saved once the saved ones have been restored, so they aren't
+     * overwritten by the plays of this session alone.
+     */
+    private void saveState() {
+        saveShuffleOrder();
+        if (ioExecutor.isShutdown() || !playCountsRestored)
+            return;
+
+        final File file = getPlayCountsFile();
+        final PlayCounts counts = playCounts.copy();
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                counts.write(file);
+            }
+        });
+    }
+
+    // --- Sort order
+
+    /**
+     * Compute the sort keys of the track list on the I/O thread, along with every order that
+     * doesn't depend on the play counts. The active order is applied once they're ready.
+     */
+    private void buildSortKeys() {
+        trackSorter = null;
+        sortedTracksCache.clear();
+        if (ioExecutor.isShutdown())
+            return;
+
+        final List<Track> sortedList = new ArrayList<>(tracks);
+        final int version = tracksVersion;
+        ioExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.currentTimeMillis();
+                final TrackSorter sorter = new TrackSorter(sortedList);
+                final EnumMap<SortOrder, int[]> orders = new EnumMap<>(SortOrder.class);
+                for (SortOrder order : SortOrder.values()) {
+                    if (order != SortOrder.PLAY_COUNT)
+                        orders.put(order, sorter.sort(order, null));
+                }
+                Log.d(LOG_TAG, "Sorted " + sortedList.size() + " tracks in "
+                        + (System.currentTimeMillis() - startTime) + "ms.");
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (version != tracksVersion)
+                            return;
+                        trackSorter = sorter;
+                        sortedTracksCache.putAll(orders);
+                        applySortOrder();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Switch to the active sort order, if the sort keys are ready
+     */
+    private void applySortOrder() {
+        if (trackSorter == null)
+            return;
+
+        setSortedTracks(sortOrder == SortOrder.PLAY_COUNT
+                ? trackSorter.sort(sortOrder, playCounts)
+                : sortedTracksCache.get(sortOrder));
+        invalidateNextPlayer();
+        if (callback != null)
+            callback.onSortOrderChanged(sortOrder);
+    }
+
+    private void setSortedTracks(int[] sortedTracks) {
+        this.sortedTracks = sortedTracks;
+        this.sortedPositions = sortedTracks != null ? TrackSorter.invert(sortedTracks) : null;
+    }
+
+    /**
+     * Move the sort order to the new track positions - removed tracks are dropped,
+     * inserted tracks are added at the end
+     */
+    private int[] remapSortedTracks(LibraryDiff diff) {
+        int[] result = new int[tracks.size()];
+        int count = 0;
+        for (int index : sortedTracks) {
+            int newIndex = diff.mapPosition(index, false);
+            if (newIndex != -1)
+                result[count++] = newIndex;
+        }
+        boolean[] placed = new boolean[tracks.size()];
+        for (int i = 0; i < count; i++)
+            placed[result[i]] = true;
+        for (int i = 0; i < tracks.size(); i++) {
+            if (!placed[i])
+                result[count++] = i;
+        }
+        return result;
+    }
+
+    /**
+     * @return The position of a track index in the sort order
+     */
+    private int toSortedPosition(int index) {
+        return sortedPositions != null ? sortedPositions[index] : index;
+    }
+
+    /**
+     * @return The track index at a position in the sort order
+     */
+    private int fromSortedPosition(int position) {
+        return sortedTracks != null ? sortedTracks[position] : position;
+    }
+
+    // --- Crossfade
+
+    /**
+     * @return The length of the crossfade into the next track, at most half of the current track
+     */
+    private int getFadeMillis() {
+        return Math.min(crossfadeMillis, mediaPlayer.getDuration() / 2);
+    }
+
+    /**
+     * (Re)schedule the crossfade into the prepared next track, if crossfade is on and a track is playing
+     */
+    private void scheduleCrossfade() {
+        handler.removeCallbacks(crossfadeStarter);
+        checkCrossfade();
+    }
+
+    /**
+     * Start the crossfade if it's time, otherwise post crossfadeStarter for the remaining time.
+     * The remaining time is measured again every time, so a late or early post is corrected.
+     */
+    private void checkCrossfade() {
+        if (crossfadeMillis == 0 || !nextPlayerPrepared || !mediaPlayer.isPlaying())
+            return;
+
+        int delay = mediaPlayer.getDuration() - mediaPlayer.getCurrentPosition() - getFadeMillis();
+        if (delay > 0) {
+            handler.postDelayed(crossfadeStarter, delay);
+            PowerStats.post(PowerStats.Component.CROSSFADER);
+            return;
+        }
+
+        // Fade into the next track, the previous player is released by the crossfader
+        int fadeMillis = getFadeMillis();
+        MediaPlayer lastPlayer = takeNextPlayer();
+        crossfader.start(lastPlayer, mediaPlayer, fadeMillis);
+        mediaPlayer.start();
+        onPlaybackStarted();
+    }
+
+    /**
+     * The current player has started a new track - notify and prepare the following track
+     */
+    private void onPlaybackStarted() {
+        playerReady = true;
+        preparing = false;
+
+        // Move the shuffle order to the new track, unless it's from the queue
+        if (shuffleOrder != null && queueReturnIndex == -1)
+            shuffleOrder.select(trackIndex);
+
+        playbackPublisher.invalidate();
+        updatePowerState();
+
+        playCounts.increment(tracks.get(trackIndex).getId());
+        prepareNextPlayer();
+    }
 
     // --- MediaPlayer interfaces methods
 
     @Override
     public void onCompletion(MediaPlayer mp) {
-        if (mp.getCurrentPosition() > 0) {
-            mp.reset();
+        long cpu = PowerStats.begin();
+        try {
+            // The track faded out, the next track is already playing
+            if (crossfader.isFadingOut(mp)) {
+                crossfader.finish();
+                return;
+            }
+            if (mp != mediaPlayer)
+                return;
+
+            // Switch to the prepared player, unless it's chained it hasn't started yet
+            if (nextPlayerPrepared) {
+                boolean started = nextPlayerChained;
+                takeNextPlayer().release();
+                if (!started)
+                    mediaPlayer.start();
+                onPlaybackStarted();
+                return;
+            }
+
+            if (mp.getCurrentPosition() > 0) {
+                mp.reset();
 
-            if (repeatMode == RepeatMode.REPEAT_TRACK) {
-                playTrack();
-            } else {
-                playNext();
+                if (repeatMode == RepeatMode.REPEAT_TRACK) {
+                    playTrack();
+                } else {
+                    playNext();
+                }
             }
+        } finally {
+            PowerStats.end(PowerStats.Component.PLAYER_CALLBACKS, cpu);
         }
     }
 
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
-        Toast.makeText(getApplicationContext(), "An error has occurred.", Toast.LENGTH_LONG).show();
-        mp.reset();
+        long cpu = PowerStats.begin();
+        try {
+            // The track that's fading out failed, skip the rest of the fade
+            if (crossfader.isFadingOut(mp)) {
+                crossfader.finish();
+                return true;
+            }
 
-        if (callback != null)
-            callback.onTrackPaused();
-        return false;
+            // The next track failed to load, it is loaded again when it's selected
+            if (mp == nextPlayer) {
+                Log.w(LOG_TAG, "Failed to prepare the next track (" + what + ", " + extra + ").");
+                releaseNextPlayer();
+                return true;
+            }
+
+            Toast.makeText(getApplicationContext(), "An error has occurred.", Toast.LENGTH_LONG).show();
+            releaseNextPlayer();
+            mp.reset();
+
+            // The player has to prepare the track again
+            playerReady = false;
+            preparing = false;
+            playbackPublisher.invalidate();
+            updatePowerState();
+            return false;
+        } finally {
+            PowerStats.end(PowerStats.Component.PLAYER_CALLBACKS, cpu);
+        }
     }
 
     @Override
     public void onPrepared(MediaPlayer mp) {
-        playerReady = true;
-        mp.start();
-
-        if (callback != null)
-            callback.onTrackStarted(trackIndex);
+        long cpu = PowerStats.begin();
+        try {
+            // The next track is ready - chain it to the current player, or schedule the crossfade
+            if (mp == nextPlayer) {
+                nextPlayerPrepared = true;
+                if (crossfadeMillis == 0) {
+                    mediaPlayer.setNextMediaPlayer(mp);
+                    nextPlayerChained = true;
+                } else {
+                    scheduleCrossfade();
+                }
+                return;
+            }
 
-        notifyAndStartForeground("Now Playing...", trackTitle);
+            mp.start();
+            onPlaybackStarted();
+        } finally {
+            PowerStats.end(PowerStats.Component.PLAYER_CALLBACKS, cpu);
+        }
     }
 
     /**
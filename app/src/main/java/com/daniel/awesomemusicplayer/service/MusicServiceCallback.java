@@ -1,50 +1,27 @@
 package com.daniel.awesomemusicplayer.service;
 
 
-import com.daniel.awesomemusicplayer.tracks.RepeatMode;
+import com.daniel.awesomemusicplayer.tracks.LibraryDiff;
+import com.daniel.awesomemusicplayer.tracks.SortOrder;
 
 /**
- * Interface for communication from MusicPlayerService back to MainActivity
+ * Interface for communication from MusicPlayerService back to MainActivity.
+ * The playback state is published separately, see MusicPlayerService.addPlaybackListener()
  */
 public interface MusicServiceCallback {
 
     /**
-     * This method is called after a new track has been prepared and it has started playing
-     * @param trackIndex index of the playing track in the playlist
+     * This method is called after tracks have been added, removed or modified in the
+     * shared track list. The selected track index may have changed as well.
+     * @param diff the changes that have been applied to the track list
      */
-    void onTrackStarted(int trackIndex);
+    void onLibraryChanged(LibraryDiff diff);
 
     /**
-     * This method is called when the track is paused
+     * This method is called when the order of the track list has been computed,
+     * after the sort order has been changed or the track list has been sorted again
+     * @param sortOrder the active sort order, see MusicPlayerService.getSortedTracks()
      */
-    void onTrackPaused();
-
-    /**
-     * This method is called when the track is resumed
-     */
-    void onTrackResumed();
-
-    /**
-     * This method is called when the track is stopped
-     */
-    void onTrackStopped();
-
-    /**
-     * This method is called when the repeat mode is changed
-     * @param repeatMode the new active repeat mode
-     */
-    void onRepeatModeChanged(RepeatMode repeatMode);
-
-    /**
-     * This method is called when the shuffle mode is changed
-     * @param shuffleEnabled true if shuffle mode is enabled, otherwise false
-     */
-    void onShuffleModeChanged(boolean shuffleEnabled);
-
-    /**
-     * This method is called when the user seeks to a new position in the track
-     * @param trackTime the new position
-     */
-    void onPositionChanged(int trackTime);
+    void onSortOrderChanged(SortOrder sortOrder);
 
 }
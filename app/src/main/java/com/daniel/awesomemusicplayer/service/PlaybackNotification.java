@@ -0,0 +1,267 @@
+package com.daniel.awesomemusicplayer.service;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.v4.app.NotificationCompat;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.animation.GlideAnimation;
+import com.bumptech.glide.request.target.SimpleTarget;
+import com.daniel.awesomemusicplayer.App;
+import com.daniel.awesomemusicplayer.MainActivity;
+import com.daniel.awesomemusicplayer.R;
+import com.daniel.awesomemusicplayer.tracks.Track;
+import com.daniel.awesomemusicplayer.util.PowerStats;
+
+import java.util.ArrayList;
+
+/**
+ * PlaybackNotification keeps the foreground notification of the service in sync with the
+ * playback snapshots - the selected track, its album art and the transport actions.
+ *
+ * The builders and the PendingIntents are created once and reused. The notification is only
+ * posted when its content changes (a seek or a position change posts nothing), and at most every
+ * MIN_UPDATE_MILLIS - a burst of skips posts the last track only. The album art is loaded by Glide,
+ * downscaled to the size of the large icon.
+ * All methods must be called on the main thread.
+ */
+class PlaybackNotification implements PlaybackPublisher.Listener, Runnable {
+
+    /** Transport actions, handled by MusicPlayerService.onStartCommand() */
+    static final String ACTION_PREVIOUS     = "com.daniel.awesomemusicplayer.action.PREVIOUS";
+    static final String ACTION_PLAY_PAUSE   = "com.daniel.awesomemusicplayer.action.PLAY_PAUSE";
+    static final String ACTION_NEXT         = "com.daniel.awesomemusicplayer.action.NEXT";
+
+    private static final int NOTIFICATION_ID = 1234;
+
+    /** Minimum interval between updates, the system drops the updates of an app above 5 per second */
+    private static final int MIN_UPDATE_MILLIS = 500;
+
+    private final MusicPlayerService service;
+
+    /** Handler the rate limited updates are posted to */
+    private final Handler handler;
+
+    private final NotificationManager notificationManager;
+
+    /** Builders of the playing and the paused notification, they differ by the play / pause action */
+    private final NotificationCompat.Builder playingBuilder;
+    private final NotificationCompat.Builder pausedBuilder;
+
+    /** Size of the large icon, the album art is downscaled to it */
+    private final int artWidth, artHeight;
+
+    /** The latest snapshot */
+    private PlaybackSnapshot playback;
+
+    /** Has the notification been posted with startForeground()? */
+    private boolean foreground;
+
+    /** Is an update posted? */
+    private boolean scheduled;
+
+    /** Uptime of the last update */
+    private long updateTime;
+
+    /** The posted content */
+    private String shownText;
+    private boolean shownPlaying;
+    private Bitmap shownArt;
+
+    /** Album art of the selected track, null until it has been loaded or if there's none */
+    private String artUri;
+    private Bitmap art;
+
+    /** The album art being loaded, null if none */
+    private SimpleTarget<Bitmap> artTarget;
+
+    PlaybackNotification(@NonNull MusicPlayerService service, @NonNull Handler handler) {
+        this.service = service;
+        this.handler = handler;
+        notificationManager = (NotificationManager) service.getSystemService(Context.NOTIFICATION_SERVICE);
+
+        Intent notificationIntent = new Intent(service, MainActivity.class);
+        notificationIntent.addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP);
+        PendingIntent contentIntent = PendingIntent.getActivity(service, 0,
+                notificationIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+        PendingIntent previousIntent = getActionIntent(ACTION_PREVIOUS);
+        PendingIntent playPauseIntent = getActionIntent(ACTION_PLAY_PAUSE);
+        PendingIntent nextIntent = getActionIntent(ACTION_NEXT);
+
+        playingBuilder = createBuilder(contentIntent)
+                .addAction(R.drawable.btn_prev, "Previous", previousIntent)
+                .addAction(R.drawable.btn_pause, "Pause", playPauseIntent)
+                .addAction(R.drawable.btn_next, "Next", nextIntent);
+        pausedBuilder = createBuilder(contentIntent)
+                .addAction(R.drawable.btn_prev, "Previous", previousIntent)
+                .addAction(R.drawable.btn_play, "Play", playPauseIntent)
+                .addAction(R.drawable.btn_next, "Next", nextIntent);
+
+        Resources resources = service.getResources();
+        artWidth = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+        artHeight = resources.getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+    }
+
+    private NotificationCompat.Builder createBuilder(PendingIntent contentIntent) {
+        return new NotificationCompat.Builder(service, App.SERVICE_CHANNEL_ID)
+                .setSmallIcon(R.drawable.amp_icon_alpha)
+                .setContentIntent(contentIntent)
+                .setOngoing(true)
+                .setShowWhen(false)
+                .setOnlyAlertOnce(true)
+                .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
+                .setStyle(new android.support.v4.media.app.NotificationCompat.MediaStyle()
+                        .setShowActionsInCompactView(0, 1, 2));
+    }
+
+    private PendingIntent getActionIntent(String action) {
+        Intent intent = new Intent(service, MusicPlayerService.class).setAction(action);
+        return PendingIntent.getService(service, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    @Override
+    public void onPlaybackChanged(@NonNull PlaybackSnapshot snapshot) {
+        playback = snapshot;
+        Track track = getTrack();
+        if (track == null || snapshot.getState() == PlaybackSnapshot.State.STOPPED) {
+            remove();
+            return;
+        }
+
+        loadArt(track.getAlbumArtURI());
+        update();
+    }
+
+    /**
+     * Remove the pending update and the album art request
+     */
+    void release() {
+        handler.removeCallbacks(this);
+        scheduled = false;
+        loadArt(null);
+    }
+
+    /**
+     * @return The selected track of the latest snapshot, null if none
+     */
+    private Track getTrack() {
+        ArrayList<Track> tracks = service.getTracks();
+        int index = playback.getTrackIndex();
+        return tracks != null && index >= 0 && index < tracks.size() ? tracks.get(index) : null;
+    }
+
+    /**
+     * Post the notification if its content has changed - right away for the first one,
+     * which starts the foreground, otherwise no sooner than MIN_UPDATE_MILLIS after the last one
+     */
+    private void update() {
+        if (scheduled || !isChanged())
+            return;
+
+        long delay = foreground ? updateTime + MIN_UPDATE_MILLIS - SystemClock.uptimeMillis() : 0;
+        if (delay <= 0) {
+            post();
+        } else {
+            scheduled = true;
+            handler.postDelayed(this, delay);
+            PowerStats.post(PowerStats.Component.NOTIFICATION);
+        }
+    }
+
+    @Override
+    public void run() {
+        long cpu = PowerStats.begin();
+        scheduled = false;
+        if (isChanged())
+            post();
+        PowerStats.end(PowerStats.Component.NOTIFICATION, cpu);
+    }
+
+    private boolean isPlaying() {
+        return playback.getState() != PlaybackSnapshot.State.PAUSED;
+    }
+
+    /**
+     * @return Does the content of the latest snapshot differ from the posted one?
+     */
+    private boolean isChanged() {
+        Track track = getTrack();
+        return track != null && (!foreground || shownPlaying != isPlaying() || shownArt != art
+                || !track.getFullTitle().equals(shownText));
+    }
+
+    private void post() {
+        boolean playing = isPlaying();
+        String text = getTrack().getFullTitle();
+        NotificationCompat.Builder builder = playing ? playingBuilder : pausedBuilder;
+        Notification notification = builder
+                .setContentTitle(playing ? "Now Playing..." : "Paused")
+                .setContentText(text)
+                .setTicker(text)
+                .setLargeIcon(art)
+                .build();
+
+        if (foreground) {
+            notificationManager.notify(NOTIFICATION_ID, notification);
+        } else {
+            service.startForeground(NOTIFICATION_ID, notification);
+            foreground = true;
+        }
+        shownText = text;
+        shownPlaying = playing;
+        shownArt = art;
+        updateTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Remove the notification and leave the foreground
+     */
+    private void remove() {
+        handler.removeCallbacks(this);
+        scheduled = false;
+        if (foreground) {
+            service.stopForeground(true);
+            foreground = false;
+        }
+        shownText = null;
+    }
+
+    /**
+     * Load the album art of the selected track, unless it's already loaded
+     * @param uri The album art, null to remove it
+     */
+    private void loadArt(String uri) {
+        if (uri == null ? artUri == null : uri.equals(artUri))
+            return;
+
+        // The previous bitmap goes back to Glide's pool, it's replaced before the next post
+        artUri = uri;
+        art = null;
+        if (artTarget != null) {
+            Glide.clear(artTarget);
+            artTarget = null;
+        }
+        if (uri == null)
+            return;
+
+        artTarget = new SimpleTarget<Bitmap>(artWidth, artHeight) {
+            @Override
+            public void onResourceReady(Bitmap resource, GlideAnimation<? super Bitmap> glideAnimation) {
+                if (this != artTarget)
+                    return;
+                art = resource;
+                update();
+            }
+        };
+        Glide.with(service).load(uri).asBitmap().into(artTarget);
+    }
+
+}
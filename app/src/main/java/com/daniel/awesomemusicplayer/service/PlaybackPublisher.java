@@ -0,0 +1,138 @@
+package com.daniel.awesomemusicplayer.service;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import com.daniel.awesomemusicplayer.util.PowerStats;
+
+import java.util.ArrayList;
+
+/**
+ * PlaybackPublisher delivers the PlaybackSnapshots of the service to any number of listeners.
+ *
+ * The service invalidates the publisher whenever its playback state changes, and the snapshot is
+ * only taken when it's delivered - a burst of changes (e.g. a track change, which selects a track,
+ * then prepares and starts it) results in a single snapshot, and deliveries are at least a frame
+ * apart. Nothing is posted while there are no listeners.
+ *
+ * A listener gets the latest snapshot as soon as it's added. A listener added while a delivery is
+ * pending may get the same snapshot again, listeners should ignore versions they've already seen.
+ * All methods must be called on the thread of the Handler.
+ */
+public class PlaybackPublisher implements Runnable {
+
+    /** Receives the snapshots */
+    public interface Listener {
+        void onPlaybackChanged(@NonNull PlaybackSnapshot snapshot);
+    }
+
+    /** Takes the snapshots */
+    interface Source {
+        @NonNull
+        PlaybackSnapshot takeSnapshot(long version);
+    }
+
+    /** Minimum interval between deliveries, a frame at 60 fps */
+    private static final int FRAME_MILLIS = 16;
+
+    /** Handler the deliveries are posted to */
+    private final Handler handler;
+
+    private final Source source;
+
+    private final ArrayList<Listener> listeners = new ArrayList<>();
+
+    /** The latest snapshot, null until one is taken */
+    private PlaybackSnapshot latest;
+
+    /** Version of the latest snapshot */
+    private long version;
+
+    /** Has the state changed since the latest snapshot? */
+    private boolean invalid = true;
+
+    /** Is a delivery posted? */
+    private boolean scheduled;
+
+    /** Version of the last snapshot delivered to all the listeners */
+    private long deliveredVersion;
+
+    /** Uptime of the last delivery */
+    private long deliveryTime = -FRAME_MILLIS;
+
+    PlaybackPublisher(@NonNull Handler handler, @NonNull Source source) {
+        this.handler = handler;
+        this.source = source;
+    }
+
+    /**
+     * Add a listener, and pass it the latest snapshot right away
+     */
+    public void addListener(@NonNull Listener listener) {
+        if (!listeners.contains(listener))
+            listeners.add(listener);
+        listener.onPlaybackChanged(getSnapshot());
+    }
+
+    public void removeListener(@NonNull Listener listener) {
+        listeners.remove(listener);
+        if (listeners.isEmpty() && scheduled) {
+            handler.removeCallbacks(this);
+            scheduled = false;
+        }
+    }
+
+    /**
+     * @return The current playback state, a new snapshot is only taken if it has changed
+     */
+    @NonNull
+    public PlaybackSnapshot getSnapshot() {
+        if (invalid) {
+            latest = source.takeSnapshot(++version);
+            invalid = false;
+        }
+        return latest;
+    }
+
+    /**
+     * The playback state has changed - schedule a delivery, unless one is already scheduled
+     */
+    void invalidate() {
+        invalid = true;
+        if (scheduled || listeners.isEmpty())
+            return;
+
+        scheduled = true;
+        handler.postDelayed(this, Math.max(0, deliveryTime + FRAME_MILLIS - SystemClock.uptimeMillis()));
+        PowerStats.post(PowerStats.Component.PLAYBACK_PUBLISHER);
+    }
+
+    /**
+     * Remove the listeners and the pending delivery
+     */
+    void release() {
+        listeners.clear();
+        handler.removeCallbacks(this);
+        scheduled = false;
+    }
+
+    @Override
+    public void run() {
+        long cpu = PowerStats.begin();
+        scheduled = false;
+        PlaybackSnapshot snapshot = getSnapshot();
+        if (snapshot.getVersion() != deliveredVersion) {
+            deliveredVersion = snapshot.getVersion();
+            deliveryTime = SystemClock.uptimeMillis();
+
+            // Backwards, a listener may remove itself
+            for (int i = listeners.size() - 1; i >= 0; i--) {
+                if (i < listeners.size())
+                    listeners.get(i).onPlaybackChanged(snapshot);
+            }
+        }
+        PowerStats.end(PowerStats.Component.PLAYBACK_PUBLISHER, cpu);
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.daniel.awesomemusicplayer.service;
+
+import android.support.annotation.NonNull;
+
+import com.daniel.awesomemusicplayer.tracks.RepeatMode;
+
+/**
+ * PlaybackSnapshot - the playback state of MusicPlayerService at one point in time:
+ * the selected track, the player state, the position and the playback modes.
+ *
+ * Snapshots are immutable, and numbered by the PlaybackPublisher in the order they're taken -
+ * a snapshot with a higher version is newer.
+ */
+public final class PlaybackSnapshot {
+
+    /** State of the player */
+    public enum State {
+        /** Nothing is loaded, the selected track is played from the start */
+        STOPPED,
+        /** The selected track is loading, it starts playing once it's prepared */
+        PREPARING,
+        PLAYING,
+        PAUSED
+    }
+
+    private final long version;
+    private final int trackIndex;
+    private final long trackId;
+    private final State state;
+    private final int positionMillis;
+    private final boolean shuffle;
+    private final RepeatMode repeatMode;
+
+    PlaybackSnapshot(long version, int trackIndex, long trackId, @NonNull State state, int positionMillis,
+                     boolean shuffle, @NonNull RepeatMode repeatMode) {
+        this.version = version;
+        this.trackIndex = trackIndex;
+        this.trackId = trackId;
+        this.state = state;
+        this.positionMillis = positionMillis;
+        this.shuffle = shuffle;
+        this.repeatMode = repeatMode;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return Index of the selected track in the shared track list, -1 if there are no tracks
+     */
+    public int getTrackIndex() {
+        return trackIndex;
+    }
+
+    /**
+     * @return ID of the selected track, -1 if there are no tracks.
+     *         The index of a track changes with the library, its ID doesn't.
+     */
+    public long getTrackId() {
+        return trackId;
+    }
+
+    @NonNull
+    public State getState() {
+        return state;
+    }
+
+    public boolean isPlaying() {
+        return state == State.PLAYING;
+    }
+
+    /**
+     * @return The playback position when the snapshot was taken, 0 unless playing or paused
+     */
+    public int getPositionMillis() {
+        return positionMillis;
+    }
+
+    public boolean isShuffled() {
+        return shuffle;
+    }
+
+    @NonNull
+    public RepeatMode getRepeatMode() {
+        return repeatMode;
+    }
+
+    @Override
+    public String toString() {
+        return "PlaybackSnapshot " + version + " [track: " + trackIndex + ", " + state + " at "
+                + positionMillis + " ms, shuffle: " + shuffle + ", repeat: " + repeatMode + "]";
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.daniel.awesomemusicplayer.service;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+
+import com.daniel.awesomemusicplayer.util.PowerStats;
+
+/**
+ * PositionTicker publishes the playback position while a track is playing.
+ *
+ * Every tick reads the position from the player, so the displayed position never drifts from it,
+ * and the next tick is posted to the Handler right after the next second of the track starts.
+ * No thread is used, and nothing is posted while the ticker is stopped - it should be stopped
+ * whenever the track isn't playing or the position isn't visible.
+ * All methods must be called on the thread of the Handler.
+ */
+public class PositionTicker implements Runnable {
+
+    /** Source of the playback position */
+    public interface Clock {
+        /**
+         * @return The playback position in milliseconds
+         */
+        int getPositionMillis();
+    }
+
+    /** Receives the position on every tick */
+    public interface Listener {
+        void onTick(int positionMillis);
+    }
+
+    /** Interval between ticks, the position labels show whole seconds */
+    private static final int TICK_MILLIS = 1000;
+
+    /** Delay after the second boundary, so the position read by the tick is past it */
+    private static final int SLACK_MILLIS = 10;
+
+    /** Handler the ticks are posted to */
+    private final Handler handler;
+
+    private final Listener listener;
+
+    /** The clock being read, null while the ticker is stopped */
+    private Clock clock;
+
+    public PositionTicker(@NonNull Handler handler, @NonNull Listener listener) {
+        this.handler = handler;
+        this.listener = listener;
+    }
+
+    /**
+     * Tick right away, then on every second of the track. Starting a running ticker realigns
+     * the ticks to the current position, e.g. after a seek.
+     * @param clock Source of the position
+     */
+    public void start(@NonNull Clock clock) {
+        this.clock = clock;
+        handler.removeCallbacks(this);
+        run();
+    }
+
+    /**
+     * Stop ticking, nothing is posted until the ticker is started again
+     */
+    public void stop() {
+        clock = null;
+        handler.removeCallbacks(this);
+    }
+
+    public boolean isRunning() {
+        return clock != null;
+    }
+
+    @Override
+    public void run() {
+        long cpu = PowerStats.begin();
+        int position = clock.getPositionMillis();
+        listener.onTick(position);
+
+        // The listener may have stopped the ticker
+        if (clock != null) {
+            handler.postDelayed(this, TICK_MILLIS - position % TICK_MILLIS + SLACK_MILLIS);
+            PowerStats.post(PowerStats.Component.POSITION_TICKER);
+        }
+        PowerStats.end(PowerStats.Component.POSITION_TICKER, cpu);
+    }
+
+}
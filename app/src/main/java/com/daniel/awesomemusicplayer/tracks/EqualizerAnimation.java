@@ -0,0 +1,99 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import android.content.Context;
+import android.graphics.drawable.BitmapDrawable;
+import android.support.annotation.NonNull;
+import android.view.View;
+import android.widget.ImageView;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
+import com.bumptech.glide.load.resource.drawable.GlideDrawable;
+import com.bumptech.glide.load.resource.gif.GifDrawable;
+import com.bumptech.glide.request.animation.GlideAnimation;
+import com.bumptech.glide.request.target.SimpleTarget;
+import com.daniel.awesomemusicplayer.R;
+
+/**
+ * EqualizerAnimation holds the equalizer shown on the selected row of the track list.
+ * The GIF is decoded once, when the adapter is created - the animated drawable and its first
+ * frame (shown while the track is paused) are shared by all the rows.
+ *
+ * Only one row is selected at a time, so the drawables are attached to a single ImageView.
+ * Attaching them to another view detaches them from the previous one first, so the animation
+ * never invalidates a view that has been recycled for another track.
+ */
+class EqualizerAnimation {
+
+    /** The animated equalizer, null until the GIF is decoded */
+    private GifDrawable animated;
+
+    /** The first frame of the equalizer, null until the GIF is decoded */
+    private BitmapDrawable still;
+
+    /** The view the equalizer is attached to, null if it isn't attached */
+    private ImageView owner;
+
+    /** Is the attached equalizer animating? */
+    private boolean playing;
+
+    EqualizerAnimation(@NonNull final Context context) {
+        Glide.with(context)
+                .load(R.drawable.equalizer)
+                .asGif()
+                .diskCacheStrategy(DiskCacheStrategy.SOURCE)
+                .into(new SimpleTarget<GifDrawable>() {
+                    @Override
+                    public void onResourceReady(GifDrawable resource,
+                                                GlideAnimation<? super GifDrawable> glideAnimation) {
+                        resource.setLoopCount(GlideDrawable.LOOP_FOREVER);
+                        animated = resource;
+                        still = new BitmapDrawable(context.getResources(), resource.getFirstFrame());
+
+                        // A row may have been selected while the GIF was decoding
+                        if (owner != null)
+                            attach(owner, playing);
+                    }
+                });
+    }
+
+    /**
+     * Show the equalizer on a view, detaching it from the previous view
+     * @param view The equalizer ImageView of the selected row
+     * @param playing true to show the animation, false to show the still frame
+     */
+    void attach(@NonNull ImageView view, boolean playing) {
+        if (owner != null && owner != view)
+            detach(owner);
+        owner = view;
+        this.playing = playing;
+        view.setVisibility(View.VISIBLE);
+
+        // Not decoded yet, the drawable is set once it is
+        if (animated == null)
+            return;
+
+        if (playing) {
+            view.setImageDrawable(animated);
+            animated.start();
+        } else {
+            animated.stop();
+            view.setImageDrawable(still);
+        }
+    }
+
+    /**
+     * Hide the equalizer on a view. Does nothing to the shared drawables if they're attached
+     * to another view.
+     */
+    void detach(@NonNull ImageView view) {
+        if (view == owner) {
+            if (animated != null)
+                animated.stop();
+            owner = null;
+        }
+        view.setImageDrawable(null);
+        view.setVisibility(View.GONE);
+    }
+
+}
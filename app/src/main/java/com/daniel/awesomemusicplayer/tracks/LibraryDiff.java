@@ -0,0 +1,262 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import android.support.annotation.NonNull;
+
+import com.daniel.awesomemusicplayer.util.LongIntMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LibraryDiff describes the changes between two versions of the track list
+ * as removals, insertions and updates, so a list can be brought up to date
+ * without replacing it, and the positions of the tracks that remain can be tracked.
+ *
+ * Tracks are matched by ID. A track whose position relative to the other tracks has changed
+ * (for example, after its title has been modified) is treated as removed and inserted.
+ * A track that is in both versions but as a different object is treated as updated.
+ */
+public class LibraryDiff {
+
+    /** Diffs with more operations than this are applied by replacing the list contents */
+    private static final int MAX_INCREMENTAL_OPERATIONS = 1000;
+
+    /** The list the diff has been computed against */
+    private final List<Track> oldTracks;
+
+    /** The up to date list */
+    private final List<Track> newTracks;
+
+    /** Positions in the old list of the removed tracks, in ascending order */
+    private final int[] removed;
+
+    /** Positions in the new list of the inserted tracks, in ascending order */
+    private final int[] inserted;
+
+    /** Positions in the new list of the updated tracks, in ascending order */
+    private final int[] updated;
+
+    /** Position in the new list of every track in the old list, -1 if it has been removed */
+    private final int[] oldToNew;
+
+    private LibraryDiff(List<Track> oldTracks, List<Track> newTracks,
+                        int[] removed, int[] inserted, int[] updated, int[] oldToNew) {
+        this.oldTracks = oldTracks;
+        this.newTracks = newTracks;
+        this.removed = removed;
+        this.inserted = inserted;
+        this.updated = updated;
+        this.oldToNew = oldToNew;
+    }
+
+    /**
+     * Compute the diff between two versions of the track list.
+     * This runs in O(n log n) and should be called on a background thread for large lists.
+     * @param oldTracks The current list, it must not be modified until the diff is applied
+     * @param newTracks The up to date list
+     * @return The diff
+     */
+    public static LibraryDiff compute(@NonNull List<Track> oldTracks, @NonNull List<Track> newTracks) {
+        int oldSize = oldTracks.size();
+        int newSize = newTracks.size();
+
+        // Index the new list by track ID
+        LongIntMap newPositions = new LongIntMap(newSize);
+        for (int i = 0; i < newSize; i++)
+            newPositions.put(newTracks.get(i).getId(), i);
+
+        // Map the old positions to the new ones
+        int[] oldToNew = new int[oldSize];
+        int[] commonOld = new int[oldSize];
+        int[] commonNew = new int[oldSize];
+        int commonCount = 0;
+        for (int i = 0; i < oldSize; i++) {
+            int newPosition = newPositions.get(oldTracks.get(i).getId(), -1);
+            oldToNew[i] = newPosition;
+            if (newPosition != -1) {
+                commonOld[commonCount] = i;
+                commonNew[commonCount] = newPosition;
+                commonCount++;
+            }
+        }
+
+        // The tracks that stay in place are the longest increasing subsequence of the new
+        // positions, the rest of the common tracks have moved
+        boolean[] stays = longestIncreasingSubsequence(commonNew, commonCount);
+
+        boolean[] keptInNew = new boolean[newSize];
+        List<Integer> removedList = new ArrayList<>();
+        List<Integer> updatedList = new ArrayList<>();
+        int c = 0;
+        for (int i = 0; i < oldSize; i++) {
+            if (c < commonCount && commonOld[c] == i) {
+                if (stays[c]) {
+                    keptInNew[commonNew[c]] = true;
+                    if (oldTracks.get(i) != newTracks.get(commonNew[c]))
+                        updatedList.add(commonNew[c]);
+                } else {
+                    removedList.add(i);
+                }
+                c++;
+            } else {
+                removedList.add(i);
+            }
+        }
+
+        List<Integer> insertedList = new ArrayList<>();
+        for (int i = 0; i < newSize; i++) {
+            if (!keptInNew[i])
+                insertedList.add(i);
+        }
+
+        return new LibraryDiff(oldTracks, newTracks, toArray(removedList),
+                toArray(insertedList), toArray(updatedList), oldToNew);
+    }
+
+    /**
+     * Does the given list have the same contents as the list this diff has been computed against?
+     * A diff must only be applied to a list that matches it.
+     * @param tracks The list to check
+     * @return true if the diff can be applied to the list
+     */
+    public boolean matches(@NonNull List<Track> tracks) {
+        if (tracks.size() != oldTracks.size())
+            return false;
+        for (int i = 0; i < tracks.size(); i++) {
+            if (tracks.get(i) != oldTracks.get(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Apply the diff to a list that matches it
+     * @param tracks The list, it is modified in place
+     */
+    public void applyTo(@NonNull List<Track> tracks) {
+        if (isLarge()) {
+            tracks.clear();
+            tracks.addAll(newTracks);
+            return;
+        }
+
+        for (int i = removed.length - 1; i >= 0; i--)
+            tracks.remove(removed[i]);
+        for (int position : inserted)
+            tracks.add(position, newTracks.get(position));
+        for (int position : updated)
+            tracks.set(position, newTracks.get(position));
+    }
+
+    /**
+     * Get the new position of a track
+     * @param oldPosition The position of the track in the old list
+     * @param nearest If true and the track has been removed, return the new position of the
+     *                nearest track after it that hasn't been removed (or before it, if none)
+     * @return The position in the new list, or -1 if the track has been removed
+     *         (and nearest is false) or the new list is empty
+     */
+    public int mapPosition(int oldPosition, boolean nearest) {
+        if (oldPosition < 0 || oldPosition >= oldToNew.length)
+            return -1;
+        if (oldToNew[oldPosition] != -1 || !nearest)
+            return oldToNew[oldPosition];
+
+        for (int i = oldPosition + 1; i < oldToNew.length; i++) {
+            if (oldToNew[i] != -1)
+                return oldToNew[i];
+        }
+        for (int i = oldPosition - 1; i >= 0; i--) {
+            if (oldToNew[i] != -1)
+                return oldToNew[i];
+        }
+        return newTracks.isEmpty() ? -1 : 0;
+    }
+
+    /**
+     * Get the new position of a selected track - the track itself, or the nearest track
+     * if it has been removed
+     * @param oldPosition The position of the selected track in the old list, -1 if none
+     * @return The position in the new list, 0 if no track was selected,
+     *         or -1 if the new list is empty
+     */
+    public int mapSelection(int oldPosition) {
+        if (newTracks.isEmpty())
+            return -1;
+        return Math.max(0, mapPosition(oldPosition, true));
+    }
+
+    public boolean isEmpty() {
+        return removed.length == 0 && inserted.length == 0 && updated.length == 0;
+    }
+
+    /**
+     * @return true if the diff has too many operations to be applied (or displayed) one by one
+     */
+    public boolean isLarge() {
+        return removed.length + inserted.length + updated.length > MAX_INCREMENTAL_OPERATIONS;
+    }
+
+    public int[] getRemoved() {
+        return removed;
+    }
+
+    public int[] getInserted() {
+        return inserted;
+    }
+
+    public int[] getUpdated() {
+        return updated;
+    }
+
+    public List<Track> getNewTracks() {
+        return newTracks;
+    }
+
+    @Override
+    public String toString() {
+        return "LibraryDiff: " + oldTracks.size() + " -> " + newTracks.size() + " tracks, "
+                + removed.length + " removed, " + inserted.length + " inserted, "
+                + updated.length + " updated";
+    }
+
+    /**
+     * Find a longest strictly increasing subsequence (patience sorting, O(n log n))
+     * @param values The sequence
+     * @param count The length of the sequence
+     * @return For every element, true if it's part of the subsequence
+     */
+    private static boolean[] longestIncreasingSubsequence(int[] values, int count) {
+        // tails[k] = index of the smallest tail of an increasing subsequence of length k + 1
+        int[] tails = new int[count];
+        int[] previous = new int[count];
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            int low = 0, high = length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (values[tails[mid]] < values[i])
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            previous[i] = low > 0 ? tails[low - 1] : -1;
+            tails[low] = i;
+            if (low == length)
+                length++;
+        }
+
+        boolean[] result = new boolean[count];
+        for (int i = length > 0 ? tails[length - 1] : -1; i != -1; i = previous[i])
+            result[i] = true;
+        return result;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = list.get(i);
+        return array;
+    }
+
+}
@@ -0,0 +1,191 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LibraryObserver watches the MediaStore for audio files that are added, removed or modified.
+ * Change notifications usually arrive in bursts (e.g. while the media scanner is running),
+ * so they are debounced, and then the current track list is reconciled with the MediaStore
+ * on a background thread. The resulting diff is passed to the listener on the UI thread.
+ */
+public class LibraryObserver extends ContentObserver {
+
+    /** The owner of the track list */
+    public interface LibraryObserverListener {
+        /**
+         * @return The current track list, or null if it hasn't been loaded yet
+         */
+        List<Track> getTracks();
+
+        /**
+         * This method is called on the UI thread when the library has changed.
+         * The diff matches the track list returned by getTracks().
+         * @param diff The changes
+         */
+        void applyLibraryDiff(LibraryDiff diff);
+    }
+
+    /** Log tag */
+    private static final String LOG_TAG = "LibraryObserver";
+
+    /** Quiet period after the last change notification before the library is synced */
+    private static final long DEBOUNCE_DELAY = 1500L;
+
+    /** Maximum delay after the first change notification of a burst */
+    private static final long MAX_DELAY = 10000L;
+
+    /** Application context */
+    private final Context context;
+
+    /** UI thread handler, used for debouncing and for passing the results */
+    private final Handler handler;
+
+    /** Listener instance */
+    private final LibraryObserverListener listener;
+
+    /** Time of the first change notification that hasn't been synced yet, 0 if there is none */
+    private long firstChangeTime;
+
+    /** Is a sync running on the background thread? */
+    private boolean syncRunning;
+
+    /** Has a change been reported while the sync was running? */
+    private boolean syncPending;
+
+    /** Is the observer registered? */
+    private boolean registered;
+
+    /** Starts the sync after the debounce delay */
+    private final Runnable syncRunnable = new Runnable() {
+        @Override
+        public void run() {
+            sync();
+        }
+    };
+
+    public LibraryObserver(@NonNull Context context, @NonNull LibraryObserverListener listener) {
+        super(new Handler(Looper.getMainLooper()));
+        this.context = context.getApplicationContext();
+        this.handler = new Handler(Looper.getMainLooper());
+        this.listener = listener;
+    }
+
+    /**
+     * Start observing the MediaStore
+     */
+    public void register() {
+        if (registered)
+            return;
+        context.getContentResolver().registerContentObserver(
+                MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, true, this);
+        registered = true;
+    }
+
+    /**
+     * Stop observing the MediaStore, a pending sync is cancelled
+     */
+    public void unregister() {
+        if (!registered)
+            return;
+        context.getContentResolver().unregisterContentObserver(this);
+        handler.removeCallbacks(syncRunnable);
+        firstChangeTime = 0;
+        registered = false;
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+        onChange(selfChange, null);
+    }
+
+    @Override
+    public void onChange(boolean selfChange, Uri uri) {
+        if (!registered)
+            return;
+
+        if (syncRunning) {
+            syncPending = true;
+            return;
+        }
+
+        // Debounce, but don't postpone the sync forever during a long burst
+        long now = SystemClock.uptimeMillis();
+        if (firstChangeTime == 0)
+            firstChangeTime = now;
+        handler.removeCallbacks(syncRunnable);
+        handler.postAtTime(syncRunnable, Math.min(now + DEBOUNCE_DELAY, firstChangeTime + MAX_DELAY));
+    }
+
+    /**
+     * Reconcile the current track list with the MediaStore on a background thread
+     */
+    private void sync() {
+        firstChangeTime = 0;
+        List<Track> tracks = listener.getTracks();
+        if (tracks == null || !registered)
+            return;
+
+        syncRunning = true;
+        final List<Track> current = new ArrayList<>(tracks);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                long startTime = SystemClock.elapsedRealtime();
+
+                List<Track> updated = new LibraryScanner(context.getContentResolver()).reconcile(current);
+                final LibraryDiff diff = updated != null ? LibraryDiff.compute(current, updated) : null;
+                Log.d(LOG_TAG, "Library synced in " + (SystemClock.elapsedRealtime() - startTime)
+                        + "ms: " + (diff != null ? diff : "no changes."));
+
+                if (diff != null)
+                    new LibrarySnapshot(context.getFilesDir()).write(updated);
+
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onSyncFinished(diff);
+                    }
+                });
+            }
+        }, LOG_TAG).start();
+    }
+
+    /**
+     * Pass the diff to the listener, unless the track list has been changed during the sync
+     * @param diff The changes, null if there are none
+     */
+    private void onSyncFinished(LibraryDiff diff) {
+        syncRunning = false;
+        if (!registered)
+            return;
+
+        List<Track> tracks = listener.getTracks();
+        if (diff != null && tracks != null) {
+            if (diff.matches(tracks)) {
+                listener.applyLibraryDiff(diff);
+            } else {
+                // The list has been changed in the meantime, the diff is stale - sync again
+                syncPending = true;
+            }
+        }
+
+        if (syncPending) {
+            syncPending = false;
+            onChange(false);
+        }
+    }
+
+}
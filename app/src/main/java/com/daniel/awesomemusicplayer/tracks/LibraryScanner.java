@@ -0,0 +1,328 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.provider.MediaStore;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.daniel.awesomemusicplayer.util.LongIntMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LibraryScanner runs the MediaStore queries used to build the track list.
+ * It can read the entire library, or reconcile a known track list against the MediaStore
+ * while re-reading only the rows that have been added or modified.
+ * All methods are blocking and must be called on a background thread.
+ */
+@WorkerThread
+public class LibraryScanner {
+
+    /** Callback for tracks read by scan() */
+    public interface ScanListener {
+        /**
+         * This method is called for every track read from the MediaStore, in the library order.
+         * @param track The track
+         * @return true to continue scanning, false to abort
+         */
+        boolean onTrack(Track track);
+    }
+
+    /** Log tag */
+    private static final String LOG_TAG = "LibraryScanner";
+
+    /** The library order */
+    private static final String SORT_ORDER = MediaStore.Audio.Media.TITLE + " ASC";
+
+    /** Maximum number of IDs in a single "IN (...)" selection (SQLite allows up to 999 arguments) */
+    private static final int MAX_SELECTION_ARGS = 500;
+
+    /** Columns read from the MediaStore for every track */
+    private static final String[] TRACK_PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.TITLE,
+            MediaStore.Audio.Media.ARTIST,
+            MediaStore.Audio.Media.DURATION,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.ALBUM,
+            MediaStore.Audio.Media.DATE_ADDED,
+            MediaStore.Audio.Media.DATE_MODIFIED
+    };
+
+    /** Columns read from the MediaStore to detect changes */
+    private static final String[] SYNC_PROJECTION = {
+            MediaStore.Audio.Media._ID,
+            MediaStore.Audio.Media.ALBUM_ID,
+            MediaStore.Audio.Media.DATE_MODIFIED
+    };
+
+    /** Content resolver used to query the MediaStore */
+    private final ContentResolver contentResolver;
+
+    /** Number of queries executed by this scanner */
+    private int queryCount;
+
+    public LibraryScanner(@NonNull ContentResolver contentResolver) {
+        this.contentResolver = contentResolver;
+    }
+
+    /**
+     * Read the entire library
+     * @param scanListener Receives the tracks as they are read
+     * @return true if the whole library has been read, false if it has been aborted by the listener
+     */
+    public boolean scan(@NonNull ScanListener scanListener) {
+
+        // Resolve the album art of all the albums with a single query
+        SparseArray<String> albumArt = loadAlbumArt();
+
+        Cursor c = query(TRACK_PROJECTION, null, null, SORT_ORDER);
+        if (c == null)
+            return true;
+
+        try {
+            // The loaded list gets a store of its own, the previous one goes with the previous list
+            TrackReader reader = new TrackReader(new TrackStore(), c, albumArt);
+            while (c.moveToNext()) {
+                if (!scanListener.onTrack(reader.read()))
+                    return false;
+            }
+        } finally {
+            c.close();
+        }
+        return true;
+    }
+
+    /**
+     * Compare a known track list with the MediaStore.
+     * Only the IDs and modification dates are read for all the tracks, the rest of the columns
+     * are read only for tracks that have been added or modified since the list was built.
+     * Unchanged Track objects are reused in the result.
+     * @param known The known track list
+     * @return The up to date track list in the library order, or null if nothing has changed
+     */
+    @Nullable
+    public List<Track> reconcile(@NonNull List<Track> known) {
+
+        // Index the known tracks by ID
+        LongIntMap knownPositions = new LongIntMap(known.size());
+        for (int i = 0; i < known.size(); i++)
+            knownPositions.put(known.get(i).getId(), i);
+
+        // Read the IDs and the modification dates of the entire library
+        Cursor c = query(SYNC_PROJECTION, null, null, SORT_ORDER);
+        if (c == null)
+            return null;
+
+        long[] ids;
+        List<Long> staleIds = new ArrayList<>();
+        boolean changed;
+        try {
+            int idColumn = c.getColumnIndex(MediaStore.Audio.Media._ID);
+            int albumIdColumn = c.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
+            int dateModifiedColumn = c.getColumnIndex(MediaStore.Audio.Media.DATE_MODIFIED);
+
+            ids = new long[c.getCount()];
+            changed = ids.length != known.size();
+            for (int i = 0; c.moveToNext(); i++) {
+                long id = c.getLong(idColumn);
+                ids[i] = id;
+                int knownPosition = knownPositions.get(id, -1);
+                Track track = knownPosition != -1 ? known.get(knownPosition) : null;
+                if (track == null
+                        || track.getDateModified() != c.getLong(dateModifiedColumn)
+                        || track.getAlbumId() != c.getInt(albumIdColumn)) {
+                    staleIds.add(id);
+                    changed = true;
+                } else if (!changed && knownPosition != i) {
+                    // Same tracks, different order
+                    changed = true;
+                }
+            }
+        } finally {
+            c.close();
+        }
+
+        if (!changed)
+            return null;
+
+        // Re-read the added and modified tracks only, into the store of the known list
+        List<Track> fresh = new ArrayList<>(staleIds.size());
+        if (!staleIds.isEmpty()) {
+            TrackStore store = known.isEmpty() ? new TrackStore() : known.get(0).getStore();
+            SparseArray<String> albumArt = loadAlbumArt();
+            for (int from = 0; from < staleIds.size(); from += MAX_SELECTION_ARGS) {
+                readTracks(staleIds.subList(from, Math.min(staleIds.size(), from + MAX_SELECTION_ARGS)),
+                        store, albumArt, fresh);
+            }
+        }
+        LongIntMap freshPositions = new LongIntMap(fresh.size());
+        for (int i = 0; i < fresh.size(); i++)
+            freshPositions.put(fresh.get(i).getId(), i);
+
+        // Build the new list in the library order
+        List<Track> result = new ArrayList<>(ids.length);
+        for (long id : ids) {
+            int position = freshPositions.get(id, -1);
+            if (position != -1) {
+                result.add(fresh.get(position));
+            } else {
+                position = knownPositions.get(id, -1);
+                if (position != -1)
+                    result.add(known.get(position));
+            }
+        }
+
+        Log.d(LOG_TAG, "Reconciled library: " + staleIds.size() + " tracks re-read, "
+                + result.size() + " tracks in total (" + queryCount + " queries).");
+        return result;
+    }
+
+    /**
+     * Look the path of a track's audio file up. Paths aren't part of the track list, since
+     * they're only needed to find files next to (or inside) the audio file of the current track.
+     * @param trackId The track ID
+     * @return The path, or null if the track doesn't exist or has no path
+     */
+    @Nullable
+    public String queryPath(long trackId) {
+        Cursor c = query(new String[] {MediaStore.Audio.Media.DATA},
+                MediaStore.Audio.Media._ID + " = ?", new String[] {String.valueOf(trackId)}, null);
+        if (c == null)
+            return null;
+
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @return The number of queries executed by this scanner
+     */
+    public int getQueryCount() {
+        return queryCount;
+    }
+
+    /**
+     * Read the tracks with the given IDs
+     * @param ids Track IDs
+     * @param store The store the tracks are added to
+     * @param albumArt Album art map
+     * @param out The tracks that have been read
+     */
+    private void readTracks(List<Long> ids, TrackStore store, SparseArray<String> albumArt,
+                            List<Track> out) {
+        StringBuilder selection = new StringBuilder(MediaStore.Audio.Media._ID).append(" IN (");
+        String[] selectionArgs = new String[ids.size()];
+        for (int i = 0; i < selectionArgs.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+            selectionArgs[i] = String.valueOf(ids.get(i));
+        }
+        selection.append(')');
+
+        Cursor c = query(TRACK_PROJECTION, selection.toString(), selectionArgs, null);
+        if (c == null)
+            return;
+
+        try {
+            TrackReader reader = new TrackReader(store, c, albumArt);
+            while (c.moveToNext())
+                out.add(reader.read());
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Load the album art paths of all the albums on the device
+     * @return Map of album ID to the path of the album thumb art, albums without art are omitted
+     */
+    private SparseArray<String> loadAlbumArt() {
+        SparseArray<String> result = new SparseArray<>();
+
+        // Query
+        queryCount++;
+        Cursor cursor = contentResolver.query(
+                MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI,
+                new String[] {MediaStore.Audio.Albums._ID, MediaStore.Audio.Albums.ALBUM_ART},
+                MediaStore.Audio.Albums.ALBUM_ART + " IS NOT NULL",
+                null,
+                null
+        );
+
+        // If data exists - grab it
+        if (cursor != null) {
+            if (cursor.moveToFirst()) {
+                int idColumn = cursor.getColumnIndex(MediaStore.Audio.Albums._ID);
+                int albumArtColumn = cursor.getColumnIndex(MediaStore.Audio.Albums.ALBUM_ART);
+                do {
+                    result.put(cursor.getInt(idColumn), cursor.getString(albumArtColumn));
+                } while (cursor.moveToNext());
+            }
+            cursor.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Query the audio media table
+     */
+    private Cursor query(String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        queryCount++;
+        return contentResolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                projection, selection, selectionArgs, sortOrder);
+    }
+
+    /**
+     * Creates Track objects from the rows of a cursor queried with TRACK_PROJECTION
+     */
+    private static final class TrackReader {
+        private final TrackStore store;
+        private final Cursor c;
+        private final SparseArray<String> albumArt;
+        private final int idColumn, titleColumn, artistColumn, durationColumn,
+                albumIdColumn, albumColumn, dateAddedColumn, dateModifiedColumn;
+
+        TrackReader(TrackStore store, Cursor c, SparseArray<String> albumArt) {
+            this.store = store;
+            this.c = c;
+            this.albumArt = albumArt;
+
+            // Save the column indexes to variables
+            idColumn = c.getColumnIndex(MediaStore.Audio.Media._ID);
+            titleColumn = c.getColumnIndex(MediaStore.Audio.Media.TITLE);
+            artistColumn = c.getColumnIndex(MediaStore.Audio.Media.ARTIST);
+            durationColumn = c.getColumnIndex(MediaStore.Audio.Media.DURATION);
+            albumIdColumn = c.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
+            albumColumn = c.getColumnIndex(MediaStore.Audio.Media.ALBUM);
+            dateAddedColumn = c.getColumnIndex(MediaStore.Audio.Media.DATE_ADDED);
+            dateModifiedColumn = c.getColumnIndex(MediaStore.Audio.Media.DATE_MODIFIED);
+        }
+
+        /**
+         * @return A track created from the current row of the cursor
+         */
+        Track read() {
+            int albumId = c.getInt(albumIdColumn);
+            return store.add(
+                    c.getLong(idColumn),
+                    c.getString(titleColumn),
+                    c.getString(artistColumn),
+                    c.getLong(durationColumn),
+                    albumId,
+                    c.getString(albumColumn),
+                    albumArt.get(albumId),
+                    c.getLong(dateAddedColumn),
+                    c.getLong(dateModifiedColumn));
+        }
+    }
+
+}
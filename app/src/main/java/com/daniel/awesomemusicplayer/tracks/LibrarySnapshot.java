@@ -0,0 +1,203 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import com.daniel.awesomemusicplayer.util.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LibrarySnapshot saves the track list to a compact binary file in the app's private storage,
+ * so the library can be displayed on a cold start without querying the MediaStore.
+ *
+ * File format (big endian):
+ *      int magic, int version, int track count,
+ *      then for every track: long id, string title, string artist, long duration,
+ *      int album ID, string album, string album art path, long date added, long date modified.
+ *      Strings are written as a boolean (true if not null) followed by modified UTF-8.
+ *
+ * The snapshot is written by the TrackLoader and the LibraryObserver threads. Writes are
+ * serialized by a process-wide lock, each one goes to a temporary file of its own, and a list
+ * is skipped if a list passed to a later write() call has already been saved.
+ */
+@WorkerThread
+public class LibrarySnapshot {
+
+    /** Log tag */
+    private static final String LOG_TAG = "LibrarySnapshot";
+
+    /** Snapshot file name */
+    private static final String FILE_NAME = "library.snapshot";
+
+    /** Magic number at the beginning of the file */
+    private static final int MAGIC = 0x414D504C;
+
+    /** File format version, snapshots with a different version are discarded */
+    private static final int VERSION = 2;
+
+    /** Suffix of the temporary files the snapshot is written to */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** I/O buffer size */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Serializes the writes and deletes of all the threads */
+    private static final Object WRITE_LOCK = new Object();
+
+    /** Number of write() calls, the sequence number of the latest call */
+    private static final AtomicLong writeSequence = new AtomicLong();
+
+    /** Sequence number of the last list saved. Guarded by WRITE_LOCK. */
+    private static long savedSequence;
+
+    /** The snapshot file */
+    private final File file;
+
+    public LibrarySnapshot(@NonNull File directory) {
+        this.file = new File(directory, FILE_NAME);
+    }
+
+    /**
+     * Read the track list from the snapshot file
+     * @return The saved track list, or null if there's no valid snapshot
+     */
+    @Nullable
+    public List<Track> read() {
+        if (!file.exists())
+            return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.d(LOG_TAG, "Discarding snapshot with an unknown format.");
+                return null;
+            }
+
+            // The loaded list gets a store of its own, the previous one goes with the previous list
+            TrackStore store = new TrackStore();
+            int count = in.readInt();
+            List<Track> tracks = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                tracks.add(store.add(
+                        in.readLong(),          // ID
+                        readString(in),         // Title
+                        readString(in),         // Artist
+                        in.readLong(),          // Duration
+                        in.readInt(),           // Album ID
+                        readString(in),         // Album
+                        readString(in),         // Album art
+                        in.readLong(),          // Date added
+                        in.readLong()));        // Date modified
+            }
+            return tracks;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to read the snapshot.", e);
+            return null;
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write the track list to the snapshot file.
+     * The list is written to a temporary file first, so a failed write never corrupts the snapshot.
+     * @param tracks The track list, it must not be modified while it's being written
+     */
+    public void write(@NonNull List<Track> tracks) {
+        long sequence = writeSequence.incrementAndGet();
+        synchronized (WRITE_LOCK) {
+            // A newer list has been saved while this call was waiting for the lock
+            if (sequence < savedSequence) {
+                Log.d(LOG_TAG, "Skipping an outdated snapshot.");
+                return;
+            }
+
+            deleteTempFiles();
+            File tempFile = null;
+            DataOutputStream out = null;
+            try {
+                tempFile = File.createTempFile(FILE_NAME, TEMP_SUFFIX, file.getParentFile());
+                out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(tempFile), BUFFER_SIZE));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(tracks.size());
+                for (Track track : tracks) {
+                    out.writeLong(track.getId());
+                    writeString(out, track.getTitle());
+                    writeString(out, track.getArtist());
+                    out.writeLong(track.getDuration());
+                    out.writeInt(track.getAlbumId());
+                    writeString(out, track.getAlbum());
+                    writeString(out, track.getAlbumArtURI());
+                    out.writeLong(track.getDateAdded());
+                    out.writeLong(track.getDateModified());
+                }
+                out.close();
+                out = null;
+
+                if (!tempFile.renameTo(file))
+                    throw new IOException("Failed to rename " + tempFile);
+                savedSequence = sequence;
+                Log.d(LOG_TAG, "Snapshot saved: " + tracks.size() + " tracks.");
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to write the snapshot.", e);
+                Utils.closeQuietly(out);
+                if (tempFile != null)
+                    //noinspection ResultOfMethodCallIgnored
+                    tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Delete the temporary files left by writes that were interrupted, e.g. by the process being killed.
+     * Must be called with WRITE_LOCK held, no write is in progress then.
+     */
+    private void deleteTempFiles() {
+        File[] files = file.getParentFile().listFiles();
+        if (files == null)
+            return;
+        for (File f : files) {
+            String name = f.getName();
+            if (name.startsWith(FILE_NAME) && name.endsWith(TEMP_SUFFIX))
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+        }
+    }
+
+    /**
+     * Delete the snapshot file
+     */
+    public void delete() {
+        synchronized (WRITE_LOCK) {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import com.daniel.awesomemusicplayer.R;
+import com.daniel.awesomemusicplayer.networking.Lyrics;
+
+import java.util.List;
+
+/**
+ * Adapter for the lyrics RecyclerView in MainActivity - lstLyrics, one row per line.
+ *
+ * Only the visible lines are laid out. The current line of synced lyrics is highlighted, moving
+ * the highlight rebinds the old and the new line with the HIGHLIGHT payload, which only changes
+ * the text color.
+ */
+public class LyricsAdapter extends RecyclerView.Adapter<LyricsAdapter.ViewHolder> {
+
+    /** Change payload - only the highlight of the line has changed */
+    private static final Object PAYLOAD_HIGHLIGHT = new Object();
+
+    /** Context used to inflate the rows and resolve the colors */
+    private final Context context;
+
+    /** The lyrics, null if there are none */
+    private Lyrics lyrics;
+
+    /** Index of the highlighted line, RecyclerView.NO_POSITION if none */
+    private int currentLine = RecyclerView.NO_POSITION;
+
+    public LyricsAdapter(@NonNull Context context) {
+        this.context = context;
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        return new ViewHolder(LayoutInflater.from(context).inflate(R.layout.row_lyrics_line, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder viewHolder, int position) {
+        viewHolder.lblLine.setText(lyrics.getLine(position));
+        bindHighlight(viewHolder, position);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder viewHolder, int position,
+                                 @NonNull List<Object> payloads) {
+        // Only the highlight changed - leave the text alone
+        if (!payloads.isEmpty() && onlyHighlight(payloads)) {
+            bindHighlight(viewHolder, position);
+        } else {
+            onBindViewHolder(viewHolder, position);
+        }
+    }
+
+    @Override
+    public int getItemCount() {
+        return lyrics != null ? lyrics.getLineCount() : 0;
+    }
+
+    /**
+     * Display new lyrics, without a highlighted line
+     * @param lyrics The lyrics, null to clear the list
+     */
+    public void setLyrics(@Nullable Lyrics lyrics) {
+        this.lyrics = lyrics;
+        currentLine = RecyclerView.NO_POSITION;
+        notifyDataSetChanged();
+    }
+
+    @Nullable
+    public Lyrics getLyrics() {
+        return lyrics;
+    }
+
+    /**
+     * Highlight a line, rebinding the previously highlighted line and the new one
+     * @param line Index of the line, -1 for none
+     * @return true if the highlighted line has changed
+     */
+    public boolean setCurrentLine(int line) {
+        if (line < 0)
+            line = RecyclerView.NO_POSITION;
+        if (line == currentLine)
+            return false;
+
+        if (currentLine != RecyclerView.NO_POSITION)
+            notifyItemChanged(currentLine, PAYLOAD_HIGHLIGHT);
+        currentLine = line;
+        if (currentLine != RecyclerView.NO_POSITION)
+            notifyItemChanged(currentLine, PAYLOAD_HIGHLIGHT);
+        return true;
+    }
+
+    public int getCurrentLine() {
+        return currentLine;
+    }
+
+    private void bindHighlight(ViewHolder viewHolder, int position) {
+        viewHolder.lblLine.setTextColor(context.getColor(position == currentLine
+                ? R.color.colorAccent
+                : R.color.colorTrackListText));
+    }
+
+    /**
+     * @return true if all the payloads are PAYLOAD_HIGHLIGHT
+     */
+    private static boolean onlyHighlight(List<Object> payloads) {
+        for (Object payload : payloads) {
+            if (payload != PAYLOAD_HIGHLIGHT)
+                return false;
+        }
+        return true;
+    }
+
+    public static final class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView lblLine;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            lblLine = itemView.findViewById(R.id.lblLine);
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import com.daniel.awesomemusicplayer.util.LongIntMap;
+import com.daniel.awesomemusicplayer.util.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * PlayCounts counts how many times every track has been played, by track ID, so the counts
+ * survive changes in the track list. The counts are kept in parallel primitive arrays,
+ * indexed by a LongIntMap from track ID to slot.
+ */
+public class PlayCounts {
+
+    /** Log tag */
+    private static final String LOG_TAG = "PlayCounts";
+
+    /** Magic number at the beginning of the file */
+    private static final int MAGIC = 0x504C4159;
+
+    /** File format version */
+    private static final int VERSION = 1;
+
+    /** I/O buffer size */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /** Initial number of slots */
+    private static final int INITIAL_CAPACITY = 256;
+
+    /** Slot of every track ID */
+    private final LongIntMap slots;
+
+    /** Track ID of every slot */
+    private long[] ids;
+
+    /** Play count of every slot */
+    private int[] counts;
+
+    /** Number of slots in use */
+    private int size;
+
+    public PlayCounts() {
+        this(INITIAL_CAPACITY);
+    }
+
+    private PlayCounts(int capacity) {
+        slots = new LongIntMap(capacity);
+        ids = new long[capacity];
+        counts = new int[capacity];
+    }
+
+    /**
+     * @return The number of times the track has been played
+     */
+    public int get(long trackId) {
+        int slot = slots.get(trackId, -1);
+        return slot != -1 ? counts[slot] : 0;
+    }
+
+    /**
+     * Count another play of a track
+     */
+    public void increment(long trackId) {
+        add(trackId, 1);
+    }
+
+    /**
+     * Add counts to these, e.g. the saved counts to the plays counted since the start
+     * @param other The counts to add
+     */
+    public void addAll(@NonNull PlayCounts other) {
+        for (int slot = 0; slot < other.size; slot++)
+            add(other.ids[slot], other.counts[slot]);
+    }
+
+    /**
+     * @return A copy of the counts, to be saved by write() on another thread
+     */
+    @NonNull
+    public PlayCounts copy() {
+        PlayCounts copy = new PlayCounts(Math.max(INITIAL_CAPACITY, size));
+        for (int slot = 0; slot < size; slot++) {
+            copy.ids[slot] = ids[slot];
+            copy.counts[slot] = counts[slot];
+            copy.slots.put(ids[slot], slot);
+        }
+        copy.size = size;
+        return copy;
+    }
+
+    // --- Persistence
+
+    /**
+     * Save the counts to a file.
+     * File format (big endian): int magic, int version, int count, then long track ID, int play count.
+     */
+    @WorkerThread
+    public void write(@NonNull File file) {
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            for (int slot = 0; slot < size; slot++) {
+                out.writeLong(ids[slot]);
+                out.writeInt(counts[slot]);
+            }
+            out.close();
+            out = null;
+
+            if (!tempFile.renameTo(file))
+                throw new IOException("Failed to rename " + tempFile);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to write the play counts.", e);
+            Utils.closeQuietly(out);
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Read counts saved by write()
+     * @return The counts, empty if there are no valid saved counts
+     */
+    @NonNull
+    @WorkerThread
+    public static PlayCounts read(@NonNull File file) {
+        if (!file.exists())
+            return new PlayCounts();
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return new PlayCounts();
+
+            int size = in.readInt();
+            if (size < 0)
+                return new PlayCounts();
+
+            PlayCounts playCounts = new PlayCounts(Math.max(INITIAL_CAPACITY, size));
+            for (int slot = 0; slot < size; slot++) {
+                playCounts.ids[slot] = in.readLong();
+                playCounts.counts[slot] = in.readInt();
+                playCounts.slots.put(playCounts.ids[slot], slot);
+            }
+            playCounts.size = size;
+            return playCounts;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to read the play counts.", e);
+            return new PlayCounts();
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    // --- Helper methods
+
+    /**
+     * Add plays to the count of a track, the count saturates at Integer.MAX_VALUE
+     */
+    private void add(long trackId, int count) {
+        int slot = slots.get(trackId, -1);
+        if (slot == -1) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            slot = size++;
+            ids[slot] = trackId;
+            slots.put(trackId, slot);
+        }
+        counts[slot] = (int) Math.min(Integer.MAX_VALUE, (long) counts[slot] + count);
+    }
+
+}
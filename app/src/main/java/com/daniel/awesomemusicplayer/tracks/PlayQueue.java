@@ -0,0 +1,235 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import android.support.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * PlayQueue is the "Up Next" queue - tracks that are played before the playback continues
+ * through the track list.
+ *
+ * The queue holds track positions in the track list in a ring buffer of ints, so adding
+ * and taking tracks at either end is O(1) and a whole album is added with one array copy.
+ * Removing or moving an entry shifts only the entries between the two positions, towards
+ * the nearer end. The total duration of the queued tracks is kept up to date on every change.
+ */
+public class PlayQueue {
+
+    /** Initial capacity, always a power of 2 */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** The track list the positions refer to */
+    private List<Track> tracks = Collections.emptyList();
+
+    /** The ring buffer, its length is a power of 2 */
+    private int[] entries = new int[INITIAL_CAPACITY];
+
+    /** Index in the ring buffer of the first entry */
+    private int head;
+
+    /** Number of entries */
+    private int size;
+
+    /** Total duration of the queued tracks in milliseconds */
+    private long remainingDuration;
+
+    /**
+     * Set the track list the positions refer to. The queue is cleared.
+     */
+    public void setTracks(@NonNull List<Track> tracks) {
+        this.tracks = tracks;
+        clear();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return The total duration of the queued tracks in milliseconds
+     */
+    public long getRemainingDuration() {
+        return remainingDuration;
+    }
+
+    /**
+     * @return The track position of the entry at the given index, 0 is the head of the queue
+     */
+    public int get(int index) {
+        checkIndex(index);
+        return entries[(head + index) & (entries.length - 1)];
+    }
+
+    /**
+     * @return The track at the head of the queue, -1 if the queue is empty
+     */
+    public int peek() {
+        return size == 0 ? -1 : entries[head];
+    }
+
+    /**
+     * Take the track at the head of the queue
+     * @return The track position, -1 if the queue is empty
+     */
+    public int poll() {
+        if (size == 0)
+            return -1;
+        int track = entries[head];
+        head = (head + 1) & (entries.length - 1);
+        size--;
+        remainingDuration -= getDuration(track);
+        return track;
+    }
+
+    /**
+     * Add a track to the end of the queue
+     */
+    public void add(int track) {
+        ensureCapacity(size + 1);
+        entries[(head + size) & (entries.length - 1)] = track;
+        size++;
+        remainingDuration += getDuration(track);
+    }
+
+    /**
+     * Add a track to the head of the queue, to be played next
+     */
+    public void addFirst(int track) {
+        ensureCapacity(size + 1);
+        head = (head - 1) & (entries.length - 1);
+        entries[head] = track;
+        size++;
+        remainingDuration += getDuration(track);
+    }
+
+    /**
+     * Add tracks to the queue, keeping their order
+     * @param tracks The track positions
+     * @param count Number of positions to add from the array
+     * @param first true to add them to the head of the queue, false to add them to the end
+     */
+    public void addAll(@NonNull int[] tracks, int count, boolean first) {
+        ensureCapacity(size + count);
+        int mask = entries.length - 1;
+        int start;
+        if (first) {
+            head = (head - count) & mask;
+            start = head;
+        } else {
+            start = (head + size) & mask;
+        }
+
+        // Copy in at most two parts, the second one wraps around the end of the buffer
+        int firstPart = Math.min(count, entries.length - start);
+        System.arraycopy(tracks, 0, entries, start, firstPart);
+        System.arraycopy(tracks, firstPart, entries, 0, count - firstPart);
+        size += count;
+
+        for (int i = 0; i < count; i++)
+            remainingDuration += getDuration(tracks[i]);
+    }
+
+    /**
+     * Remove the entry at the given index
+     * @return The track position of the removed entry
+     */
+    public int remove(int index) {
+        int track = get(index);
+        if (index < size / 2) {
+            // Shift the entries before it one place forward
+            for (int i = index; i > 0; i--)
+                set(i, get(i - 1));
+            head = (head + 1) & (entries.length - 1);
+        } else {
+            // Shift the entries after it one place back
+            for (int i = index; i < size - 1; i++)
+                set(i, get(i + 1));
+        }
+        size--;
+        remainingDuration -= getDuration(track);
+        return track;
+    }
+
+    /**
+     * Move an entry to another index, the entries between the two indexes are shifted by one
+     * @param from The current index of the entry
+     * @param to The new index of the entry
+     */
+    public void move(int from, int to) {
+        checkIndex(to);
+        int track = get(from);
+        if (from < to) {
+            for (int i = from; i < to; i++)
+                set(i, get(i + 1));
+        } else {
+            for (int i = from; i > to; i--)
+                set(i, get(i - 1));
+        }
+        set(to, track);
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+        remainingDuration = 0;
+    }
+
+    /**
+     * Bring the positions up to date with a change in the track list.
+     * Removed tracks are dropped from the queue.
+     * @param diff The change, it must have been applied to the track list already
+     */
+    public void applyDiff(@NonNull LibraryDiff diff) {
+        int count = 0;
+        remainingDuration = 0;
+        for (int i = 0; i < size; i++) {
+            int track = diff.mapPosition(get(i), false);
+            if (track != -1) {
+                set(count++, track);
+                remainingDuration += getDuration(track);
+            }
+        }
+        size = count;
+    }
+
+    // --- Helper methods
+
+    private void set(int index, int track) {
+        entries[(head + index) & (entries.length - 1)] = track;
+    }
+
+    private long getDuration(int track) {
+        return tracks.get(track).getDuration();
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+    }
+
+    /**
+     * Grow the ring buffer to hold at least the given number of entries,
+     * the entries are copied to the beginning of the new buffer
+     */
+    private void ensureCapacity(int capacity) {
+        if (capacity <= entries.length)
+            return;
+
+        int newLength = entries.length;
+        while (newLength < capacity)
+            newLength *= 2;
+
+        int[] newEntries = new int[newLength];
+        int firstPart = Math.min(size, entries.length - head);
+        System.arraycopy(entries, head, newEntries, 0, firstPart);
+        System.arraycopy(entries, 0, newEntries, firstPart, size - firstPart);
+        entries = newEntries;
+        head = 0;
+    }
+
+}
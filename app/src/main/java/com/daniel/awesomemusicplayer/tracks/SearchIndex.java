@@ -0,0 +1,312 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * SearchIndex is an in-memory prefix index over the titles and artists of the track list.
+ *
+ * Titles and artists are normalized (lower case, no accents) and split into tokens.
+ * The distinct tokens are kept in a sorted array, and every token has a posting list of the
+ * track positions it appears in (all posting lists share one int array). A query term matches
+ * the range of tokens starting with it, found by binary search, so every keystroke costs
+ * two binary searches per term and one pass over the matching postings - no string is scanned.
+ *
+ * Results are ranked by how well each track matches the terms - exact tokens over prefixes,
+ * titles over artists, and a title starting with the first term first. Tracks with the same
+ * score keep the display order (the sort order, or the track list order).
+ *
+ * The index is built by SearchIndexBuilder on a background thread. search() reuses scratch
+ * arrays, it must always be called on the same thread (the UI thread).
+ */
+public class SearchIndex {
+
+    /** Maximum number of query terms, the rest are ignored */
+    private static final int MAX_TERMS = 8;
+
+    /** Posting flag - the token is in the title (otherwise it's in the artist) */
+    private static final int FLAG_TITLE = 1;
+
+    /** Posting flag - the token is the first token of the title or the artist */
+    private static final int FLAG_FIRST = 2;
+
+    /** Number of posting flag bits, the track position is stored above them */
+    private static final int FLAG_BITS = 2;
+
+    /** Highest score a track can get for a single term */
+    private static final int MAX_TERM_SCORE = 5;
+
+    /** Number of tracks in the indexed list */
+    private final int trackCount;
+
+    /** The distinct normalized tokens, sorted */
+    private final String[] tokens;
+
+    /** Start of the posting list of every token in postings, postingStarts[i + 1] is its end */
+    private final int[] postingStarts;
+
+    /** Posting lists - track position << FLAG_BITS | flags, in track list order for each token */
+    private final int[] postings;
+
+    /** Scratch - search generation in which the track has been matched */
+    private final int[] stamps;
+
+    /** Scratch - number of terms the track has matched */
+    private final byte[] matchedTerms;
+
+    /** Scratch - the score of the track for the current term */
+    private final byte[] termScores;
+
+    /** Scratch - the total score of the track */
+    private final short[] scores;
+
+    /** Current search generation, entries of the scratch arrays with an older stamp are stale */
+    private int generation;
+
+    private SearchIndex(int trackCount, String[] tokens, int[] postingStarts, int[] postings) {
+        this.trackCount = trackCount;
+        this.tokens = tokens;
+        this.postingStarts = postingStarts;
+        this.postings = postings;
+        this.stamps = new int[trackCount];
+        this.matchedTerms = new byte[trackCount];
+        this.termScores = new byte[trackCount];
+        this.scores = new short[trackCount];
+    }
+
+    /**
+     * Build the index of a track list
+     * @param tracks The tracks, their positions in the array are the positions returned by search()
+     */
+    @NonNull
+    @WorkerThread
+    public static SearchIndex build(@NonNull Track[] tracks) {
+        Map<String, Integer> tokenIds = new HashMap<>();
+        List<String> tokenList = new ArrayList<>();
+        int[] pairTokens = new int[tracks.length * 4 + 16];
+        int[] pairPostings = new int[pairTokens.length];
+        int pairCount = 0;
+
+        // The artists are dictionary encoded, so every artist is tokenized once
+        Map<String, String[]> artistTokens = new HashMap<>();
+        StringBuilder builder = new StringBuilder();
+
+        for (int position = 0; position < tracks.length; position++) {
+            for (int field = 0; field < 2; field++) {
+                String[] fieldTokens;
+                if (field == 0) {
+                    fieldTokens = tokenize(tracks[position].getTitle(), builder);
+                } else {
+                    String artist = tracks[position].getArtist();
+                    fieldTokens = artist != null ? artistTokens.get(artist) : null;
+                    if (fieldTokens == null) {
+                        fieldTokens = tokenize(artist, builder);
+                        if (artist != null)
+                            artistTokens.put(artist, fieldTokens);
+                    }
+                }
+
+                for (int i = 0; i < fieldTokens.length; i++) {
+                    Integer tokenId = tokenIds.get(fieldTokens[i]);
+                    if (tokenId == null) {
+                        tokenId = tokenList.size();
+                        tokenIds.put(fieldTokens[i], tokenId);
+                        tokenList.add(fieldTokens[i]);
+                    }
+
+                    if (pairCount == pairTokens.length) {
+                        pairTokens = Arrays.copyOf(pairTokens, pairCount * 2);
+                        pairPostings = Arrays.copyOf(pairPostings, pairCount * 2);
+                    }
+                    pairTokens[pairCount] = tokenId;
+                    pairPostings[pairCount] = position << FLAG_BITS
+                            | (field == 0 ? FLAG_TITLE : 0)
+                            | (i == 0 ? FLAG_FIRST : 0);
+                    pairCount++;
+                }
+            }
+        }
+
+        // Sort the tokens, and find the sorted rank of every token ID
+        String[] tokens = tokenList.toArray(new String[tokenList.size()]);
+        Arrays.sort(tokens);
+        int[] ranks = new int[tokens.length];
+        for (int rank = 0; rank < tokens.length; rank++)
+            ranks[tokenIds.get(tokens[rank])] = rank;
+
+        // Counting sort of the postings by token rank - stable, so every list stays in track order
+        int[] postingStarts = new int[tokens.length + 1];
+        for (int i = 0; i < pairCount; i++)
+            postingStarts[ranks[pairTokens[i]] + 1]++;
+        for (int rank = 0; rank < tokens.length; rank++)
+            postingStarts[rank + 1] += postingStarts[rank];
+
+        int[] postings = new int[pairCount];
+        int[] next = Arrays.copyOf(postingStarts, tokens.length);
+        for (int i = 0; i < pairCount; i++)
+            postings[next[ranks[pairTokens[i]]]++] = pairPostings[i];
+
+        return new SearchIndex(tracks.length, tokens, postingStarts, postings);
+    }
+
+    /**
+     * @return The number of tracks in the indexed list
+     */
+    public int getTrackCount() {
+        return trackCount;
+    }
+
+    /**
+     * Find the tracks matching a query. A track matches if every term of the query
+     * is a prefix of a token of its title or artist.
+     * @param query The query, as typed by the user
+     * @param results Receives the positions of the matching tracks, best match first.
+     *                Its length must be at least getTrackCount().
+     * @param order The positions of all the tracks in display order, tracks with the same score
+     *              are placed in this order. null for the track list order.
+     * @return The number of matching tracks
+     */
+    public int search(@NonNull String query, @NonNull int[] results, @Nullable int[] order) {
+        if (order != null && order.length != trackCount)
+            order = null;
+
+        String[] terms = tokenize(query, new StringBuilder());
+        int termCount = Math.min(terms.length, MAX_TERMS);
+        if (termCount == 0)
+            return 0;
+
+        // Start a new generation, the stamps of the previous searches become stale
+        if (++generation == 0) {
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+
+        for (int term = 0; term < termCount; term++) {
+            int start = lowerBound(terms[term]);
+            int end = lowerBound(terms[term] + Character.MAX_VALUE);
+            if (start == end)
+                return 0;
+
+            boolean exactToken = tokens[start].equals(terms[term]);
+            for (int token = start; token < end; token++) {
+                boolean exact = exactToken && token == start;
+                for (int i = postingStarts[token]; i < postingStarts[token + 1]; i++)
+                    match(postings[i], term, exact);
+            }
+        }
+
+        // Collect the tracks that matched every term, counting them by score
+        int maxScore = MAX_TERM_SCORE * termCount;
+        int[] bucketStarts = new int[maxScore + 2];
+        for (int position = 0; position < trackCount; position++) {
+            if (stamps[position] == generation && matchedTerms[position] == termCount)
+                bucketStarts[maxScore - scores[position] + 1]++;
+        }
+        for (int i = 0; i <= maxScore; i++)
+            bucketStarts[i + 1] += bucketStarts[i];
+        int count = bucketStarts[maxScore + 1];
+
+        // Place them by descending score, in display order within the same score
+        for (int i = 0; i < trackCount; i++) {
+            int position = order != null ? order[i] : i;
+            if (stamps[position] == generation && matchedTerms[position] == termCount)
+                results[bucketStarts[maxScore - scores[position]]++] = position;
+        }
+        return count;
+    }
+
+    // --- Helper methods
+
+    /**
+     * Record a posting matching a query term
+     */
+    private void match(int posting, int term, boolean exact) {
+        int position = posting >>> FLAG_BITS;
+        int score = 1
+                + (exact ? 1 : 0)
+                + ((posting & FLAG_TITLE) != 0 ? 2 : 0)
+                + (term == 0 && (posting & FLAG_TITLE) != 0 && (posting & FLAG_FIRST) != 0 ? 1 : 0);
+
+        if (term == 0) {
+            if (stamps[position] != generation) {
+                // First match of the track
+                stamps[position] = generation;
+                matchedTerms[position] = 1;
+                termScores[position] = (byte) score;
+                scores[position] = (short) score;
+            } else if (score > termScores[position]) {
+                scores[position] += score - termScores[position];
+                termScores[position] = (byte) score;
+            }
+            return;
+        }
+
+        // Later terms only narrow down the tracks matched by the previous terms
+        if (stamps[position] != generation)
+            return;
+        if (matchedTerms[position] == term) {
+            matchedTerms[position]++;
+            termScores[position] = (byte) score;
+            scores[position] += score;
+        } else if (matchedTerms[position] == term + 1 && score > termScores[position]) {
+            scores[position] += score - termScores[position];
+            termScores[position] = (byte) score;
+        }
+    }
+
+    /**
+     * @return The index of the first token that is not less than the key
+     */
+    private int lowerBound(String key) {
+        int low = 0;
+        int high = tokens.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (tokens[middle].compareTo(key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Normalize a string and split it into tokens - lower case letters and digits,
+     * accents removed. Every other character separates tokens.
+     * @param value The string, may be null
+     * @param builder Reusable builder
+     */
+    static String[] tokenize(String value, StringBuilder builder) {
+        if (value == null || value.isEmpty())
+            return new String[0];
+
+        String normalized = Normalizer.normalize(value.toLowerCase(Locale.ROOT), Normalizer.Form.NFD);
+        List<String> result = new ArrayList<>();
+        builder.setLength(0);
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK)
+                continue;
+            if (Character.isLetterOrDigit(c)) {
+                builder.append(c);
+            } else if (builder.length() > 0) {
+                result.add(builder.toString());
+                builder.setLength(0);
+            }
+        }
+        if (builder.length() > 0)
+            result.add(builder.toString());
+        return result.toArray(new String[result.size()]);
+    }
+
+}
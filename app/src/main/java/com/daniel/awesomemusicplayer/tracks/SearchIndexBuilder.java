@@ -0,0 +1,81 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * SearchIndexBuilder builds the SearchIndex of the track list on a background thread
+ * and passes it to the listener on the UI thread.
+ */
+public class SearchIndexBuilder implements Runnable {
+
+    /** Callback to MainActivity, called on the UI thread */
+    public interface SearchIndexListener {
+        /**
+         * @param index The index of the track list passed to the builder
+         */
+        void onIndexBuilt(SearchIndex index);
+    }
+
+    /** Log tag */
+    private static final String LOG_TAG = "SearchIndexBuilder";
+
+    /** The tracks to index */
+    private final Track[] tracks;
+
+    /** Handler used to pass the index to the UI thread */
+    private final Handler handler;
+
+    /** Listener instance, null once the builder has been stopped */
+    private volatile SearchIndexListener listener;
+
+    /**
+     * @param tracks The track list. The tracks are copied to an array (not the Track objects),
+     *               so the list may change while the index is being built.
+     */
+    public SearchIndexBuilder(@NonNull List<Track> tracks, @NonNull SearchIndexListener listener) {
+        this.tracks = tracks.toArray(new Track[tracks.size()]);
+        this.listener = listener;
+        this.handler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * Start building the index on a new background thread
+     */
+    public void start() {
+        new Thread(this, LOG_TAG).start();
+    }
+
+    /**
+     * Abort the builder, the index is not delivered
+     */
+    public void stop() {
+        listener = null;
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        long startTime = SystemClock.elapsedRealtime();
+        final SearchIndex index = SearchIndex.build(tracks);
+        Log.d(LOG_TAG, "Indexed " + tracks.length + " tracks in "
+                + (SystemClock.elapsedRealtime() - startTime) + "ms.");
+
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                SearchIndexListener listener = SearchIndexBuilder.this.listener;
+                if (listener != null)
+                    listener.onIndexBuilt(index);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,323 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import com.daniel.awesomemusicplayer.util.LongIntMap;
+import com.daniel.awesomemusicplayer.util.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * ShuffleOrder is the play order of the track list in shuffle mode - a random permutation
+ * of the track positions (Fisher-Yates), and a cursor pointing at the current track.
+ * Every track is played once before any track is repeated. Moving to the next or previous
+ * track is O(1), and the tracks that have been played are the ones before the cursor,
+ * so the history doesn't need to be stored separately.
+ *
+ * The inverse permutation is kept as well, to find the place of a track in O(1)
+ * when it is selected manually.
+ */
+public class ShuffleOrder {
+
+    /** Log tag */
+    private static final String LOG_TAG = "ShuffleOrder";
+
+    /** Magic number at the beginning of the file */
+    private static final int MAGIC = 0x53485546;
+
+    /** File format version */
+    private static final int VERSION = 1;
+
+    /** I/O buffer size */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /** Track positions in the order they are played */
+    private int[] order;
+
+    /** Index in the order of every track position (the inverse of order) */
+    private int[] indexes;
+
+    /** Index in the order of the current track, -1 if no track has been played */
+    private int cursor;
+
+    /**
+     * Create a new random order
+     * @param size Number of tracks
+     * @param currentTrack Position of the current track, it is placed first in the order.
+     *                     -1 if there's no current track.
+     * @param random Random number generator
+     */
+    public ShuffleOrder(int size, int currentTrack, @NonNull Random random) {
+        shuffle(size, currentTrack, random);
+    }
+
+    private ShuffleOrder() {}
+
+    /**
+     * Shuffle the tracks again, e.g. after all the tracks have been played
+     * @param currentTrack Position of the current track, it is placed first in the new order,
+     *                     so it isn't played twice in a row
+     * @param random Random number generator
+     */
+    public void reshuffle(int currentTrack, @NonNull Random random) {
+        shuffle(order.length, currentTrack, random);
+    }
+
+    /**
+     * @return The position of the track that follows the current one, -1 if all the tracks have been played
+     */
+    public int peekNext() {
+        return peek(1);
+    }
+
+    /**
+     * @param offset 1 for the track that follows the current one, 2 for the track after it and so on
+     * @return The position of the track, -1 if the order ends before it
+     */
+    public int peek(int offset) {
+        int index = cursor + offset;
+        return index < order.length ? order[index] : -1;
+    }
+
+    /**
+     * Move to the next track
+     * @return The position of the next track, -1 if all the tracks have been played
+     */
+    public int next() {
+        if (cursor + 1 >= order.length)
+            return -1;
+        return order[++cursor];
+    }
+
+    /**
+     * Move to the previous track
+     * @return The position of the previous track, -1 if the current track is the first one
+     */
+    public int previous() {
+        if (cursor <= 0)
+            return -1;
+        return order[--cursor];
+    }
+
+    /**
+     * Make a track the current one.
+     * A track that hasn't been played yet is moved right after the current track, so the rest
+     * of the order is unchanged. Selecting a track that has been played moves back to it.
+     * @param track The track position
+     */
+    public void select(int track) {
+        if (track < 0 || track >= order.length)
+            return;
+
+        int index = indexes[track];
+        if (index > cursor) {
+            swap(index, ++cursor);
+        } else {
+            cursor = index;
+        }
+    }
+
+    /**
+     * Bring the order up to date with a change in the track list. Tracks that have been removed
+     * are dropped, and new tracks are mixed into the part of the order that hasn't been played.
+     * @param diff The change, it must be the diff of the list this order has been built for
+     * @param random Random number generator
+     */
+    public void applyDiff(@NonNull LibraryDiff diff, @NonNull Random random) {
+        int[] entries = new int[order.length];
+        for (int i = 0; i < order.length; i++)
+            entries[i] = diff.mapPosition(order[i], false);
+        rebuild(entries, cursor, diff.getNewTracks().size(), random);
+    }
+
+    public int size() {
+        return order.length;
+    }
+
+    /**
+     * @return The IDs of the tracks in the order, to be saved by write()
+     */
+    @NonNull
+    public long[] getTrackIds(@NonNull List<Track> tracks) {
+        long[] ids = new long[order.length];
+        for (int i = 0; i < order.length; i++)
+            ids[i] = tracks.get(order[i]).getId();
+        return ids;
+    }
+
+    public int getCursor() {
+        return cursor;
+    }
+
+    // --- Persistence
+
+    /**
+     * Save an order to a file. The tracks are saved by ID, so the order can be restored
+     * even if the track list has changed in the meantime.
+     * File format (big endian): int magic, int version, int cursor, int count, long[count] track IDs.
+     * @param file The file
+     * @param trackIds The track IDs in the order, see getTrackIds()
+     * @param cursor The index of the current track in the order
+     */
+    @WorkerThread
+    public static void write(@NonNull File file, @NonNull long[] trackIds, int cursor) {
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(cursor);
+            out.writeInt(trackIds.length);
+            for (long id : trackIds)
+                out.writeLong(id);
+            out.close();
+            out = null;
+
+            if (!tempFile.renameTo(file))
+                throw new IOException("Failed to rename " + tempFile);
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to write the shuffle order.", e);
+            Utils.closeQuietly(out);
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Restore an order saved by write() for a track list. Tracks that are no longer in the list
+     * are dropped, and tracks that aren't in the saved order are mixed into the unplayed part.
+     * @param file The file
+     * @param tracks The current track list
+     * @param random Random number generator
+     * @return The order, or null if there's no valid saved order
+     */
+    @Nullable
+    @WorkerThread
+    public static ShuffleOrder read(@NonNull File file, @NonNull List<Track> tracks, @NonNull Random random) {
+        if (!file.exists())
+            return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+
+            int cursor = in.readInt();
+            int count = in.readInt();
+            if (count < 0 || cursor < -1 || cursor >= count)
+                return null;
+
+            LongIntMap positions = new LongIntMap(tracks.size());
+            for (int i = 0; i < tracks.size(); i++)
+                positions.put(tracks.get(i).getId(), i);
+
+            int[] entries = new int[count];
+            for (int i = 0; i < count; i++)
+                entries[i] = positions.get(in.readLong(), -1);
+
+            ShuffleOrder shuffleOrder = new ShuffleOrder();
+            shuffleOrder.rebuild(entries, cursor, tracks.size(), random);
+            return shuffleOrder;
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to read the shuffle order.", e);
+            return null;
+        } finally {
+            Utils.closeQuietly(in);
+        }
+    }
+
+    // --- Helper methods
+
+    /**
+     * Build a random permutation with the current track first
+     */
+    private void shuffle(int size, int currentTrack, Random random) {
+        order = new int[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+        for (int i = size - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+        buildIndexes();
+
+        cursor = -1;
+        if (currentTrack >= 0 && currentTrack < size) {
+            swap(indexes[currentTrack], 0);
+            cursor = 0;
+        }
+    }
+
+    /**
+     * Replace the order with the given entries, in the same order
+     * @param entries New track positions of the order entries, -1 for tracks that have been removed
+     * @param entryCursor Index of the current track in the entries
+     * @param size Number of tracks in the new list
+     * @param random Random number generator, used to place the tracks that aren't in the entries
+     */
+    private void rebuild(int[] entries, int entryCursor, int size, Random random) {
+        int[] newOrder = new int[size];
+        boolean[] placed = new boolean[size];
+        int count = 0;
+        int newCursor = -1;
+        for (int i = 0; i < entries.length; i++) {
+            int position = entries[i];
+            if (position >= 0 && position < size && !placed[position]) {
+                placed[position] = true;
+                newOrder[count++] = position;
+            }
+            // If the current track has been removed, the cursor stays on the track played before it
+            if (i == entryCursor)
+                newCursor = count - 1;
+        }
+
+        // Insert every missing track at a random place after the cursor (inside-out Fisher-Yates)
+        for (int position = 0; position < size; position++) {
+            if (placed[position])
+                continue;
+            int j = newCursor + 1 + random.nextInt(count - newCursor);
+            newOrder[count] = newOrder[j];
+            newOrder[j] = position;
+            count++;
+        }
+
+        order = newOrder;
+        cursor = newCursor;
+        buildIndexes();
+    }
+
+    private void buildIndexes() {
+        indexes = new int[order.length];
+        for (int i = 0; i < order.length; i++)
+            indexes[order[i]] = i;
+    }
+
+    /**
+     * Swap two entries of the order
+     */
+    private void swap(int i, int j) {
+        int a = order[i];
+        int b = order[j];
+        order[i] = b;
+        order[j] = a;
+        indexes[b] = i;
+        indexes[a] = j;
+    }
+
+}
@@ -0,0 +1,19 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+/**
+ * SortOrder - the order the track list is displayed and played in, see TrackSorter
+ * TITLE = By title, the library order
+ * ARTIST = By artist, then album, then title
+ * ALBUM = By album, then title
+ * DURATION = Shortest first, then by title
+ * DATE_ADDED = Most recently added first, then by title
+ * PLAY_COUNT = Most played first, then by title
+ */
+public enum SortOrder {
+    TITLE,
+    ARTIST,
+    ALBUM,
+    DURATION,
+    DATE_ADDED,
+    PLAY_COUNT
+}
@@ -2,113 +2,97 @@ package com.daniel.awesomemusicplayer.tracks;
 
 import com.daniel.awesomemusicplayer.util.Utils;
 
-import java.io.Serializable;
-
 /**
  * Track - data model representing a track (song)
- * Contains dynamic boolean variables that represent the state of the track (selected/playing)
+ * The track data is stored in a TrackStore, a Track is a lightweight view of a row in the store.
+ * Tracks are created by TrackStore.add().
+ * The playback state (selected/playing) is kept by the TrackAdapter, not by the tracks.
  */
 public class Track {
 
-    /** Track ID */
-    private long id;
-
-    /** Track title (name) */
-    private String title;
-
-    /** Name of the artist */
-    private String artist;
-
-    /** Duration of the track in milliseconds*/
-    private long duration;
-
-    /** Is the track selected? */
-    private boolean selected;
+    /** The store holding the track data */
+    private final TrackStore store;
 
-    /** Is the track playing? */
-    private boolean playing;
+    /** The row of the track in the store */
+    private final int row;
 
-    /** Path to the album art image */
-    private String albumArtURI;
-
-    public Track() {}
-
-    public long getId() {
-        return id;
+    Track(TrackStore store, int row) {
+        this.store = store;
+        this.row = row;
     }
 
-    public void setId(long id) {
-        this.id = id;
+    /**
+     * @return The store holding the track data
+     */
+    TrackStore getStore() {
+        return store;
     }
 
-    public String getTitle() {
-        return title;
+    public long getId() {
+        return store.getId(row);
     }
 
-    public void setTitle(String title) {
-        this.title = title;
+    public String getTitle() {
+        return store.getTitle(row);
     }
 
     public String getArtist() {
-        return artist;
+        return store.getArtist(row);
     }
 
-    public void setArtist(String artist) {
-        this.artist = artist;
+    /**
+     * @return The dictionary code of the artist, equal for all the tracks of the same artist.
+     *         -1 if the track has no artist.
+     */
+    public int getArtistCode() {
+        return store.getArtistCode(row);
     }
 
     public long getDuration() {
-        return duration;
+        return store.getDuration(row);
     }
 
-    public void setDuration(long duration) {
-        this.duration = duration;
+    public String getAlbumArtURI() {
+        return store.getAlbumArtURI(row);
     }
 
-    public boolean isSelected() {
-        return selected;
+    public int getAlbumId() {
+        return store.getAlbumId(row);
     }
 
-    public void setSelected(boolean selected) {
-        this.selected = selected;
+    public String getAlbum() {
+        return store.getAlbum(row);
     }
 
-    public String getAlbumArtURI() {
-        return albumArtURI;
+    public long getDateAdded() {
+        return store.getDateAdded(row);
     }
 
-    public void setAlbumArtURI(String albumArtURI) {
-        this.albumArtURI = albumArtURI;
+    public long getDateModified() {
+        return store.getDateModified(row);
     }
 
     public String getFullTitle() {
-        return artist + " - " + title;
-    }
-
-    public boolean isPlaying() {
-        return playing;
-    }
-
-    public void setPlaying(boolean playing) {
-        this.playing = playing;
+        return getArtist() + " - " + getTitle();
     }
 
     @Override
     public boolean equals(Object obj) {
         if (obj == null) return false;
         if (obj == this) return true;
-        return obj instanceof Track && this.id == ((Track) obj).id;
+        return obj instanceof Track && getId() == ((Track) obj).getId();
     }
 
     @Override
     public int hashCode() {
+        long id = getId();
         return (int)(id ^ (id>>>32));
     }
 
     @Override
     public String toString() {
-        return "[" + id + "] " + title + " by " + artist + " (" + Utils.formatMillis(duration) + ")"
-                + (selected ? " SELECTED" : "") + (playing ? " PLAYING" : "");
+        return "[" + getId() + "] " + getTitle() + " by " + getArtist()
+                + " (" + Utils.formatMillis(getDuration()) + ")";
     }
 
 }
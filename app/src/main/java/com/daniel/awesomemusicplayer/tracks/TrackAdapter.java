@@ -3,105 +3,336 @@ package com.daniel.awesomemusicplayer.tracks;
 import android.content.Context;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import com.daniel.awesomemusicplayer.R;
+import com.daniel.awesomemusicplayer.util.PowerStats;
 import com.daniel.awesomemusicplayer.util.Utils;
 
+import java.util.Arrays;
 import java.util.List;
 
 /**
- * Adapter for the Tracks ListView in MainActivity - lstTracks
+ * Adapter for the Tracks RecyclerView in MainActivity - lstTracks
+ *
+ * The adapter keeps the playback state of the list - the selected track and whether
+ * it's playing. State changes rebind only the affected rows, with the STATE payload,
+ * which updates the row background and the equalizer without touching the text views.
+ *
+ * The list can be sorted (a sort order) and filtered (search results) - both are arrays of
+ * track indexes in display order, so the adapter position of a row is not necessarily
+ * the index of its track in the list. The filter takes precedence over the order.
+ * The listener and the public methods always use track indexes. Both arrays are inverted when
+ * they're set, so the row of a track is found without searching them.
  */
-public class TrackAdapter extends ArrayAdapter<Track> {
+public class TrackAdapter extends RecyclerView.Adapter<TrackAdapter.ViewHolder> {
 
-    public TrackAdapter(@NonNull Context context, List<Track> items) {
-        super(context, R.layout.row_track, items);
+    /** Callback for clicks on the rows */
+    public interface OnTrackClickListener {
+        /**
+         * @param trackIndex The index of the clicked track in the track list
+         */
+        void onTrackClick(int trackIndex);
+
+        /**
+         * @param trackIndex The index of the long clicked track in the track list
+         * @param view The row view
+         */
+        void onTrackLongClick(int trackIndex, View view);
+    }
+
+    /** Change payload - only the playback state (background and equalizer) of the row has changed */
+    public static final Object PAYLOAD_STATE = new Object();
+
+    /** Context used to inflate the rows and resolve the colors */
+    private final Context context;
+
+    /** The tracks, shared with MainActivity and the service */
+    private final List<Track> items;
+
+    /** Listener instance */
+    private final OnTrackClickListener listener;
+
+    /** The equalizer of the selected row, decoded once and shared by the rows */
+    private final EqualizerAnimation equalizer;
+
+    /** Index of the selected track, RecyclerView.NO_POSITION if no track is selected */
+    private int selectedTrack = RecyclerView.NO_POSITION;
+
+    /** Indexes of all the tracks in the sort order, null for the track list order */
+    private int[] order;
+
+    /** Adapter position of every track in the sort order, null for the track list order */
+    private int[] orderPositions;
+
+    /** Indexes of the displayed tracks, in display order. null if the list isn't filtered. */
+    private int[] filter;
+
+    /** Number of entries of filter in use */
+    private int filterCount;
+
+    /**
+     * Adapter position of every track in the filter, RecyclerView.NO_POSITION if it isn't displayed.
+     * Reused by every search, only valid while the list is filtered.
+     */
+    private int[] filterPositions;
+
+    /** Is the selected track playing? */
+    private boolean playing;
+
+    public TrackAdapter(@NonNull Context context, @NonNull List<Track> items,
+                        @NonNull OnTrackClickListener listener) {
+        this.context = context;
+        this.items = items;
+        this.listener = listener;
+        this.equalizer = new EqualizerAnimation(context);
+        setHasStableIds(true);
     }
 
     @NonNull
     @Override
-    public View getView(int position, @Nullable View convertView, @NonNull ViewGroup parent) {
-
-        ViewHolder viewHolder;
-        if (convertView == null) {
-            // Initialize the view and the ViewHolder
-            convertView = LayoutInflater.from(getContext())
-                    .inflate(R.layout.row_track, parent, false);
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(context).inflate(R.layout.row_track, parent, false);
+        final ViewHolder viewHolder = new ViewHolder(view);
+        view.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                int position = viewHolder.getAdapterPosition();
+                if (position != RecyclerView.NO_POSITION)
+                    listener.onTrackClick(getTrackIndex(position));
+            }
+        });
+        view.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                int position = viewHolder.getAdapterPosition();
+                if (position == RecyclerView.NO_POSITION)
+                    return false;
+                listener.onTrackLongClick(getTrackIndex(position), v);
+                return true;
+            }
+        });
+        return viewHolder;
+    }
 
-            viewHolder = new ViewHolder();
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder viewHolder, int position) {
+        Track track = items.get(getTrackIndex(position));
 
-            viewHolder.background = convertView.findViewById(R.id.background);
-            viewHolder.lblTitle = convertView.findViewById(R.id.lblTitle);
-            viewHolder.lblArtist = convertView.findViewById(R.id.lblArtist);
-            viewHolder.lblDuration = convertView.findViewById(R.id.lblDuration);
-            viewHolder.imgEqualizer = convertView.findViewById(R.id.imgEqualizer);
+        // Set values for the UI components
+        viewHolder.lblTitle.setText(track.getTitle());
+        viewHolder.lblArtist.setText(track.getArtist());
+        viewHolder.lblDuration.setText(viewHolder.durationText, 0,
+                Utils.formatMillis(track.getDuration(), viewHolder.durationText));
 
-            convertView.setTag(viewHolder);
+        bindState(viewHolder, position);
+    }
 
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder viewHolder, int position,
+                                 @NonNull List<Object> payloads) {
+        long cpu = PowerStats.begin();
+        // Only the state changed - leave the text views alone
+        if (!payloads.isEmpty() && onlyState(payloads)) {
+            bindState(viewHolder, position);
         } else {
-            // Get ViewHolder from tag
-            viewHolder = (ViewHolder) convertView.getTag();
+            onBindViewHolder(viewHolder, position);
         }
+        PowerStats.end(PowerStats.Component.TRACK_BINDS, cpu);
+    }
 
-        // Get the item
-        Track track = getItem(position);
-
-        if (track != null) {
-
-            // Set the background - tiles of grey for all rows, accent color for the selected row
-            viewHolder.background.setBackgroundColor(getContext().getColor(
-                    track.isSelected()
-                            ? R.color.colorAccent
-                            : position % 2 == 0
-                            ? R.color.colorTrackListBackgroundOne
-                            : R.color.colorTrackListBackgroundTwo));
-
-            // Set values for the UI components
-            viewHolder.lblTitle.setText(track.getTitle());
-            viewHolder.lblArtist.setText(track.getArtist());
-            viewHolder.lblDuration.setText(Utils.formatMillis(track.getDuration()));
-
-            if (track.isSelected()) {
-                viewHolder.imgEqualizer.setVisibility(View.VISIBLE);
-                if (track.isPlaying()) {
-                    // The track is playing - show the animated equalizer
-                    Glide.with(getContext())
-                            .load(R.drawable.equalizer)
-                            .asGif()
-                            .diskCacheStrategy(DiskCacheStrategy.SOURCE)
-                            .into(viewHolder.imgEqualizer);
-                } else {
-                    // The track is selected but isn't playing - show the equalizer bitmap
-                    Glide.with(getContext())
-                            .load(R.drawable.equalizer)
-                            .asBitmap()
-                            .diskCacheStrategy(DiskCacheStrategy.SOURCE)
-                            .into(viewHolder.imgEqualizer);
-                }
-            } else {
-                // The track isn't selected - remove the image from the ImageView and hide it
-                viewHolder.imgEqualizer.setImageDrawable(null);
-                viewHolder.imgEqualizer.setVisibility(View.GONE);
-            }
+    @Override
+    public void onViewRecycled(@NonNull ViewHolder viewHolder) {
+        // Don't leave the shared equalizer on a row in the recycled pool
+        equalizer.detach(viewHolder.imgEqualizer);
+    }
+
+    @Override
+    public int getItemCount() {
+        return filter != null ? filterCount : items.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return items.get(getTrackIndex(position)).getId();
+    }
+
+    /**
+     * Display the tracks in a sort order. The array is used as is, not copied.
+     * @param order Indexes of all the tracks in display order, null for the track list order
+     */
+    public void setOrder(@Nullable int[] order) {
+        if (this.order == order)
+            return;
+        this.order = order;
+        this.orderPositions = order != null ? TrackSorter.invert(order) : null;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * @return The indexes of all the tracks in display order, null for the track list order
+     */
+    @Nullable
+    public int[] getOrder() {
+        return order;
+    }
+
+    /**
+     * Display only some of the tracks. The array is used as is, not copied.
+     * @param trackIndexes Indexes of the tracks to display, in display order
+     * @param count Number of entries of the array to use
+     */
+    public void setFilter(@NonNull int[] trackIndexes, int count) {
+        filter = trackIndexes;
+        filterCount = count;
+        if (filterPositions == null || filterPositions.length < items.size())
+            filterPositions = new int[items.size()];
+        Arrays.fill(filterPositions, RecyclerView.NO_POSITION);
+        for (int i = 0; i < count; i++)
+            filterPositions[trackIndexes[i]] = i;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Display all the tracks again
+     */
+    public void clearFilter() {
+        if (filter == null)
+            return;
+        filter = null;
+        filterCount = 0;
+        notifyDataSetChanged();
+    }
+
+    public boolean isFiltered() {
+        return filter != null;
+    }
 
+    /**
+     * @return The index in the track list of the track displayed at an adapter position
+     */
+    public int getTrackIndex(int position) {
+        if (filter != null)
+            return filter[position];
+        return order != null ? order[position] : position;
+    }
+
+    /**
+     * @return The adapter position of a track, RecyclerView.NO_POSITION if it isn't displayed
+     */
+    public int getAdapterPosition(int trackIndex) {
+        int[] positions = filter != null ? filterPositions : orderPositions;
+        int count = positions != null ? positions.length : items.size();
+        if (trackIndex < 0 || trackIndex >= count)
+            return RecyclerView.NO_POSITION;
+        return positions != null ? positions[trackIndex] : trackIndex;
+    }
+
+    /**
+     * Select a track, rebinding the previously selected row and the new one
+     * @param trackIndex Index of the selected track
+     * @param playing Is the track playing?
+     */
+    public void setSelection(int trackIndex, boolean playing) {
+        int oldTrack = selectedTrack;
+        boolean oldPlaying = this.playing;
+        selectedTrack = trackIndex;
+        this.playing = playing;
+
+        if (oldTrack != trackIndex) {
+            notifyStateChanged(oldTrack);
+            notifyStateChanged(trackIndex);
+        } else if (oldPlaying != playing) {
+            notifyStateChanged(trackIndex);
         }
+    }
+
+    /**
+     * Update the playing state of the selected track
+     */
+    public void setPlaying(boolean playing) {
+        setSelection(selectedTrack, playing);
+    }
 
-        return convertView;
+    public int getSelectedTrack() {
+        return selectedTrack;
     }
 
-    private static final class ViewHolder {
-        LinearLayout background;
-        TextView lblTitle, lblArtist, lblDuration;
-        ImageView imgEqualizer;
+    /**
+     * Notify the adapter that the tracks in a range of positions have moved, e.g. after
+     * tracks have been inserted or removed before them.
+     * Only the state is rebound - the alternating background depends on the position.
+     */
+    public void notifyPositionsShifted(int fromPosition) {
+        if (fromPosition < getItemCount())
+            notifyItemRangeChanged(fromPosition, getItemCount() - fromPosition, PAYLOAD_STATE);
+    }
+
+    /**
+     * Rebind the state of the row of a track, if it is displayed
+     */
+    private void notifyStateChanged(int trackIndex) {
+        int position = getAdapterPosition(trackIndex);
+        if (position != RecyclerView.NO_POSITION)
+            notifyItemChanged(position, PAYLOAD_STATE);
+    }
+
+    /**
+     * Bind the playback state of a row - the background color and the equalizer
+     */
+    private void bindState(ViewHolder viewHolder, int position) {
+        boolean selected = getTrackIndex(position) == selectedTrack;
+
+        // Set the background - tiles of grey for all rows, accent color for the selected row
+        viewHolder.background.setBackgroundColor(context.getColor(
+                selected
+                        ? R.color.colorAccent
+                        : position % 2 == 0
+                        ? R.color.colorTrackListBackgroundOne
+                        : R.color.colorTrackListBackgroundTwo));
+
+        if (selected) {
+            // Animated equalizer if the track is playing, the still frame if it isn't
+            equalizer.attach(viewHolder.imgEqualizer, playing);
+        } else {
+            // The track isn't selected - remove the image from the ImageView and hide it
+            equalizer.detach(viewHolder.imgEqualizer);
+        }
+    }
+
+    /**
+     * @return true if all the payloads are PAYLOAD_STATE
+     */
+    private static boolean onlyState(List<Object> payloads) {
+        for (Object payload : payloads) {
+            if (payload != PAYLOAD_STATE)
+                return false;
+        }
+        return true;
+    }
+
+    public static final class ViewHolder extends RecyclerView.ViewHolder {
+        final LinearLayout background;
+        final TextView lblTitle, lblArtist, lblDuration;
+        final ImageView imgEqualizer;
+
+        /** Buffer of lblDuration, reused by every bind */
+        final char[] durationText = new char[Utils.TIME_BUFFER_LENGTH];
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            background = itemView.findViewById(R.id.background);
+            lblTitle = itemView.findViewById(R.id.lblTitle);
+            lblArtist = itemView.findViewById(R.id.lblArtist);
+            lblDuration = itemView.findViewById(R.id.lblDuration);
+            imgEqualizer = itemView.findViewById(R.id.imgEqualizer);
+        }
     }
 
-}
\ No newline at end of file
+}
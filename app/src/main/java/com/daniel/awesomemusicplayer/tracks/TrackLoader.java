@@ -0,0 +1,225 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * TrackLoader reads the track library on a background thread.
+ * If a library snapshot has been saved by a previous run, it is displayed first and then
+ * reconciled with the device's MediaStore in the background, otherwise the MediaStore is read
+ * from scratch. Either way the tracks are passed to the listener on the UI thread in pages,
+ * so the track list can be displayed while the rest is still loading.
+ */
+public class TrackLoader implements Runnable {
+
+    /** Callback to MainActivity, all methods are called on the UI thread */
+    public interface TrackLoaderListener {
+        /**
+         * This method is called every time a page of tracks has been read.
+         * @param page The tracks of the page, in the order of the library
+         */
+        void onPageLoaded(List<Track> page);
+
+        /**
+         * This method is called after the last page has been passed to onPageLoaded().
+         * @param trackCount The total number of tracks loaded
+         */
+        void onLoadFinished(int trackCount);
+
+        /**
+         * This method is called after onLoadFinished() if the library has been loaded
+         * from a snapshot and the MediaStore contains changes that are not in the snapshot.
+         * @param diff The changes, computed against the tracks passed to onPageLoaded()
+         */
+        void onLibraryUpdated(LibraryDiff diff);
+    }
+
+    /** Log tag */
+    private static final String LOG_TAG = "TrackLoader";
+
+    /** Size of the first page - small, to fill the screen as fast as possible */
+    private static final int FIRST_PAGE_SIZE = 50;
+
+    /** Size of the rest of the pages */
+    private static final int PAGE_SIZE = 500;
+
+    /** MediaStore queries */
+    private final LibraryScanner scanner;
+
+    /** The library snapshot */
+    private final LibrarySnapshot snapshot;
+
+    /** Handler used to pass the pages to the UI thread */
+    private final Handler handler;
+
+    /** Listener instance */
+    private volatile TrackLoaderListener listener;
+
+    /** Variable that determines if the loader should run. This is set to false in the stop() method. */
+    private volatile boolean go;
+
+    public TrackLoader(@NonNull Context context, @NonNull TrackLoaderListener listener) {
+        this.scanner = new LibraryScanner(context.getContentResolver());
+        this.snapshot = new LibrarySnapshot(context.getFilesDir());
+        this.listener = listener;
+        this.handler = new Handler(Looper.getMainLooper());
+        this.go = true;
+    }
+
+    /**
+     * Start loading the tracks on a new background thread
+     */
+    public void start() {
+        new Thread(this, LOG_TAG).start();
+    }
+
+    /**
+     * Abort the loader, pages that haven't been delivered yet are dropped
+     */
+    public void stop() {
+        go = false;
+        listener = null;
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        if (!loadSnapshot())
+            loadMediaStore();
+    }
+
+    /**
+     * Display the saved snapshot and then bring it up to date with the MediaStore
+     * @return false if there's no snapshot
+     */
+    private boolean loadSnapshot() {
+        long startTime = SystemClock.elapsedRealtime();
+        List<Track> tracks = snapshot.read();
+        if (tracks == null)
+            return false;
+
+        Log.d(LOG_TAG, "Read " + tracks.size() + " tracks from the snapshot in "
+                + (SystemClock.elapsedRealtime() - startTime) + "ms.");
+
+        // Display the snapshot right away
+        Pager pager = new Pager();
+        for (Track track : tracks)
+            pager.add(track);
+        pager.flush();
+        deliverLoadFinished(tracks.size());
+
+        // Bring the snapshot up to date, only new and modified rows are read
+        if (!go)
+            return true;
+        startTime = SystemClock.elapsedRealtime();
+        List<Track> updated = scanner.reconcile(tracks);
+        Log.d(LOG_TAG, "Reconciled the snapshot in " + (SystemClock.elapsedRealtime() - startTime)
+                + "ms (" + scanner.getQueryCount() + " queries), "
+                + (updated == null ? "no changes." : "library updated."));
+        if (updated == null || !go)
+            return true;
+
+        final LibraryDiff diff = LibraryDiff.compute(tracks, updated);
+        Log.d(LOG_TAG, diff.toString());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                TrackLoaderListener l = listener;
+                if (go && l != null)
+                    l.onLibraryUpdated(diff);
+            }
+        });
+        snapshot.write(updated);
+        return true;
+    }
+
+    /**
+     * Read the entire library from the MediaStore and save a snapshot
+     */
+    private void loadMediaStore() {
+        long startTime = SystemClock.elapsedRealtime();
+        Log.d(LOG_TAG, "Reading tracks...");
+
+        final List<Track> library = new ArrayList<>();
+        final Pager pager = new Pager();
+        boolean completed = scanner.scan(new LibraryScanner.ScanListener() {
+            @Override
+            public boolean onTrack(Track track) {
+                library.add(track);
+                pager.add(track);
+                return go;
+            }
+        });
+
+        if (!completed || !go)
+            return;
+        pager.flush();
+
+        Log.d(LOG_TAG, "Finished reading " + library.size() + " tracks in "
+                + (SystemClock.elapsedRealtime() - startTime) + "ms ("
+                + scanner.getQueryCount() + " queries).");
+
+        deliverLoadFinished(library.size());
+        snapshot.write(library);
+    }
+
+    /**
+     * Notify the listener on the UI thread that all pages have been delivered
+     * @param trackCount The total number of tracks loaded
+     */
+    private void deliverLoadFinished(final int trackCount) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                TrackLoaderListener l = listener;
+                if (go && l != null)
+                    l.onLoadFinished(trackCount);
+            }
+        });
+    }
+
+    /**
+     * Collects tracks into pages and passes every full page to the listener on the UI thread
+     */
+    private final class Pager {
+        private int pageSize = FIRST_PAGE_SIZE;
+        private List<Track> page = new ArrayList<>(pageSize);
+
+        void add(Track track) {
+            page.add(track);
+            if (page.size() == pageSize) {
+                flush();
+                pageSize = PAGE_SIZE;
+            }
+        }
+
+        /**
+         * Deliver the current page, even if it isn't full
+         */
+        void flush() {
+            if (page.isEmpty())
+                return;
+
+            final List<Track> fullPage = page;
+            page = new ArrayList<>(PAGE_SIZE);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    TrackLoaderListener l = listener;
+                    if (go && l != null)
+                        l.onPageLoaded(fullPage);
+                }
+            });
+        }
+    }
+
+}
@@ -0,0 +1,203 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TrackSorter computes the sort orders of a track list. An order is a permutation - an int[]
+ * of track indexes in display order - the track list itself is never reordered, so track
+ * indexes (the selected track, the queue, the shuffle order) stay valid in every order.
+ *
+ * The expensive part of sorting strings is comparing them with the locale's collation rules.
+ * It's done once, on a background thread, when the sorter is created: the distinct titles,
+ * artists and albums are sorted by their CollationKeys, and every track gets the rank of its
+ * title, artist and album. Every order ends with the title, so the title order is computed
+ * up front as well. After that, an order is one or two sorts of primitive longs,
+ * which takes a few milliseconds even for a large library.
+ */
+public class TrackSorter {
+
+    /** Number of tracks in the list */
+    private final int trackCount;
+
+    /** Collation rank of the title of every track */
+    private final int[] titleRanks;
+
+    /** Collation rank of the artist of every track */
+    private final int[] artistRanks;
+
+    /** Collation rank of the album of every track */
+    private final int[] albumRanks;
+
+    /** Track indexes sorted by title, ties keep the library order */
+    private final int[] titleOrder;
+
+    /** Duration of every track in seconds */
+    private final int[] durations;
+
+    /** Date added of every track, in seconds */
+    private final int[] datesAdded;
+
+    /** Track ID of every track, for the play counts */
+    private final long[] ids;
+
+    /**
+     * Compute the sort keys of a track list
+     * @param tracks The tracks, a copy of the track list that isn't modified while the keys are computed
+     */
+    @WorkerThread
+    public TrackSorter(@NonNull List<Track> tracks) {
+        trackCount = tracks.size();
+        String[] titles = new String[trackCount];
+        String[] artists = new String[trackCount];
+        String[] albums = new String[trackCount];
+        durations = new int[trackCount];
+        datesAdded = new int[trackCount];
+        ids = new long[trackCount];
+        for (int i = 0; i < trackCount; i++) {
+            Track track = tracks.get(i);
+            titles[i] = track.getTitle();
+            artists[i] = track.getArtist();
+            albums[i] = track.getAlbum();
+            durations[i] = (int) Math.min(Integer.MAX_VALUE, Math.max(0, track.getDuration() / 1000));
+            datesAdded[i] = (int) Math.min(Integer.MAX_VALUE, Math.max(0, track.getDateAdded()));
+            ids[i] = track.getId();
+        }
+
+        Collator collator = Collator.getInstance();
+        titleRanks = collationRanks(titles, collator);
+        artistRanks = collationRanks(artists, collator);
+        albumRanks = collationRanks(albums, collator);
+
+        int[] identity = new int[trackCount];
+        for (int i = 0; i < trackCount; i++)
+            identity[i] = i;
+        titleOrder = sortBy(identity, titleRanks);
+    }
+
+    /**
+     * @return The number of tracks in the list the keys have been computed for
+     */
+    public int getTrackCount() {
+        return trackCount;
+    }
+
+    /**
+     * Compute an order
+     * @param sortOrder The order
+     * @param playCounts The play counts, used only by PLAY_COUNT (may be null for the other orders)
+     * @return The track indexes in display order, or null for TITLE (the library order)
+     */
+    @Nullable
+    public int[] sort(@NonNull SortOrder sortOrder, @Nullable PlayCounts playCounts) {
+        // Keys from the most significant to the least significant, ties are sorted by title
+        switch (sortOrder) {
+            case ARTIST:
+                return sortBy(titleOrder, artistRanks, albumRanks);
+            case ALBUM:
+                return sortBy(titleOrder, albumRanks);
+            case DURATION:
+                return sortBy(titleOrder, durations);
+            case DATE_ADDED:
+                return sortBy(titleOrder, descending(datesAdded));
+            case PLAY_COUNT:
+                if (playCounts == null)
+                    throw new IllegalArgumentException("PLAY_COUNT requires the play counts");
+                int[] counts = new int[trackCount];
+                for (int i = 0; i < trackCount; i++)
+                    counts[i] = playCounts.get(ids[i]);
+                return sortBy(titleOrder, descending(counts));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return The inverse of an order - the display position of every track index
+     */
+    @NonNull
+    public static int[] invert(@NonNull int[] order) {
+        int[] positions = new int[order.length];
+        for (int i = 0; i < order.length; i++)
+            positions[order[i]] = i;
+        return positions;
+    }
+
+    // --- Helper methods
+
+    /**
+     * Sort the track indexes by several keys, with one stable pass per key from the least
+     * significant to the most significant. Every pass sorts longs holding the key in the high
+     * half and the position from the previous pass in the low half, so equal keys keep
+     * the order of the previous pass.
+     * @param initialOrder The order of tracks with equal keys, it isn't modified
+     * @param keys Non-negative keys of every track, the most significant first
+     */
+    private int[] sortBy(int[] initialOrder, int[]... keys) {
+        int[] order = initialOrder;
+        long[] packed = new long[trackCount];
+        int[] next = new int[trackCount];
+        for (int k = keys.length - 1; k >= 0; k--) {
+            int[] key = keys[k];
+            for (int i = 0; i < trackCount; i++)
+                packed[i] = (long) key[order[i]] << 32 | i;
+            Arrays.sort(packed);
+            for (int i = 0; i < trackCount; i++)
+                next[i] = order[(int) packed[i]];
+
+            int[] swap = order;
+            order = next;
+            next = swap == initialOrder ? new int[trackCount] : swap;
+        }
+        return order;
+    }
+
+    /**
+     * @return Keys that sort in the reverse order of the given non-negative keys
+     */
+    private static int[] descending(int[] keys) {
+        int[] result = new int[keys.length];
+        for (int i = 0; i < keys.length; i++)
+            result[i] = Integer.MAX_VALUE - keys[i];
+        return result;
+    }
+
+    /**
+     * Rank strings by collation order, equal strings get equal ranks. Nulls are ranked last.
+     * Every distinct string gets a single CollationKey, so the collation rules are applied
+     * once per string and the sort compares the keys' bytes.
+     */
+    private static int[] collationRanks(String[] values, Collator collator) {
+        Map<String, CollationKey> distinct = new HashMap<>();
+        for (String value : values) {
+            if (value != null && !distinct.containsKey(value))
+                distinct.put(value, collator.getCollationKey(value));
+        }
+
+        CollationKey[] sorted = distinct.values().toArray(new CollationKey[distinct.size()]);
+        Arrays.sort(sorted);
+
+        // Strings that collate as equal (e.g. differing only in case, depending on the strength) share a rank
+        Map<String, Integer> ranks = new HashMap<>(sorted.length * 2);
+        int rank = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i > 0 && sorted[i].compareTo(sorted[i - 1]) != 0)
+                rank++;
+            ranks.put(sorted[i].getSourceString(), rank);
+        }
+
+        int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++)
+            result[i] = values[i] != null ? ranks.get(values[i]) : sorted.length;
+        return result;
+    }
+
+}
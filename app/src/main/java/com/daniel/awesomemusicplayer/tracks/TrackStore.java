@@ -0,0 +1,227 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * TrackStore holds the data of all the tracks in a compact column layout (struct of arrays).
+ * A Track is a lightweight view of a row in the store.
+ *
+ * - IDs, durations, dates and album IDs are kept in primitive arrays.
+ * - Artists are dictionary encoded - every row holds an int code into the artist dictionary.
+ * - Titles, albums and album art paths are interned in a string pool, so equal strings
+ *   (e.g. the album and the album art path of every track of an album) are stored once.
+ *
+ * Every load of the library creates its own store, shared by the tracks of the list it backs,
+ * and the store is reclaimed with the list once a new load replaces it. Rows are append-only:
+ * tracks re-read by LibraryScanner.reconcile() are added to the store of the reconciled list,
+ * and the rows of removed and modified tracks are reclaimed together with the store.
+ *
+ * Threading: rows are added by the background loaders while the UI thread reads other rows.
+ * Writers are synchronized, readers are lock-free - the column arrays are published through
+ * a volatile reference, and a row is never modified after the Track referencing it has been
+ * returned by add().
+ */
+public class TrackStore {
+
+    /** Initial number of rows */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Initial size of the artist dictionary */
+    private static final int INITIAL_ARTIST_CAPACITY = 256;
+
+    /** Artist code of tracks without an artist */
+    private static final int NO_ARTIST = -1;
+
+    /** The row columns */
+    private volatile Columns columns;
+
+    /** The artist dictionary, indexed by artist code */
+    private volatile String[] artistDictionary;
+
+    /** Number of rows. Guarded by this. */
+    private int size;
+
+    /** Number of artists in the dictionary. Guarded by this. */
+    private int artistCount;
+
+    /** Artist name to artist code. Guarded by this. */
+    private final Map<String, Integer> artistCodes = new HashMap<>();
+
+    /** The string pool. Guarded by this. */
+    private final Map<String, String> stringPool = new HashMap<>();
+
+    public TrackStore() {
+        columns = new Columns(INITIAL_CAPACITY);
+        artistDictionary = new String[INITIAL_ARTIST_CAPACITY];
+    }
+
+    /**
+     * Add a row to the store
+     * @return A Track view of the new row
+     */
+    @NonNull
+    public synchronized Track add(long id, String title, String artist, long duration, int albumId,
+                                  String album, String albumArtURI, long dateAdded, long dateModified) {
+        if (size == columns.ids.length)
+            columns = columns.copy(size * 2);
+
+        Columns c = columns;
+        int row = size;
+        c.ids[row] = id;
+        c.titles[row] = intern(title);
+        c.artistCodes[row] = encodeArtist(artist);
+        c.durations[row] = duration;
+        c.albumIds[row] = albumId;
+        c.albums[row] = intern(album);
+        c.albumArtURIs[row] = intern(albumArtURI);
+        c.datesAdded[row] = dateAdded;
+        c.datesModified[row] = dateModified;
+        size++;
+
+        return new Track(this, row);
+    }
+
+    /**
+     * @return The number of rows in the store, including rows of removed and modified tracks
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of distinct artists
+     */
+    public synchronized int getArtistCount() {
+        return artistCount;
+    }
+
+    // --- Column accessors, used by Track
+
+    long getId(int row) {
+        return columns.ids[row];
+    }
+
+    String getTitle(int row) {
+        return columns.titles[row];
+    }
+
+    String getArtist(int row) {
+        int code = columns.artistCodes[row];
+        return code == NO_ARTIST ? null : artistDictionary[code];
+    }
+
+    int getArtistCode(int row) {
+        return columns.artistCodes[row];
+    }
+
+    long getDuration(int row) {
+        return columns.durations[row];
+    }
+
+    int getAlbumId(int row) {
+        return columns.albumIds[row];
+    }
+
+    String getAlbum(int row) {
+        return columns.albums[row];
+    }
+
+    String getAlbumArtURI(int row) {
+        return columns.albumArtURIs[row];
+    }
+
+    long getDateAdded(int row) {
+        return columns.datesAdded[row];
+    }
+
+    long getDateModified(int row) {
+        return columns.datesModified[row];
+    }
+
+    // --- Helper methods
+
+    /**
+     * @return The pooled instance of the string
+     */
+    private String intern(String value) {
+        if (value == null)
+            return null;
+        String pooled = stringPool.get(value);
+        if (pooled == null) {
+            stringPool.put(value, value);
+            pooled = value;
+        }
+        return pooled;
+    }
+
+    /**
+     * @return The code of the artist, a new code is assigned to artists that aren't in the dictionary
+     */
+    private int encodeArtist(String artist) {
+        if (artist == null)
+            return NO_ARTIST;
+
+        Integer code = artistCodes.get(artist);
+        if (code != null)
+            return code;
+
+        // The dictionary entry is written before the code is used by any row
+        if (artistCount == artistDictionary.length) {
+            artistDictionary = Arrays.copyOf(artistDictionary, artistCount * 2);
+        }
+        artistDictionary[artistCount] = artist;
+        artistCodes.put(artist, artistCount);
+        return artistCount++;
+    }
+
+    /**
+     * The row columns. The arrays are replaced (copied) when the store grows.
+     */
+    private static final class Columns {
+        final long[] ids;
+        final String[] titles;
+        final int[] artistCodes;
+        final long[] durations;
+        final int[] albumIds;
+        final String[] albums;
+        final String[] albumArtURIs;
+        final long[] datesAdded;
+        final long[] datesModified;
+
+        Columns(int capacity) {
+            ids = new long[capacity];
+            titles = new String[capacity];
+            artistCodes = new int[capacity];
+            durations = new long[capacity];
+            albumIds = new int[capacity];
+            albums = new String[capacity];
+            albumArtURIs = new String[capacity];
+            datesAdded = new long[capacity];
+            datesModified = new long[capacity];
+        }
+
+        private Columns(Columns source, int capacity) {
+            ids = Arrays.copyOf(source.ids, capacity);
+            titles = Arrays.copyOf(source.titles, capacity);
+            artistCodes = Arrays.copyOf(source.artistCodes, capacity);
+            durations = Arrays.copyOf(source.durations, capacity);
+            albumIds = Arrays.copyOf(source.albumIds, capacity);
+            albums = Arrays.copyOf(source.albums, capacity);
+            albumArtURIs = Arrays.copyOf(source.albumArtURIs, capacity);
+            datesAdded = Arrays.copyOf(source.datesAdded, capacity);
+            datesModified = Arrays.copyOf(source.datesModified, capacity);
+        }
+
+        /**
+         * @return A copy of the columns with a larger capacity
+         */
+        Columns copy(int capacity) {
+            return new Columns(this, capacity);
+        }
+    }
+
+}
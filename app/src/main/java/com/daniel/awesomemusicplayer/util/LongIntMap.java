@@ -0,0 +1,102 @@
+package com.daniel.awesomemusicplayer.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive long keys to primitive int values (open addressing, linear probing).
+ * Used instead of HashMap&lt;Long, Integer&gt; to index large track lists without boxing.
+ */
+public class LongIntMap {
+
+    /** Maximum load factor before the table is grown */
+    private static final float LOAD_FACTOR = 0.5f;
+
+    /** Keys, valid only where used[i] is true */
+    private long[] keys;
+
+    /** Values, parallel to keys */
+    private int[] values;
+
+    /** Occupied slots */
+    private boolean[] used;
+
+    /** Number of entries */
+    private int size;
+
+    public LongIntMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        keys = new long[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+    }
+
+    /**
+     * Put a value, replacing the previous value of the key if there is one
+     */
+    public void put(long key, int value) {
+        if (size + 1 > keys.length * LOAD_FACTOR)
+            grow();
+
+        int slot = findSlot(key);
+        if (!used[slot]) {
+            used[slot] = true;
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * @return The value of the key, or defaultValue if the key isn't in the map
+     */
+    public int get(long key, int defaultValue) {
+        int slot = findSlot(key);
+        return used[slot] ? values[slot] : defaultValue;
+    }
+
+    public boolean containsKey(long key) {
+        return used[findSlot(key)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    /**
+     * @return The slot of the key, or the empty slot where it should be inserted
+     */
+    private int findSlot(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (used[slot] && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        boolean[] oldUsed = used;
+
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i])
+                put(oldKeys[i], oldValues[i]);
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+}
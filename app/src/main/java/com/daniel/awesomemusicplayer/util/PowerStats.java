@@ -0,0 +1,313 @@
+package com.daniel.awesomemusicplayer.util;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * PowerStats accounts the work done by the components that wake the app up, to find out which
+ * of them drains the battery.
+ *
+ * Every run of a component's work is wrapped in begin() and end(): the run is counted, and
+ * the CPU time of the thread (Debug.threadCpuTimeNanos()) is added to the component.
+ * Handler posts and queued tasks are counted with post(). The counters are atomic, so components
+ * may run on any thread, and recording doesn't allocate.
+ *
+ * The service reports the power State. The idle paused and the background playback states have
+ * a Budget of runs and CPU time per minute, checked at the end of every run - the first run over
+ * the budget logs a warning with the work of every component since the state was entered,
+ * and is counted as a violation.
+ */
+public final class PowerStats {
+
+    private static final String LOG_TAG = PowerStats.class.getSimpleName();
+
+    /** The instrumented components */
+    public enum Component {
+        POSITION_TICKER("Position ticker"),
+        LYRICS_LINES("Lyrics lines"),
+        LYRICS_REQUESTS("Lyrics requests"),
+        TRACK_BINDS("Track list binds"),
+        PLAYER_CALLBACKS("Player callbacks"),
+        CROSSFADER("Crossfader"),
+        PLAYBACK_PUBLISHER("Playback snapshots"),
+        NOTIFICATION("Notification");
+
+        final String label;
+
+        Component(String label) {
+            this.label = label;
+        }
+    }
+
+    /** Allowed work per minute of a state */
+    public static final class Budget {
+        public final int runsPerMinute;
+        public final int cpuMillisPerMinute;
+
+        Budget(int runsPerMinute, int cpuMillisPerMinute) {
+            this.runsPerMinute = runsPerMinute;
+            this.cpuMillisPerMinute = cpuMillisPerMinute;
+        }
+    }
+
+    /** Power states of the app, reported by the service */
+    public enum State {
+        /** The activity is visible on an interactive screen - no budget */
+        INTERACTIVE("Interactive", null),
+        /** A track is playing with the screen off or the activity in the background */
+        BACKGROUND_PLAYBACK("Background playback", new Budget(150, 500)),
+        /** Nothing is playing, and the activity isn't visible */
+        IDLE_PAUSED("Idle paused", new Budget(2, 50));
+
+        final String label;
+        final Budget budget;
+
+        State(String label, Budget budget) {
+            this.label = label;
+            this.budget = budget;
+        }
+
+        public Budget getBudget() {
+            return budget;
+        }
+    }
+
+    /** Budgets are checked against at least a minute, so a few runs right after a state change are allowed */
+    private static final long MIN_BUDGET_WINDOW_MILLIS = 60 * 1000;
+
+    private static final int COMPONENTS = Component.values().length;
+
+    private static final AtomicLongArray runs = new AtomicLongArray(COMPONENTS);
+    private static final AtomicLongArray posts = new AtomicLongArray(COMPONENTS);
+    private static final AtomicLongArray cpuNanos = new AtomicLongArray(COMPONENTS);
+
+    /** Totals of all the components, compared to the budget */
+    private static final AtomicLong totalRuns = new AtomicLong();
+    private static final AtomicLong totalCpuNanos = new AtomicLong();
+
+    /** The current state, and the counters when it was entered. Written under the class lock. */
+    private static volatile State state = State.INTERACTIVE;
+    private static long stateStartTime = SystemClock.elapsedRealtime();
+    private static long stateStartRuns;
+    private static long stateStartCpuNanos;
+    private static final long[] stateStartComponentRuns = new long[COMPONENTS];
+    private static final long[] stateStartComponentPosts = new long[COMPONENTS];
+    private static final long[] stateStartComponentCpuNanos = new long[COMPONENTS];
+
+    /** Has the budget of the current state been exceeded? */
+    private static volatile boolean overBudget;
+
+    /** Number of budget violations, and the report of the last one */
+    private static int violations;
+    private static String lastViolation;
+
+    /** Time of the last reset */
+    private static long resetTime = SystemClock.elapsedRealtime();
+
+    private PowerStats() {}
+
+    // --- Recording
+
+    /**
+     * Start measuring a run of a component's work
+     * @return The CPU time of the thread, to pass to end()
+     */
+    public static long begin() {
+        return Debug.threadCpuTimeNanos();
+    }
+
+    /**
+     * Finish measuring a run, on the thread that called begin()
+     * @param component The component that ran
+     * @param begin The value returned by begin()
+     */
+    public static void end(@NonNull Component component, long begin) {
+        int index = component.ordinal();
+        runs.incrementAndGet(index);
+        totalRuns.incrementAndGet();
+
+        // threadCpuTimeNanos() returns -1 if it isn't supported
+        if (begin >= 0) {
+            long cpu = Debug.threadCpuTimeNanos() - begin;
+            if (cpu > 0) {
+                cpuNanos.addAndGet(index, cpu);
+                totalCpuNanos.addAndGet(cpu);
+            }
+        }
+
+        if (state.budget != null && !overBudget)
+            checkBudget();
+    }
+
+    /**
+     * Count a Handler post or a queued task of a component
+     */
+    public static void post(@NonNull Component component) {
+        posts.incrementAndGet(component.ordinal());
+    }
+
+    /**
+     * Enter a power state, the budget of the new state applies from now on
+     */
+    public static synchronized void setState(@NonNull State newState) {
+        if (newState == state)
+            return;
+        Log.d(LOG_TAG, "Power state: " + newState.label);
+        state = newState;
+        startStateWindow();
+    }
+
+    @NonNull
+    public static State getState() {
+        return state;
+    }
+
+    /**
+     * @return The number of times a budget has been exceeded since the last reset
+     */
+    public static synchronized int getViolations() {
+        return violations;
+    }
+
+    /**
+     * Clear all the counters, the current state starts again
+     */
+    public static synchronized void reset() {
+        for (int i = 0; i < COMPONENTS; i++) {
+            runs.set(i, 0);
+            posts.set(i, 0);
+            cpuNanos.set(i, 0);
+        }
+        totalRuns.set(0);
+        totalCpuNanos.set(0);
+        violations = 0;
+        lastViolation = null;
+        resetTime = SystemClock.elapsedRealtime();
+        startStateWindow();
+    }
+
+    // --- Reporting
+
+    /**
+     * @return A text report of the work of every component since the last reset,
+     *         and of the current state
+     */
+    @NonNull
+    public static synchronized String getReport() {
+        long now = SystemClock.elapsedRealtime();
+        StringBuilder sb = new StringBuilder();
+        sb.append("Since reset: ").append(Utils.formatMillis(now - resetTime)).append('\n');
+        sb.append("State: ").append(state.label).append(" for ")
+                .append(Utils.formatMillis(now - stateStartTime)).append('\n');
+        if (state.budget != null) {
+            sb.append(String.format(Locale.US, "Budget: %d runs, %d ms CPU per minute%s%n",
+                    state.budget.runsPerMinute, state.budget.cpuMillisPerMinute,
+                    overBudget ? " - EXCEEDED" : ""));
+        }
+        sb.append("Budget violations: ").append(violations).append('\n');
+        if (lastViolation != null)
+            sb.append("Last violation:\n").append(lastViolation);
+
+        sb.append("\nSince reset:\n");
+        appendTable(sb, false);
+        sb.append("\nIn this state:\n");
+        appendTable(sb, true);
+        return sb.toString();
+    }
+
+    /**
+     * Write the report to power_stats.txt in the app's external files directory
+     * (the internal one if there's no external storage)
+     * @return The file
+     */
+    @NonNull
+    public static File dump(@NonNull Context context) throws IOException {
+        File directory = context.getExternalFilesDir(null);
+        if (directory == null)
+            directory = context.getFilesDir();
+        File file = new File(directory, "power_stats.txt");
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(getReport().getBytes(Charset.forName("UTF-8")));
+        } finally {
+            Utils.closeQuietly(out);
+        }
+        return file;
+    }
+
+    // --- Helper methods
+
+    /**
+     * Remember the counters at the start of the current state. Called under the class lock.
+     */
+    private static void startStateWindow() {
+        stateStartTime = SystemClock.elapsedRealtime();
+        stateStartRuns = totalRuns.get();
+        stateStartCpuNanos = totalCpuNanos.get();
+        for (int i = 0; i < COMPONENTS; i++) {
+            stateStartComponentRuns[i] = runs.get(i);
+            stateStartComponentPosts[i] = posts.get(i);
+            stateStartComponentCpuNanos[i] = cpuNanos.get(i);
+        }
+        overBudget = false;
+    }
+
+    /**
+     * Compare the work since the state was entered to its budget, report the first violation
+     */
+    private static synchronized void checkBudget() {
+        Budget budget = state.budget;
+        if (budget == null || overBudget)
+            return;
+
+        double minutes = Math.max(SystemClock.elapsedRealtime() - stateStartTime, MIN_BUDGET_WINDOW_MILLIS) / 60000.0;
+        long stateRuns = totalRuns.get() - stateStartRuns;
+        long stateCpuMillis = (totalCpuNanos.get() - stateStartCpuNanos) / 1000000;
+        if (stateRuns <= budget.runsPerMinute * minutes && stateCpuMillis <= budget.cpuMillisPerMinute * minutes)
+            return;
+
+        overBudget = true;
+        violations++;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%s: %d runs, %d ms CPU in %.1f min%n",
+                state.label, stateRuns, stateCpuMillis, minutes));
+        appendTable(sb, true);
+        lastViolation = sb.toString();
+        Log.w(LOG_TAG, "Power budget exceeded - " + lastViolation);
+    }
+
+    /**
+     * Append the runs, posts and CPU time of every component. Called under the class lock.
+     * @param sinceStateStart true for the work since the current state was entered,
+     *                        false for the work since the last reset
+     */
+    private static void appendTable(StringBuilder sb, boolean sinceStateStart) {
+        sb.append(String.format(Locale.US, "%-18s %8s %8s %8s%n", "Component", "Runs", "Posts", "CPU ms"));
+        for (Component component : Component.values()) {
+            int i = component.ordinal();
+            long componentRuns = runs.get(i);
+            long componentPosts = posts.get(i);
+            long componentCpuNanos = cpuNanos.get(i);
+            if (sinceStateStart) {
+                componentRuns -= stateStartComponentRuns[i];
+                componentPosts -= stateStartComponentPosts[i];
+                componentCpuNanos -= stateStartComponentCpuNanos[i];
+            }
+            sb.append(String.format(Locale.US, "%-18s %8d %8d %8d%n", component.label,
+                    componentRuns, componentPosts, componentCpuNanos / 1000000));
+        }
+    }
+
+}
@@ -1,47 +1,195 @@
 package com.daniel.awesomemusicplayer.util;
 
+import java.io.Closeable;
+import java.io.IOException;
+
 /**
  * Utilities class - contains static utility methods
  */
 public class Utils {
 
+    /** Length of a buffer that holds any formatted time */
+    public static final int TIME_BUFFER_LENGTH = 20;
+
+    /** Maximum length of the name of an HTML entity, "#x10FFFF" */
+    private static final int MAX_ENTITY_LENGTH = 8;
+
     public static String formatSeconds(long seconds) {
         return formatMillis(seconds * 1000L);
     }
 
     public static String formatMillis(long millis) {
-        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[TIME_BUFFER_LENGTH];
+        return new String(buffer, 0, formatMillis(millis, buffer));
+    }
+
+    /**
+     * Format a time in seconds into a buffer, see formatMillis(long, char[])
+     */
+    public static int formatSeconds(long seconds, char[] buffer) {
+        return formatMillis(seconds * 1000L, buffer);
+    }
+
+    /**
+     * Format a time into a reusable buffer, without allocating - "mm:ss", or "h:mm:ss" from one hour on.
+     * The text can be set with TextView.setText(buffer, 0, length).
+     * @param millis The time in milliseconds, negative times are formatted as 0
+     * @param buffer Buffer of at least TIME_BUFFER_LENGTH characters
+     * @return The length of the formatted time
+     */
+    public static int formatMillis(long millis, char[] buffer) {
+        long seconds = Math.max(0, millis) / 1000;
+        long hours = seconds / 3600;
+        int length = 0;
 
-        // Calculate and format
-        millis %= 3600000;
-        apd(sb, "", 2, (millis / 60000));
-        millis %= 60000;
-        apd(sb, ":", 2, (millis / 1000));
+        if (hours > 0) {
+            // Write the hours backwards from the end of the buffer, then move them to the start
+            int position = buffer.length;
+            for (long value = hours; value > 0; value /= 10)
+                buffer[--position] = (char) ('0' + value % 10);
+            length = buffer.length - position;
+            System.arraycopy(buffer, position, buffer, 0, length);
+            buffer[length++] = ':';
+        }
+        length = appendTwoDigits(buffer, length, (int) (seconds / 60 % 60));
+        buffer[length++] = ':';
+        return appendTwoDigits(buffer, length, (int) (seconds % 60));
+    }
+
+    private static int appendTwoDigits(char[] buffer, int position, int value) {
+        buffer[position] = (char) ('0' + value / 10);
+        buffer[position + 1] = (char) ('0' + value % 10);
+        return position + 2;
+    }
 
+    /**
+     * Decode the HTML entities of a text, see decodeHTMLEntities(CharSequence, StringBuilder)
+     * @return The decoded text, the input itself if it has no entities
+     */
+    public static String translateSpecialHTMLCharacters(String input) {
+        if (input.indexOf('&') == -1)
+            return input;
+        StringBuilder sb = new StringBuilder(input.length());
+        decodeHTMLEntities(input, sb);
         return sb.toString();
     }
 
-    private static void apd(StringBuilder sb, String prefix, int digit, long val) {
-        sb.append(prefix);
+    /**
+     * Decode the HTML entities of a text in a single pass, so an escaped entity ("&amp;lt;")
+     * is only decoded once. Entities that aren't supported by decodeHTMLEntity() and a '&'
+     * that doesn't start an entity are kept as they are.
+     * Doesn't allocate if the output has enough capacity.
+     * @param input The text
+     * @param out Builder the decoded text is appended to
+     */
+    public static void decodeHTMLEntities(CharSequence input, StringBuilder out) {
+        int length = input.length();
+        int copied = 0;
+        for (int i = 0; i < length; i++) {
+            if (input.charAt(i) != '&')
+                continue;
+
+            // Find the end of the name
+            int start = i + 1;
+            int end = start;
+            while (end < length && end - start < MAX_ENTITY_LENGTH
+                    && (Character.isLetterOrDigit(input.charAt(end)) || input.charAt(end) == '#'))
+                end++;
+            if (end == length || input.charAt(end) != ';')
+                continue;
 
-        if (digit > 1) {
-            int pad = digit - 1;
-            for (long xa = val; xa > 9 && pad > 0; xa /= 10)
-                pad--;
-            for (int xa = 0; xa < pad; xa++)
-                sb.append('0');
+            int codePoint = decodeHTMLEntity(input, start, end);
+            if (codePoint == -1)
+                continue;
+            out.append(input, copied, i).appendCodePoint(codePoint);
+            copied = end + 1;
+            i = end;
         }
-        sb.append(val);
+        out.append(input, copied, length);
     }
 
-    public static String translateSpecialHTMLCharacters(String input) {
-        return input
-                .replaceAll("&amp;", "&")
-                .replaceAll("&lt;", "<")
-                .replaceAll("&gt;", ">")
-                .replaceAll("&quot;", "\"")
-                .replaceAll("&apos;", "'");
+    /**
+     * Decode the name of an HTML entity - the characters between '&' and ';'.
+     * The named entities of XML (amp, lt, gt, quot, apos), nbsp, and numeric entities
+     * (&#NNN; and &#xHHHH;) are supported.
+     * @param name Buffer holding the name
+     * @param length Length of the name
+     * @return The code point of the entity, or -1 if it isn't supported
+     */
+    public static int decodeHTMLEntity(char[] name, int length) {
+        return decodeHTMLEntity(name, null, 0, length);
     }
 
-}
+    /**
+     * Decode the name of an HTML entity in a text, see decodeHTMLEntity(char[], int)
+     * @param start Index of the first character of the name, after the '&'
+     * @param end Index of the ';'
+     */
+    public static int decodeHTMLEntity(CharSequence text, int start, int end) {
+        return decodeHTMLEntity(null, text, start, end);
+    }
+
+    /**
+     * Decode a name held either by an array or by a text, so neither has to be copied to the other
+     */
+    private static int decodeHTMLEntity(char[] array, CharSequence text, int start, int end) {
+        int length = end - start;
+        if (length >= 2 && charAt(array, text, start) == '#') {
+            char x = charAt(array, text, start + 1);
+            boolean hex = x == 'x' || x == 'X';
+            int radix = hex ? 16 : 10;
+            int first = start + (hex ? 2 : 1);
+            if (first == end || end - first > 7)
+                return -1;
+            int codePoint = 0;
+            for (int i = first; i < end; i++) {
+                int digit = Character.digit(charAt(array, text, i), radix);
+                if (digit == -1)
+                    return -1;
+                codePoint = codePoint * radix + digit;
+            }
+            return Character.isValidCodePoint(codePoint) ? codePoint : -1;
+        }
+
+        if (isEntity(array, text, start, end, "amp"))
+            return '&';
+        if (isEntity(array, text, start, end, "lt"))
+            return '<';
+        if (isEntity(array, text, start, end, "gt"))
+            return '>';
+        if (isEntity(array, text, start, end, "quot"))
+            return '"';
+        if (isEntity(array, text, start, end, "apos"))
+            return '\'';
+        if (isEntity(array, text, start, end, "nbsp"))
+            return '\u00a0';
+        return -1;
+    }
+
+    private static char charAt(char[] array, CharSequence text, int index) {
+        return array != null ? array[index] : text.charAt(index);
+    }
+
+    private static boolean isEntity(char[] array, CharSequence text, int start, int end, String entity) {
+        if (end - start != entity.length())
+            return false;
+        for (int i = start; i < end; i++) {
+            if (charAt(array, text, i) != entity.charAt(i - start))
+                return false;
+        }
+        return true;
+    }
 
+    /**
+     * Close a stream, ignoring errors
+     * @param closeable The stream, may be null
+     */
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {}
+    }
+
+}
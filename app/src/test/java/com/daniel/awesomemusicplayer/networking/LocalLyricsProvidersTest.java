@@ -0,0 +1,240 @@
+package com.daniel.awesomemusicplayer.networking;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * SidecarLyricsProvider and EmbeddedLyricsProvider tests against files written by the test
+ */
+public class LocalLyricsProvidersTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset UTF_16LE = Charset.forName("UTF-16LE");
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final String LYRICS = "First line\nSecond line \u00e9";
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("lyrics", "");
+        assertTrue(directory.delete() && directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                assertTrue(file.delete());
+        }
+        assertTrue(directory.delete());
+    }
+
+    @Test
+    public void sidecarLrcFile() throws IOException {
+        File audio = write("Song.mp3", new byte[16]);
+        assertNull(new SidecarLyricsProvider().getLyrics(audio));
+
+        String lrc = "[ar:Artist]\n[00:01.00]First line\n[00:02.50]Second line \u00e9";
+        write("Song.lrc", lrc + "\n");
+        assertEquals(lrc, new SidecarLyricsProvider().getLyrics(audio));
+    }
+
+    @Test
+    public void sidecarTextFile() throws IOException {
+        File audio = write("Song.flac", new byte[16]);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(new byte[] {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF});
+        bytes.write(LYRICS.getBytes(UTF_8));
+        write("Song.txt", bytes.toByteArray());
+
+        assertEquals(LYRICS, new SidecarLyricsProvider().getLyrics(audio));
+    }
+
+    @Test
+    public void id3v23UnicodeLyricsAfterCoverArt() throws IOException {
+        ByteArrayOutputStream uslt = new ByteArrayOutputStream();
+        uslt.write(1);
+        uslt.write("eng".getBytes(ISO_8859_1));
+        uslt.write(new byte[] {(byte) 0xFF, (byte) 0xFE, 'd', 0, 0, 0});
+        uslt.write(new byte[] {(byte) 0xFF, (byte) 0xFE});
+        uslt.write(LYRICS.getBytes(UTF_16LE));
+
+        byte[] tag = id3(3, frame(3, "TIT2", text("Title")), frame(3, "APIC", new byte[200000]),
+                frame(3, "USLT", uslt.toByteArray()));
+        File audio = write("Song.mp3", concat(tag, new byte[4096]));
+
+        assertEquals(LYRICS, new EmbeddedLyricsProvider().getLyrics(audio));
+    }
+
+    @Test
+    public void id3v24Utf8Lyrics() throws IOException {
+        ByteArrayOutputStream uslt = new ByteArrayOutputStream();
+        uslt.write(3);
+        uslt.write("eng".getBytes(ISO_8859_1));
+        uslt.write(0);
+        uslt.write(LYRICS.getBytes(UTF_8));
+
+        File audio = write("Song.mp3", id3(4, frame(4, "TIT2", text("Title")), frame(4, "USLT", uslt.toByteArray())));
+        assertEquals(LYRICS, new EmbeddedLyricsProvider().getLyrics(audio));
+    }
+
+    @Test
+    public void id3WithoutLyrics() throws IOException {
+        File audio = write("Song.mp3", concat(id3(3, frame(3, "TIT2", text("Title"))), new byte[4096]));
+        assertNull(new EmbeddedLyricsProvider().getLyrics(audio));
+        assertNull(new EmbeddedLyricsProvider().getLyrics(write("Empty.mp3", new byte[2])));
+    }
+
+    @Test
+    public void flacVorbisComment() throws IOException {
+        ByteArrayOutputStream flac = new ByteArrayOutputStream();
+        flac.write("fLaC".getBytes(ISO_8859_1));
+        flac.write(flacBlock(false, 0, new byte[34]));
+        flac.write(flacBlock(false, 6, new byte[100000]));
+        flac.write(flacBlock(true, 4, vorbisComments("TITLE=Title", "lyrics=" + LYRICS)));
+        flac.write(new byte[4096]);
+
+        assertEquals(LYRICS, new EmbeddedLyricsProvider().getLyrics(write("Song.flac", flac.toByteArray())));
+    }
+
+    @Test
+    public void oggCommentPacketAcrossPages() throws IOException {
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        packet.write(3);
+        packet.write("vorbis".getBytes(ISO_8859_1));
+        // A long comment, so the packet spans two pages
+        char[] filler = new char[70000];
+        Arrays.fill(filler, 'x');
+        packet.write(vorbisComments("COMMENT=" + new String(filler), "UNSYNCEDLYRICS=" + LYRICS));
+        packet.write(1);
+        byte[] comments = packet.toByteArray();
+
+        ByteArrayOutputStream ogg = new ByteArrayOutputStream();
+        byte[] identification = concat(new byte[] {1, 'v', 'o', 'r', 'b', 'i', 's'}, new byte[23]);
+        ogg.write(oggPage(identification, 0, identification.length, true));
+        ogg.write(oggPage(comments, 0, 255 * 200, false));
+        ogg.write(oggPage(comments, 255 * 200, comments.length - 255 * 200, true));
+
+        assertEquals(LYRICS, new EmbeddedLyricsProvider().getLyrics(write("Song.ogg", ogg.toByteArray())));
+    }
+
+    // --- Helper methods
+
+    private File write(String name, String text) throws IOException {
+        return write(name, text.getBytes(UTF_8));
+    }
+
+    private File write(String name, byte[] bytes) throws IOException {
+        File file = new File(directory, name);
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(bytes);
+        out.close();
+        return file;
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static byte[] text(String text) {
+        return concat(new byte[] {0}, text.getBytes(ISO_8859_1));
+    }
+
+    private static byte[] id3(int version, byte[]... frames) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (byte[] frame : frames)
+            body.write(frame);
+        body.write(new byte[64]); // Padding
+
+        ByteArrayOutputStream tag = new ByteArrayOutputStream();
+        tag.write(new byte[] {'I', 'D', '3', (byte) version, 0, 0});
+        tag.write(synchsafe(body.size()));
+        tag.write(body.toByteArray());
+        return tag.toByteArray();
+    }
+
+    private static byte[] frame(int version, String id, byte[] data) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(id.getBytes(ISO_8859_1));
+        frame.write(version == 4 ? synchsafe(data.length) : bigEndian(data.length));
+        frame.write(new byte[2]);
+        frame.write(data);
+        return frame.toByteArray();
+    }
+
+    private static byte[] flacBlock(boolean last, int type, byte[] data) {
+        byte[] header = {(byte) ((last ? 0x80 : 0) | type),
+                (byte) (data.length >> 16), (byte) (data.length >> 8), (byte) data.length};
+        return concat(header, data);
+    }
+
+    private static byte[] vorbisComments(String... comments) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] vendor = "test".getBytes(UTF_8);
+        out.write(littleEndian(vendor.length));
+        out.write(vendor);
+        out.write(littleEndian(comments.length));
+        for (String comment : comments) {
+            byte[] bytes = comment.getBytes(UTF_8);
+            out.write(littleEndian(bytes.length));
+            out.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param packetEnds Does the packet end on this page? Otherwise the last segment is 255 bytes.
+     */
+    private static byte[] oggPage(byte[] data, int offset, int length, boolean packetEnds) throws IOException {
+        ByteArrayOutputStream lacing = new ByteArrayOutputStream();
+        int left = length;
+        while (left >= 255) {
+            lacing.write(255);
+            left -= 255;
+        }
+        if (packetEnds)
+            lacing.write(left);
+        else
+            assertEquals(0, left);
+
+        ByteArrayOutputStream page = new ByteArrayOutputStream();
+        page.write("OggS".getBytes(ISO_8859_1));
+        page.write(new byte[10]);
+        page.write(littleEndian(1234)); // Serial number
+        page.write(new byte[8]);
+        page.write(lacing.size());
+        page.write(lacing.toByteArray());
+        page.write(data, offset, length);
+        return page.toByteArray();
+    }
+
+    private static byte[] synchsafe(int value) {
+        return new byte[] {(byte) ((value >> 21) & 0x7F), (byte) ((value >> 14) & 0x7F),
+                (byte) ((value >> 7) & 0x7F), (byte) (value & 0x7F)};
+    }
+
+    private static byte[] bigEndian(int value) {
+        return new byte[] {(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value};
+    }
+
+    private static byte[] littleEndian(int value) {
+        return new byte[] {(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)};
+    }
+
+}
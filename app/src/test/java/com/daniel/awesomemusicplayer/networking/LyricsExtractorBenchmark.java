@@ -0,0 +1,143 @@
+package com.daniel.awesomemusicplayer.networking;
+
+import com.daniel.awesomemusicplayer.util.BenchmarkReport;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import static com.daniel.awesomemusicplayer.networking.LyricsExtractorTest.LEGACY;
+import static com.daniel.awesomemusicplayer.networking.LyricsExtractorTest.STREAMING;
+import static org.junit.Assert.*;
+
+/**
+ * Throughput benchmark - the streaming LyricsExtractor compared to the previous extraction,
+ * on the corpus of LyricsExtractorTest.
+ *
+ * Bytes read and allocated bytes are measured per page, throughput in MB of page per second,
+ * and recorded in the BenchmarkReport. The streams the pages are read from are created once
+ * and rewound, so only the allocations of the extraction are counted. The allocation counter
+ * is HotSpot's, and the results depend on the JVM - benchmarks aren't part of the unit test run,
+ * see app/build.gradle.
+ */
+public class LyricsExtractorBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int ITERATIONS = 1000;
+
+    private static List<byte[]> corpus;
+
+    @BeforeClass
+    public static void loadCorpus() throws IOException {
+        LyricsExtractorTest.loadCorpus();
+        corpus = LyricsExtractorTest.corpus;
+    }
+
+    @Test
+    public void throughput() throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long pageBytes = 0;
+        for (byte[] page : corpus)
+            pageBytes += page.length;
+
+        Result legacy = measure(LEGACY, threads, threadId);
+        Result streaming = measure(STREAMING, threads, threadId);
+
+        BenchmarkReport.record(LyricsExtractorBenchmark.class,
+                "page size: " + pageBytes / corpus.size() + " bytes on average");
+        BenchmarkReport.record(LyricsExtractorBenchmark.class, "legacy: " + legacy.format(pageBytes));
+        BenchmarkReport.record(LyricsExtractorBenchmark.class, "streaming: " + streaming.format(pageBytes));
+        assertTrue("Streaming should stop reading at the end of the lyrics",
+                streaming.bytesRead < legacy.bytesRead);
+        assertTrue("Streaming should allocate less", streaming.allocatedBytes < legacy.allocatedBytes);
+    }
+
+    // --- Helper methods
+
+    private static final class Result {
+        /** Bytes read from the stream, per page */
+        long bytesRead;
+        /** Bytes allocated, per page */
+        long allocatedBytes;
+        /** Total time of the measured iterations */
+        long nanos;
+
+        String format(long pageBytes) {
+            double megabytes = (double) pageBytes * ITERATIONS / (1024 * 1024);
+            double seconds = nanos / 1e9;
+            return String.format("%.1f MB/s, ", megabytes / seconds) + bytesRead + " bytes read, "
+                    + allocatedBytes + " bytes allocated per page";
+        }
+    }
+
+    private static Result measure(LyricsExtractorTest.Extractor extractor,
+                                  com.sun.management.ThreadMXBean threads, long threadId) throws IOException {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            for (byte[] page : corpus)
+                extractor.extract(new ByteArrayInputStream(page));
+        }
+
+        Result result = new Result();
+        CountingInputStream[] streams = new CountingInputStream[corpus.size()];
+        for (int j = 0; j < corpus.size(); j++)
+            streams[j] = new CountingInputStream(new ByteArrayInputStream(corpus.get(j)));
+
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (CountingInputStream stream : streams) {
+                stream.rewind();
+                extractor.extract(stream);
+            }
+        }
+        result.nanos = System.nanoTime() - start;
+        result.allocatedBytes = (threads.getThreadAllocatedBytes(threadId) - allocatedBefore) / (ITERATIONS * corpus.size());
+        for (CountingInputStream stream : streams)
+            result.bytesRead += stream.count;
+        result.bytesRead /= corpus.size();
+        return result;
+    }
+
+    /** Counts the bytes read from a stream */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        /**
+         * Read the page again from the start, closing the stream doesn't prevent it
+         */
+        void rewind() throws IOException {
+            in.reset();
+            count = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0)
+                count += read;
+            return read;
+        }
+
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.daniel.awesomemusicplayer.networking;
+
+import com.daniel.awesomemusicplayer.util.Utils;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * LyricsExtractor tests - the streaming extraction must extract the same lyrics as the previous
+ * extraction, which read the entire page into a string and then searched and replaced it.
+ * The corpus is a set of saved pages in the test resources, shared with LyricsExtractorBenchmark.
+ */
+public class LyricsExtractorTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] PAGES = { "page1.html", "page2.html", "page3.html" };
+
+    private static final LyricsExtractor EXTRACTOR = new LyricsExtractor();
+
+    static final List<byte[]> corpus = new ArrayList<>();
+
+    @BeforeClass
+    public static void loadCorpus() throws IOException {
+        if (!corpus.isEmpty())
+            return;
+        for (String page : PAGES) {
+            InputStream in = LyricsExtractorTest.class.getResourceAsStream("/lyrics/" + page);
+            assertNotNull("Missing test page " + page, in);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8 * 1024];
+            int count;
+            while ((count = in.read(buffer)) != -1)
+                out.write(buffer, 0, count);
+            in.close();
+            corpus.add(out.toByteArray());
+        }
+    }
+
+    /** An extraction method, reading a page from a stream */
+    interface Extractor {
+        String extract(InputStream in) throws IOException;
+    }
+
+    /** The previous extraction - read the whole page, then search and replace */
+    static final Extractor LEGACY = new Extractor() {
+        @Override
+        public String extract(InputStream in) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+            StringBuilder sb = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null)
+                sb.append(line);
+            reader.close();
+
+            String page = sb.toString();
+            int start = page.indexOf(". -->");
+            if (start == -1)
+                return null;
+            start += ". -->".length();
+            int end = page.indexOf("</div>", start);
+            if (end == -1)
+                return null;
+            return Utils.translateSpecialHTMLCharacters(page.substring(start, end))
+                    .replaceAll("<br>", "\r\n")
+                    .replaceAll("<i>", "")
+                    .replaceAll("</i>", "");
+        }
+    };
+
+    static final Extractor STREAMING = new Extractor() {
+        @Override
+        public String extract(InputStream in) throws IOException {
+            try {
+                return EXTRACTOR.read(new InputStreamReader(in, UTF_8));
+            } finally {
+                in.close();
+            }
+        }
+    };
+
+    @Test
+    public void extractsTheSameLyricsAsBefore() throws IOException {
+        for (int i = 0; i < corpus.size(); i++) {
+            String expected = LEGACY.extract(new ByteArrayInputStream(corpus.get(i)));
+            assertNotNull(PAGES[i] + " should have lyrics", expected);
+            assertEquals(PAGES[i], expected, STREAMING.extract(new ByteArrayInputStream(corpus.get(i))));
+        }
+    }
+
+    @Test
+    public void decodesInOnePass() throws IOException {
+        // An escaped entity is decoded once, not twice as chained replacements would
+        assertEquals("&lt; <", extract(". -->&amp;lt; &lt;</div>"));
+        assertEquals("it's \u00e9\u00e9 & a&b &unknown;", extract(". -->it&#39;s &#233;&#xE9; & a&b &unknown;</div>"));
+        assertEquals("a\r\nb\r\nc\r\nd", extract(". -->a<br>b<BR/>c<br />\nd</div>"));
+        assertEquals("[Chorus:] x", extract(". --><i>[Chorus:]</i> x</DIV>"));
+        assertNull(extract("no lyrics here</div>"));
+        assertNull(extract(". -->the page ends"));
+    }
+
+    // --- Helper methods
+
+    private static String extract(String page) throws IOException {
+        return EXTRACTOR.read(new StringReader(page));
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.daniel.awesomemusicplayer.networking;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Lyrics parsing and line lookup tests
+ */
+public class LyricsTest {
+
+    @Test
+    public void syncedLyrics() {
+        Lyrics lyrics = Lyrics.parse("[ti:Title]\n[ar:Artist]\n\n"
+                + "[00:01.5]First\n[00:02.25]Second\r\n[01:00.123] Third \n");
+
+        assertTrue(lyrics.isSynced());
+        assertEquals(3, lyrics.getLineCount());
+        assertEquals("First", lyrics.getLine(0));
+        assertEquals("Third", lyrics.getLine(2));
+        assertEquals(1500, lyrics.getTime(0));
+        assertEquals(2250, lyrics.getTime(1));
+        assertEquals(60123, lyrics.getTime(2));
+    }
+
+    @Test
+    public void lineAtPosition() {
+        Lyrics lyrics = Lyrics.parse("[00:01.00]First\n[00:02.00]Second\n[00:03.00]Third");
+
+        assertEquals(-1, lyrics.getLineAt(0));
+        assertEquals(-1, lyrics.getLineAt(999));
+        assertEquals(0, lyrics.getLineAt(1000));
+        assertEquals(0, lyrics.getLineAt(1999));
+        assertEquals(1, lyrics.getLineAt(2000));
+        assertEquals(2, lyrics.getLineAt(3000));
+        assertEquals(2, lyrics.getLineAt(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void repeatedLinesAndOffset() {
+        Lyrics lyrics = Lyrics.parse("[offset:+500]\n[00:10.00][00:02.00]Chorus\n[00:05.00]Verse");
+
+        assertEquals(3, lyrics.getLineCount());
+        assertEquals("Chorus", lyrics.getLine(0));
+        assertEquals("Verse", lyrics.getLine(1));
+        assertEquals("Chorus", lyrics.getLine(2));
+        assertEquals(1500, lyrics.getTime(0));
+        assertEquals(4500, lyrics.getTime(1));
+        assertEquals(9500, lyrics.getTime(2));
+    }
+
+    @Test
+    public void plainLyrics() {
+        Lyrics lyrics = Lyrics.parse("\n[Chorus:]\nFirst line\n\nSecond line\n\n");
+
+        assertFalse(lyrics.isSynced());
+        assertEquals(4, lyrics.getLineCount());
+        assertEquals("[Chorus:]", lyrics.getLine(0));
+        assertEquals("", lyrics.getLine(2));
+        assertEquals(-1, lyrics.getLineAt(5000));
+    }
+
+}
@@ -0,0 +1,442 @@
+package com.daniel.awesomemusicplayer.networking;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * RequestEngine tests against a local HTTP server
+ */
+public class RequestEngineTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int READ_TIMEOUT_MILLIS = 500;
+
+    private static final String ETAG = "\"v1\"";
+    private static final String LAST_MODIFIED = "Sat, 17 Oct 2026 10:00:00 GMT";
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private RequestEngine engine;
+
+    /** Number of requests received by the server */
+    private final AtomicInteger hits = new AtomicInteger();
+
+    /** Number of body bytes sent by the server */
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /** Client ports of the requests, one per connection */
+    private final Set<Integer> clientPorts = Collections.synchronizedSet(new HashSet<Integer>());
+
+    /** Released to let the /slow handler respond */
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    /** Counted down when the /stream handler fails to write, i.e. the client has disconnected */
+    private final CountDownLatch clientGone = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+
+        server.createContext("/page", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                hits.incrementAndGet();
+                respond(exchange, 200, "line 1\nline 2 \u00e9");
+            }
+        });
+        server.createContext("/large", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                byte[] body = largeBody().getBytes(UTF_8);
+                if (accept != null && accept.contains("gzip")) {
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                    GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+                    gzip.write(body);
+                    gzip.close();
+                    body = compressed.toByteArray();
+                    exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+                }
+                respond(exchange, 200, body);
+            }
+        });
+        server.createContext("/etag", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                hits.incrementAndGet();
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match")))
+                    notModified(exchange);
+                else
+                    respond(exchange, 200, "lyrics");
+            }
+        });
+        server.createContext("/dated", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                hits.incrementAndGet();
+                exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+                if (LAST_MODIFIED.equals(exchange.getRequestHeaders().getFirst("If-Modified-Since")))
+                    notModified(exchange);
+                else
+                    respond(exchange, 200, "lyrics");
+            }
+        });
+        server.createContext("/slow", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                hits.incrementAndGet();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {}
+                respond(exchange, 200, "slow");
+            }
+        });
+        server.createContext("/missing", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 404, "not found");
+            }
+        });
+        server.createContext("/stall", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // Headers, then nothing until the client gives up
+                exchange.sendResponseHeaders(200, 0);
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException ignored) {}
+                exchange.close();
+            }
+        });
+        server.createContext("/stream", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // An endless body, written slowly
+                exchange.sendResponseHeaders(200, 0);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    for (int i = 0; i < 500; i++) {
+                        out.write(new byte[1024]);
+                        out.flush();
+                        Thread.sleep(20);
+                    }
+                } catch (IOException e) {
+                    clientGone.countDown();
+                } catch (InterruptedException ignored) {}
+                exchange.close();
+            }
+        });
+        server.start();
+
+        // Callbacks run on the request threads
+        engine = new RequestEngine(new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        }, 2000, READ_TIMEOUT_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        engine.shutdown();
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void deliversTheProcessedBody() throws InterruptedException {
+        Listener listener = new Listener();
+        engine.execute(url("/page"), listener);
+
+        assertEquals("LINE 1\nLINE 2 \u00c9", listener.await());
+        assertEquals(0, listener.errorCode);
+    }
+
+    @Test
+    public void identicalRequestsShareOneConnection() throws InterruptedException {
+        Listener[] listeners = new Listener[3];
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = new Listener();
+            engine.execute(url("/slow"), listeners[i]);
+        }
+        release.countDown();
+
+        for (Listener listener : listeners)
+            assertEquals("SLOW", listener.await());
+        assertEquals(1, hits.get());
+
+        // Once the call is finished, a new request opens a new connection
+        Listener listener = new Listener();
+        engine.execute(url("/slow"), listener);
+        assertEquals("SLOW", listener.await());
+        assertEquals(2, hits.get());
+    }
+
+    @Test
+    public void foregroundRequestsDontWaitBehindPrefetches() throws InterruptedException {
+        // Occupy the background thread, the next prefetch waits in the queue
+        Listener blocker = new Listener();
+        engine.executeInBackground(url("/slow"), RequestEngine.FULL_BODY, blocker);
+        Listener prefetch = new Listener();
+        engine.executeInBackground(url("/page"), RequestEngine.FULL_BODY, prefetch);
+
+        // The queued call moves to the foreground pool, both requests share it
+        Listener lookup = new Listener();
+        engine.execute(url("/page"), lookup);
+        assertEquals("LINE 1\nLINE 2 \u00c9", lookup.await());
+        assertEquals("LINE 1\nLINE 2 \u00c9", prefetch.await());
+
+        // The running background call isn't shared, the foreground request gets its own
+        Listener running = new Listener();
+        engine.execute(url("/slow"), running);
+        release.countDown();
+        assertEquals("SLOW", running.await());
+        assertEquals("SLOW", blocker.await());
+        assertEquals(3, hits.get());
+    }
+
+    @Test
+    public void cancellingOneSharedRequestKeepsTheOthers() throws InterruptedException {
+        Listener cancelled = new Listener();
+        Listener kept = new Listener();
+        RequestEngine.Request request = engine.execute(url("/slow"), cancelled);
+        engine.execute(url("/slow"), kept);
+
+        request.cancel();
+        release.countDown();
+
+        assertEquals("SLOW", kept.await());
+        assertFalse(cancelled.finished.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void cancelDisconnectsRightAway() throws InterruptedException {
+        Listener listener = new Listener();
+        RequestEngine.Request request = engine.execute(url("/stream"), listener);
+
+        // Let the response start, then cancel while the body is being read
+        Thread.sleep(200);
+        long start = System.nanoTime();
+        request.cancel();
+
+        assertTrue("The connection should be closed", clientGone.await(2, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+        assertFalse(listener.finished.await(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void stalledResponsesTimeOut() throws InterruptedException {
+        Listener listener = new Listener();
+        long start = System.nanoTime();
+        engine.execute(url("/stall"), listener);
+
+        assertNull(listener.await());
+        assertNotNull(listener.error);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT_MILLIS * 4));
+    }
+
+    @Test
+    public void errorsReportTheResponseCode() throws InterruptedException {
+        Listener listener = new Listener();
+        engine.execute(url("/missing"), listener);
+
+        assertNull(listener.await());
+        assertEquals(404, listener.errorCode);
+    }
+
+    @Test
+    public void gzipResponsesAreDecompressed() throws InterruptedException {
+        Listener listener = new Listener();
+        engine.execute(url("/large"), listener);
+
+        assertEquals(largeBody().toUpperCase(), listener.await());
+        System.out.println("Body: " + largeBody().length() + " bytes, sent: " + bytesSent.get() + " bytes");
+        assertTrue("The body should be sent compressed", bytesSent.get() < largeBody().length() / 4);
+    }
+
+    @Test
+    public void connectionsAreKeptAlive() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            Listener listener = new Listener();
+            engine.execute(url(i == 1 ? "/large" : "/page"), listener);
+            assertNotNull(listener.await());
+        }
+
+        assertEquals("The requests should reuse one connection", 1, clientPorts.size());
+    }
+
+    @Test
+    public void stoppingEarlyDisconnects() throws InterruptedException {
+        Listener listener = new Listener();
+        engine.execute(url("/stream"), new ResponseReader() {
+            @Override
+            public String read(Reader reader) throws IOException {
+                char[] buffer = new char[16];
+                int count = reader.read(buffer);
+                return new String(buffer, 0, count);
+            }
+        }, listener);
+
+        assertNotNull(listener.await());
+        assertTrue("The connection should be closed", clientGone.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void etagRevalidationReturnsNotModified() throws InterruptedException {
+        revalidate("/etag");
+    }
+
+    @Test
+    public void dateRevalidationReturnsNotModified() throws InterruptedException {
+        revalidate("/dated");
+    }
+
+    // --- Helper methods
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    /**
+     * Request a resource, then revalidate it with the validators of the response
+     */
+    private void revalidate(String path) throws InterruptedException {
+        ConditionalListener listener = new ConditionalListener();
+        engine.execute(url(path), RequestEngine.FULL_BODY, null, listener);
+        assertEquals("LYRICS", listener.await());
+        assertFalse(listener.notModified);
+        assertNotNull(listener.validators);
+        long firstBytes = bytesSent.get();
+
+        ConditionalListener revalidation = new ConditionalListener();
+        engine.execute(url(path), RequestEngine.FULL_BODY, listener.validators, revalidation);
+        assertNull(revalidation.await());
+        assertTrue(revalidation.notModified);
+        assertNull(revalidation.error);
+
+        System.out.println(path + ": " + firstBytes + " bytes, revalidated with "
+                + (bytesSent.get() - firstBytes) + " bytes");
+        assertEquals("A 304 has no body", firstBytes, bytesSent.get());
+        assertEquals(2, hits.get());
+        assertEquals("The revalidation should reuse the connection", 1, clientPorts.size());
+    }
+
+    private void respond(HttpExchange exchange, int code, String body) throws IOException {
+        respond(exchange, code, body.getBytes(UTF_8));
+    }
+
+    private void respond(HttpExchange exchange, int code, byte[] body) throws IOException {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        // Counted before the response is sent, the client may check it as soon as it's received
+        bytesSent.addAndGet(body.length);
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        exchange.sendResponseHeaders(code, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private void notModified(HttpExchange exchange) throws IOException {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        exchange.sendResponseHeaders(304, -1);
+        exchange.close();
+    }
+
+    /**
+     * @return A compressible body of about 40 KB
+     */
+    private static String largeBody() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            sb.append("<div class=\"line\">Line number ").append(i).append("</div>\n");
+        return sb.toString();
+    }
+
+    /** Upper cases the body in the background, and records the result */
+    private static class Listener implements RequestListener {
+
+        final CountDownLatch finished = new CountDownLatch(1);
+        final BlockingQueue<String> results = new LinkedBlockingQueue<>();
+        volatile int errorCode;
+        volatile Exception error;
+
+        @Override
+        public String doOnBackgroundThread(String result) {
+            return result.toUpperCase();
+        }
+
+        @Override
+        public void doOnUIThread(String result) {
+            results.add(result != null ? result : "");
+            finished.countDown();
+        }
+
+        @Override
+        public void onError(int errorCode, Exception e) {
+            this.errorCode = errorCode;
+            this.error = e;
+        }
+
+        /**
+         * @return The result passed to doOnUIThread()
+         */
+        String await() throws InterruptedException {
+            String result = results.poll(5, TimeUnit.SECONDS);
+            assertNotNull("The request should finish", result);
+            return result.isEmpty() ? null : result;
+        }
+
+    }
+
+    /** Records the validators, and whether the response hasn't been modified */
+    private static final class ConditionalListener extends Listener implements ConditionalRequestListener {
+
+        volatile Validators validators;
+        volatile boolean notModified;
+
+        @Override
+        public void onValidators(Validators validators) {
+            this.validators = validators;
+        }
+
+        @Override
+        public void onNotModified() {
+            notModified = true;
+        }
+
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.daniel.awesomemusicplayer.service;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+
+import com.daniel.awesomemusicplayer.tracks.RepeatMode;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * PlaybackPublisher coalescing and subscription tests. The Handler doesn't run anything in
+ * local unit tests, the posted deliveries are run by calling run().
+ */
+public class PlaybackPublisherTest {
+
+    private int snapshotsTaken;
+    private PlaybackPublisher publisher;
+
+    @Before
+    public void setUp() {
+        snapshotsTaken = 0;
+        publisher = new PlaybackPublisher(new Handler(), new PlaybackPublisher.Source() {
+            @NonNull
+            @Override
+            public PlaybackSnapshot takeSnapshot(long version) {
+                snapshotsTaken++;
+                return new PlaybackSnapshot(version, 0, 1, PlaybackSnapshot.State.PLAYING, 0,
+                        false, RepeatMode.NONE);
+            }
+        });
+    }
+
+    @Test
+    public void burstIsCoalescedIntoOneDelivery() {
+        RecordingListener listener = new RecordingListener();
+        publisher.addListener(listener);
+        assertEquals(1, listener.snapshots.size());
+
+        publisher.invalidate();
+        publisher.invalidate();
+        publisher.invalidate();
+        publisher.run();
+        assertEquals(2, snapshotsTaken);
+        assertEquals(2, listener.snapshots.size());
+        assertTrue(listener.snapshots.get(1).getVersion() > listener.snapshots.get(0).getVersion());
+
+        // Nothing has changed since
+        publisher.run();
+        assertEquals(2, listener.snapshots.size());
+    }
+
+    @Test
+    public void lateSubscriberGetsLatestSnapshot() {
+        publisher.invalidate();
+        publisher.invalidate();
+        assertEquals(0, snapshotsTaken);
+
+        RecordingListener listener = new RecordingListener();
+        publisher.addListener(listener);
+        assertEquals(1, snapshotsTaken);
+        assertSame(publisher.getSnapshot(), listener.snapshots.get(0));
+
+        // A second subscriber gets the same snapshot, no new one is taken
+        RecordingListener other = new RecordingListener();
+        publisher.addListener(other);
+        assertEquals(1, snapshotsTaken);
+        assertSame(listener.snapshots.get(0), other.snapshots.get(0));
+    }
+
+    @Test
+    public void removedListenerGetsNothing() {
+        RecordingListener listener = new RecordingListener();
+        publisher.addListener(listener);
+        publisher.removeListener(listener);
+
+        publisher.invalidate();
+        publisher.run();
+        assertEquals(1, listener.snapshots.size());
+    }
+
+    private static class RecordingListener implements PlaybackPublisher.Listener {
+        final ArrayList<PlaybackSnapshot> snapshots = new ArrayList<>();
+
+        @Override
+        public void onPlaybackChanged(@NonNull PlaybackSnapshot snapshot) {
+            snapshots.add(snapshot);
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * LibraryDiff tests - a diff applied to the old list must produce the new list,
+ * and the positions of the tracks that remain must be mapped to their new places.
+ */
+public class LibraryDiffTest {
+
+    private final TrackStore store = new TrackStore();
+
+    @Test
+    public void movedTrackIsRemovedAndInserted() {
+        List<Track> oldTracks = tracks(0, 1, 2, 3, 4);
+        List<Track> newTracks = new ArrayList<>(oldTracks);
+        newTracks.add(1, newTracks.remove(3));
+
+        LibraryDiff diff = LibraryDiff.compute(oldTracks, newTracks);
+        assertArrayEquals(new int[] { 3 }, diff.getRemoved());
+        assertArrayEquals(new int[] { 1 }, diff.getInserted());
+        assertEquals(0, diff.getUpdated().length);
+        assertEquals(1, diff.mapPosition(3, false));
+        assertEquals(2, diff.mapPosition(1, false));
+        assertApplies(diff, oldTracks, newTracks);
+    }
+
+    @Test
+    public void modifiedTrackIsUpdated() {
+        List<Track> oldTracks = tracks(0, 1, 2);
+        List<Track> newTracks = new ArrayList<>(oldTracks);
+        newTracks.set(1, track(1));
+
+        LibraryDiff diff = LibraryDiff.compute(oldTracks, newTracks);
+        assertEquals(0, diff.getRemoved().length);
+        assertEquals(0, diff.getInserted().length);
+        assertArrayEquals(new int[] { 1 }, diff.getUpdated());
+        assertApplies(diff, oldTracks, newTracks);
+
+        assertTrue(LibraryDiff.compute(oldTracks, new ArrayList<>(oldTracks)).isEmpty());
+    }
+
+    @Test
+    public void removedTracksMapToTheNearestTrack() {
+        List<Track> oldTracks = tracks(0, 1, 2, 3, 4, 5);
+        List<Track> newTracks = new ArrayList<>();
+        newTracks.add(oldTracks.get(0));
+        newTracks.add(track(7));
+        newTracks.add(oldTracks.get(3));
+
+        LibraryDiff diff = LibraryDiff.compute(oldTracks, newTracks);
+        assertEquals(-1, diff.mapPosition(1, false));
+        assertEquals(2, diff.mapPosition(1, true));
+        assertEquals(2, diff.mapPosition(3, true));
+        // Nothing remains after the last ones, the nearest track is before them
+        assertEquals(2, diff.mapPosition(5, true));
+        assertEquals(-1, diff.mapPosition(6, true));
+        assertEquals(-1, diff.mapPosition(-1, true));
+        assertApplies(diff, oldTracks, newTracks);
+
+        LibraryDiff cleared = LibraryDiff.compute(oldTracks, new ArrayList<Track>());
+        assertEquals(-1, cleared.mapPosition(2, true));
+        assertApplies(cleared, oldTracks, new ArrayList<Track>());
+    }
+
+    @Test
+    public void removingTheSelectedLastTrackClearsTheSelection() {
+        List<Track> oldTracks = tracks(0, 1, 2);
+        List<Track> newTracks = new ArrayList<>(oldTracks);
+        newTracks.remove(2);
+
+        // The selection moves to the nearest track before it
+        LibraryDiff diff = LibraryDiff.compute(oldTracks, newTracks);
+        assertEquals(-1, diff.mapPosition(2, false));
+        assertEquals(1, diff.mapSelection(2));
+        assertEquals(0, diff.mapSelection(-1));
+
+        // The only track, which is selected and playing, is removed - nothing can be selected
+        List<Track> single = tracks(5);
+        diff = LibraryDiff.compute(single, new ArrayList<Track>());
+        assertEquals(-1, diff.mapPosition(0, false));
+        assertEquals(-1, diff.mapSelection(0));
+        assertApplies(diff, single, new ArrayList<Track>());
+
+        PlayQueue queue = new PlayQueue();
+        List<Track> queued = new ArrayList<>(single);
+        queue.setTracks(queued);
+        queue.add(0);
+        diff.applyTo(queued);
+        queue.applyDiff(diff);
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getRemainingDuration());
+
+        ShuffleOrder order = new ShuffleOrder(1, 0, new Random(1));
+        order.applyDiff(diff, new Random(1));
+        assertEquals(0, order.size());
+        assertEquals(-1, order.getCursor());
+        assertEquals(-1, order.peekNext());
+
+        // Tracks are added to the empty list - the first one is selected
+        diff = LibraryDiff.compute(new ArrayList<Track>(), tracks(6, 7));
+        assertEquals(0, diff.mapSelection(-1));
+    }
+
+    @Test
+    public void randomChangesReplayToTheNewList() {
+        Random random = new Random(3);
+        for (int round = 0; round < 50; round++) {
+            int size = random.nextInt(300);
+            List<Track> oldTracks = new ArrayList<>();
+            for (int i = 0; i < size; i++)
+                oldTracks.add(track(i));
+
+            // Remove, modify, move and insert tracks at random
+            List<Track> newTracks = new ArrayList<>();
+            for (Track track : oldTracks) {
+                int change = random.nextInt(10);
+                if (change == 0)
+                    continue;
+                newTracks.add(change == 1 ? track(track.getId()) : track);
+            }
+            for (int i = 0; i < random.nextInt(10) && newTracks.size() > 1; i++) {
+                Track moved = newTracks.remove(random.nextInt(newTracks.size()));
+                newTracks.add(random.nextInt(newTracks.size() + 1), moved);
+            }
+            for (int i = 0; i < random.nextInt(30); i++)
+                newTracks.add(random.nextInt(newTracks.size() + 1), track(size + i));
+
+            LibraryDiff diff = LibraryDiff.compute(oldTracks, newTracks);
+            for (int i = 0; i < size; i++) {
+                int position = diff.mapPosition(i, false);
+                int expected = newTracks.indexOf(oldTracks.get(i));
+                assertEquals("Round " + round + ", position " + i, expected, position);
+            }
+            assertApplies(diff, oldTracks, newTracks);
+        }
+    }
+
+    @Test
+    public void largeDiffReplacesTheContents() {
+        List<Track> oldTracks = new ArrayList<>();
+        for (int i = 0; i < 1500; i++)
+            oldTracks.add(track(i));
+        List<Track> newTracks = new ArrayList<>(oldTracks);
+        Collections.reverse(newTracks);
+
+        LibraryDiff diff = LibraryDiff.compute(oldTracks, newTracks);
+        assertTrue(diff.isLarge());
+        assertEquals(1499, diff.mapPosition(0, false));
+        assertApplies(diff, oldTracks, newTracks);
+    }
+
+    // --- Helper methods
+
+    private Track track(long id) {
+        return store.add(id, "Track " + id, "Artist", 180000, 1, "Album", null, 0, 0);
+    }
+
+    private List<Track> tracks(long... ids) {
+        List<Track> tracks = new ArrayList<>();
+        for (long id : ids)
+            tracks.add(track(id));
+        return tracks;
+    }
+
+    /**
+     * Apply a diff to a copy of the old list, it must then hold the same objects as the new list
+     */
+    private static void assertApplies(LibraryDiff diff, List<Track> oldTracks, List<Track> newTracks) {
+        List<Track> tracks = new ArrayList<>(oldTracks);
+        assertTrue(diff.matches(tracks));
+        diff.applyTo(tracks);
+        assertEquals(newTracks.size(), tracks.size());
+        for (int i = 0; i < tracks.size(); i++)
+            assertSame("Position " + i, newTracks.get(i), tracks.get(i));
+    }
+
+}
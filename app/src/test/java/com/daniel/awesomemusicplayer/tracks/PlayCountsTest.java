@@ -0,0 +1,59 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * PlayCounts tests - the saved counts are added to the plays counted before they're restored.
+ */
+public class PlayCountsTest {
+
+    @Test
+    public void restoredCountsAreAddedToTheLiveCounts() throws IOException {
+        PlayCounts saved = new PlayCounts();
+        for (long id = 0; id < 1000; id++) {
+            for (int i = 0; i <= id % 3; i++)
+                saved.increment(id);
+        }
+
+        File file = File.createTempFile("playcounts", ".bin");
+        try {
+            saved.write(file);
+
+            // Plays counted before the saved counts have been read
+            PlayCounts live = new PlayCounts();
+            live.increment(1);
+            live.increment(5000);
+
+            live.addAll(PlayCounts.read(file));
+            assertEquals(1, live.get(0));
+            assertEquals(3, live.get(1));
+            assertEquals(3, live.get(2));
+            assertEquals(1, live.get(5000));
+            assertEquals(0, live.get(5001));
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Test
+    public void countsSaturate() {
+        PlayCounts counts = new PlayCounts();
+        counts.increment(1);
+        PlayCounts other = counts.copy();
+        for (int i = 0; i < 31; i++)
+            other.addAll(other.copy());
+        assertEquals(Integer.MAX_VALUE, other.get(1));
+
+        counts.addAll(other);
+        assertEquals(Integer.MAX_VALUE, counts.get(1));
+        counts.increment(1);
+        assertEquals(Integer.MAX_VALUE, counts.get(1));
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * PlayQueue tests - the ring buffer is checked against a plain list through wraps around
+ * the end of the buffer, growth, removals and moves.
+ */
+public class PlayQueueTest {
+
+    private static final int TRACK_COUNT = 100;
+
+    private List<Track> tracks;
+    private PlayQueue queue;
+
+    /** The expected contents of the queue */
+    private List<Integer> expected;
+
+    @Before
+    public void setUp() {
+        TrackStore store = new TrackStore();
+        tracks = new ArrayList<>();
+        for (int i = 0; i < TRACK_COUNT; i++)
+            tracks.add(track(store, i));
+        queue = new PlayQueue();
+        queue.setTracks(tracks);
+        expected = new ArrayList<>();
+    }
+
+    @Test
+    public void wrapsAroundAndGrows() {
+        // The head moves back to the end of the buffer
+        for (int i = 0; i < 3; i++) {
+            queue.addFirst(i);
+            expected.add(0, i);
+        }
+        for (int i = 3; i < 16; i++) {
+            queue.add(i);
+            expected.add(i);
+        }
+        assertContents();
+
+        // Full - the wrapped buffer grows
+        queue.add(16);
+        expected.add(16);
+        int[] album = { 40, 41, 42, 43, 44, 45, 46, 47, 48, 49, 50, 51, 52, 53, 54, 55, 56, 57 };
+        queue.addAll(album, album.length, true);
+        for (int i = album.length - 1; i >= 0; i--)
+            expected.add(0, album[i]);
+        assertContents();
+
+        while (!expected.isEmpty())
+            assertEquals((int) expected.remove(0), queue.poll());
+        assertEquals(-1, queue.poll());
+        assertEquals(-1, queue.peek());
+        assertEquals(0, queue.getRemainingDuration());
+    }
+
+    @Test
+    public void matchesAListThroughRandomChanges() {
+        Random random = new Random(7);
+        for (int step = 0; step < 2000; step++) {
+            int operation = random.nextInt(expected.isEmpty() ? 4 : 7);
+            int track = random.nextInt(TRACK_COUNT);
+            switch (operation) {
+                case 0:
+                    queue.add(track);
+                    expected.add(track);
+                    break;
+                case 1:
+                    queue.addFirst(track);
+                    expected.add(0, track);
+                    break;
+                case 2:
+                case 3:
+                    int[] added = new int[random.nextInt(20)];
+                    for (int i = 0; i < added.length; i++)
+                        added[i] = random.nextInt(TRACK_COUNT);
+                    boolean first = operation == 2;
+                    queue.addAll(added, added.length, first);
+                    for (int i = 0; i < added.length; i++)
+                        expected.add(first ? i : expected.size(), added[i]);
+                    break;
+                case 4:
+                    assertEquals((int) expected.remove(0), queue.poll());
+                    break;
+                case 5:
+                    int index = random.nextInt(expected.size());
+                    assertEquals((int) expected.remove(index), queue.remove(index));
+                    break;
+                default:
+                    int from = random.nextInt(expected.size());
+                    int to = random.nextInt(expected.size());
+                    queue.move(from, to);
+                    expected.add(to, expected.remove(from));
+                    break;
+            }
+            assertContents();
+        }
+    }
+
+    @Test
+    public void applyDiffDropsRemovedTracks() {
+        for (int i = 0; i < 10; i++) {
+            queue.add(i * 10);
+            queue.add(i * 10 + 5);
+        }
+
+        // Remove the tracks with an odd index, the positions of the others are halved
+        List<Track> newTracks = new ArrayList<>();
+        for (int i = 0; i < TRACK_COUNT; i += 2)
+            newTracks.add(tracks.get(i));
+        LibraryDiff diff = LibraryDiff.compute(tracks, newTracks);
+        diff.applyTo(tracks);
+        queue.applyDiff(diff);
+
+        for (int i = 0; i < 10; i++)
+            expected.add(i * 5);
+        assertContents();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getChecksTheIndex() {
+        queue.add(1);
+        queue.get(1);
+    }
+
+    // --- Helper methods
+
+    private static Track track(TrackStore store, long id) {
+        return store.add(id, "Track " + id, "Artist", 1000 * (id + 1), 1, "Album", null, 0, 0);
+    }
+
+    private void assertContents() {
+        assertEquals(expected.size(), queue.size());
+        long duration = 0;
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals("Entry " + i, (int) expected.get(i), queue.get(i));
+            duration += tracks.get(expected.get(i)).getDuration();
+        }
+        assertEquals(duration, queue.getRemainingDuration());
+        assertEquals(expected.isEmpty() ? -1 : expected.get(0), queue.peek());
+    }
+
+}
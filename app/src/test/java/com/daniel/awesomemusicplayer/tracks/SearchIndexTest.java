@@ -0,0 +1,102 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * SearchIndex tests - the prefix ranges of the query terms and the ranking of the results.
+ */
+public class SearchIndexTest {
+
+    private static final String[][] TRACKS = {
+            { "Love Song", "Adele" },
+            { "Lovely Day", "Bill Withers" },
+            { "Crazy Love", "Beyonc\u00e9" },
+            { "Hello", "Love Arcade" },
+            { "Lovesick", "The Band" },
+            { "Lovf", "Nobody" },
+            { "Lov", "Nobody" },
+    };
+
+    private SearchIndex index;
+    private int[] results;
+
+    @Before
+    public void setUp() {
+        TrackStore store = new TrackStore();
+        Track[] tracks = new Track[TRACKS.length];
+        for (int i = 0; i < TRACKS.length; i++)
+            tracks[i] = store.add(i, TRACKS[i][0], TRACKS[i][1], 180000, i, "Album", null, 0, 0);
+        index = SearchIndex.build(tracks);
+        results = new int[index.getTrackCount()];
+    }
+
+    @Test
+    public void termsMatchTheTokensStartingWithThem() {
+        assertMatches("lov", 0, 1, 2, 3, 4, 5, 6);
+        assertMatches("love", 0, 1, 2, 3, 4);
+        assertMatches("lovf", 5);
+        assertMatches("loves", 4);
+        assertMatches("lovesickness");
+        assertMatches("zzz");
+        assertMatches("  ");
+        assertMatches("");
+    }
+
+    @Test
+    public void everyTermMustMatch() {
+        assertMatches("love bill", 1);
+        assertMatches("day lovely", 1);
+        assertMatches("love nobody");
+        assertMatches("hel arc", 3);
+    }
+
+    @Test
+    public void queriesAreNormalized() {
+        assertMatches("BEYONCE", 2);
+        assertMatches("beyonc\u00e9", 2);
+        assertMatches("crazy-love!", 2);
+    }
+
+    @Test
+    public void resultsAreRankedByScore() {
+        // Exact title first token, then title prefixes and a later title token, then the artist
+        assertEquals(5, index.search("love", results, null));
+        assertArrayEquals(new int[] { 0, 1, 2, 4, 3 }, Arrays.copyOf(results, 5));
+
+        // Tracks with the same score follow the display order
+        int[] order = { 6, 5, 4, 3, 2, 1, 0 };
+        assertEquals(5, index.search("love", results, order));
+        assertArrayEquals(new int[] { 0, 4, 2, 1, 3 }, Arrays.copyOf(results, 5));
+
+        // An order of a different list is ignored
+        assertEquals(5, index.search("love", results, new int[] { 1, 0 }));
+        assertArrayEquals(new int[] { 0, 1, 2, 4, 3 }, Arrays.copyOf(results, 5));
+    }
+
+    @Test
+    public void searchesDontSeeEachOther() {
+        for (int i = 0; i < 3; i++) {
+            assertMatches("love bill", 1);
+            assertMatches("hello", 3);
+        }
+    }
+
+    // --- Helper methods
+
+    /**
+     * Check the tracks matching a query, in any order
+     * @param expected The positions of the matching tracks, sorted
+     */
+    private void assertMatches(String query, int... expected) {
+        int count = index.search(query, results, null);
+        int[] actual = Arrays.copyOf(results, count);
+        Arrays.sort(actual);
+        assertEquals(query, Arrays.toString(expected), Arrays.toString(actual));
+    }
+
+}
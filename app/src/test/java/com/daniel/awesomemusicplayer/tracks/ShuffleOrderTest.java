@@ -0,0 +1,172 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * ShuffleOrder tests - the order must stay a permutation of the track positions through
+ * selections, library changes and a save and restore.
+ */
+public class ShuffleOrderTest {
+
+    private static final int SIZE = 50;
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void newOrderStartsWithTheCurrentTrack() {
+        ShuffleOrder order = new ShuffleOrder(SIZE, 7, random);
+        assertEquals(0, order.getCursor());
+        assertPermutation(order, SIZE);
+
+        // The current track isn't played again before the others
+        List<Integer> played = new ArrayList<>();
+        played.add(7);
+        int track;
+        while ((track = order.next()) != -1)
+            played.add(track);
+        assertEquals(SIZE, played.size());
+        assertEquals(SIZE - 1, order.getCursor());
+        assertEquals(-1, order.peekNext());
+
+        ShuffleOrder empty = new ShuffleOrder(SIZE, -1, random);
+        assertEquals(-1, empty.getCursor());
+        assertPermutation(empty, SIZE);
+    }
+
+    @Test
+    public void selectKeepsTheRestOfTheOrder() {
+        ShuffleOrder order = new ShuffleOrder(SIZE, 0, random);
+        order.next();
+        order.next();
+        int[] before = toArray(order);
+
+        // An unplayed track is moved right after the current one
+        int selected = before[30];
+        order.select(selected);
+        assertEquals(3, order.getCursor());
+        assertEquals(selected, order.peek(0));
+        assertEquals(before[3], order.peek(27));
+        assertPermutation(order, SIZE);
+
+        // A played track is moved back to
+        order.select(before[1]);
+        assertEquals(1, order.getCursor());
+        assertEquals(before[2], order.peekNext());
+        assertPermutation(order, SIZE);
+
+        // Out of range positions are ignored
+        order.select(SIZE);
+        assertEquals(1, order.getCursor());
+    }
+
+    @Test
+    public void applyDiffKeepsThePlayedTracks() {
+        TrackStore store = new TrackStore();
+        List<Track> oldTracks = new ArrayList<>();
+        for (int i = 0; i < SIZE; i++)
+            oldTracks.add(track(store, i));
+
+        ShuffleOrder order = new ShuffleOrder(SIZE, 0, random);
+        for (int i = 0; i < 10; i++)
+            order.next();
+        long[] playedIds = new long[11];
+        for (int i = 0; i <= 10; i++)
+            playedIds[i] = oldTracks.get(order.peek(i - 10)).getId();
+
+        // Remove every track with an ID divisible by 5, except the current one, add 20 new tracks
+        long currentId = playedIds[10];
+        List<Track> newTracks = new ArrayList<>();
+        for (Track track : oldTracks) {
+            if (track.getId() % 5 != 0 || track.getId() == currentId)
+                newTracks.add(track);
+        }
+        for (int i = SIZE; i < SIZE + 20; i++)
+            newTracks.add(track(store, i));
+
+        order.applyDiff(LibraryDiff.compute(oldTracks, newTracks), random);
+        assertPermutation(order, newTracks.size());
+
+        // The played tracks that remain are still before the cursor, in the same order
+        int index = 0;
+        for (long id : playedIds) {
+            if (id % 5 == 0 && id != currentId)
+                continue;
+            assertEquals(id, newTracks.get(order.peek(index - order.getCursor())).getId());
+            index++;
+        }
+        assertEquals(index - 1, order.getCursor());
+        assertEquals(currentId, newTracks.get(order.peek(0)).getId());
+    }
+
+    @Test
+    public void savedOrderIsRestored() throws IOException {
+        TrackStore store = new TrackStore();
+        List<Track> tracks = new ArrayList<>();
+        for (int i = 0; i < SIZE; i++)
+            tracks.add(track(store, 1000 + i));
+
+        ShuffleOrder order = new ShuffleOrder(SIZE, 3, random);
+        for (int i = 0; i < 5; i++)
+            order.next();
+
+        File file = File.createTempFile("shuffle", ".bin");
+        try {
+            ShuffleOrder.write(file, order.getTrackIds(tracks), order.getCursor());
+            ShuffleOrder restored = ShuffleOrder.read(file, tracks, random);
+            assertNotNull(restored);
+            assertEquals(order.getCursor(), restored.getCursor());
+            assertArrayEquals(toArray(order), toArray(restored));
+
+            // A track that's no longer in the list is dropped, the played tracks move up
+            List<Track> fewer = new ArrayList<>(tracks);
+            fewer.remove(order.peek(-5));
+            restored = ShuffleOrder.read(file, fewer, random);
+            assertNotNull(restored);
+            assertEquals(4, restored.getCursor());
+            assertPermutation(restored, SIZE - 1);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+
+        assertNull(ShuffleOrder.read(file, tracks, random));
+    }
+
+    // --- Helper methods
+
+    private static Track track(TrackStore store, long id) {
+        return store.add(id, "Track " + id, "Artist", 180000, 1, "Album", null, 0, 0);
+    }
+
+    /**
+     * @return The entries of the order
+     */
+    private static int[] toArray(ShuffleOrder order) {
+        int[] entries = new int[order.size()];
+        for (int i = 0; i < entries.length; i++)
+            entries[i] = order.peek(i - order.getCursor());
+        return entries;
+    }
+
+    /**
+     * Check that the order holds every position of a list of a size exactly once
+     */
+    private static void assertPermutation(ShuffleOrder order, int size) {
+        assertEquals(size, order.size());
+        boolean[] seen = new boolean[size];
+        for (int entry : toArray(order)) {
+            assertTrue("Position out of range: " + entry, entry >= 0 && entry < size);
+            assertFalse("Duplicate position: " + entry, seen[entry]);
+            seen[entry] = true;
+        }
+    }
+
+}
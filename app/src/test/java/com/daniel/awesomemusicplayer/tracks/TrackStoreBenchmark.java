@@ -0,0 +1,116 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import com.daniel.awesomemusicplayer.util.BenchmarkReport;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.daniel.awesomemusicplayer.tracks.TrackStoreTest.ALBUM_COUNT;
+import static com.daniel.awesomemusicplayer.tracks.TrackStoreTest.album;
+import static com.daniel.awesomemusicplayer.tracks.TrackStoreTest.albumArt;
+import static com.daniel.awesomemusicplayer.tracks.TrackStoreTest.artist;
+import static com.daniel.awesomemusicplayer.tracks.TrackStoreTest.title;
+import static org.junit.Assert.*;
+
+/**
+ * Heap size benchmark - bytes per track of the TrackStore layout compared to the
+ * previous layout of one object per track with its own strings.
+ *
+ * The tracks are the fixtures of TrackStoreTest, their strings are created anew for every row,
+ * as Cursor.getString() does. Both figures are recorded in the BenchmarkReport. The heap is
+ * measured after forced garbage collections, so the results depend on the JVM - benchmarks
+ * aren't part of the unit test run, see app/build.gradle.
+ */
+public class TrackStoreBenchmark {
+
+    private static final int TRACK_COUNT = 100000;
+
+    /** The previous Track layout */
+    @SuppressWarnings("unused")
+    private static final class LegacyTrack {
+        long id;
+        String title;
+        String artist;
+        long duration;
+        boolean selected;
+        boolean playing;
+        String albumArtURI;
+        int albumId;
+        String album;
+        long dateAdded;
+        long dateModified;
+    }
+
+    @Test
+    public void bytesPerTrack() {
+        long legacyBytes = measure(new Loader() {
+            @Override
+            public Object load() {
+                List<LegacyTrack> tracks = new ArrayList<>(TRACK_COUNT);
+                for (int i = 0; i < TRACK_COUNT; i++) {
+                    LegacyTrack track = new LegacyTrack();
+                    track.id = i;
+                    track.title = title(i);
+                    track.artist = artist(i);
+                    track.duration = 180000 + i;
+                    track.albumId = i % ALBUM_COUNT;
+                    track.album = album(i);
+                    track.albumArtURI = albumArt(i);
+                    track.dateAdded = 1500000000 + i;
+                    track.dateModified = 1500000000 + i;
+                    tracks.add(track);
+                }
+                return tracks;
+            }
+        });
+
+        long storeBytes = measure(new Loader() {
+            @Override
+            public Object load() {
+                TrackStore store = new TrackStore();
+                List<Track> tracks = new ArrayList<>(TRACK_COUNT);
+                for (int i = 0; i < TRACK_COUNT; i++) {
+                    tracks.add(store.add(i, title(i), artist(i), 180000 + i, i % ALBUM_COUNT,
+                            album(i), albumArt(i), 1500000000 + i, 1500000000 + i));
+                }
+                return tracks;
+            }
+        });
+
+        BenchmarkReport.record(TrackStoreBenchmark.class,
+                "legacy layout: " + legacyBytes / TRACK_COUNT + " bytes per track");
+        BenchmarkReport.record(TrackStoreBenchmark.class,
+                "TrackStore: " + storeBytes / TRACK_COUNT + " bytes per track");
+        assertTrue("TrackStore should use less memory than one object per track",
+                storeBytes < legacyBytes);
+    }
+
+    private interface Loader {
+        Object load();
+    }
+
+    /**
+     * @return The heap size retained by the object returned by the loader
+     */
+    private static long measure(Loader loader) {
+        long before = usedMemory();
+        Object retained = loader.load();
+        long after = usedMemory();
+        assertNotNull(retained);
+        return after - before;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {}
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
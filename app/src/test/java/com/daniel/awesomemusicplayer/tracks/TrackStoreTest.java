@@ -0,0 +1,66 @@
+package com.daniel.awesomemusicplayer.tracks;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * TrackStore row and string pool tests. The heap size of the layout is measured by
+ * TrackStoreBenchmark, on the same fixtures.
+ */
+public class TrackStoreTest {
+
+    static final int ARTIST_COUNT = 2000;
+    static final int ALBUM_COUNT = 8000;
+
+    @Test
+    public void storeReturnsTheAddedValues() {
+        TrackStore store = new TrackStore();
+        List<Track> tracks = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            tracks.add(store.add(i, title(i), i % 7 == 0 ? null : artist(i), 1000 + i,
+                    i % ALBUM_COUNT, album(i), albumArt(i), 10 + i, 20 + i));
+        }
+
+        for (int i = 0; i < tracks.size(); i++) {
+            Track track = tracks.get(i);
+            assertEquals(i, track.getId());
+            assertEquals(title(i), track.getTitle());
+            assertEquals(i % 7 == 0 ? null : artist(i), track.getArtist());
+            assertEquals(1000 + i, track.getDuration());
+            assertEquals(album(i), track.getAlbum());
+            assertEquals(albumArt(i), track.getAlbumArtURI());
+            assertEquals(10 + i, track.getDateAdded());
+            assertEquals(20 + i, track.getDateModified());
+        }
+
+        // Equal strings are pooled
+        assertSame(tracks.get(1).getArtist(), tracks.get(1 + ARTIST_COUNT).getArtist());
+        assertSame(tracks.get(1).getAlbum(), tracks.get(1 + ALBUM_COUNT).getAlbum());
+        assertSame(tracks.get(1).getAlbumArtURI(), tracks.get(1 + ALBUM_COUNT).getAlbumArtURI());
+        assertEquals(ARTIST_COUNT, store.getArtistCount());
+    }
+
+    // --- Fixtures, shared with TrackStoreBenchmark
+
+    static String title(int i) {
+        return new String("Track number " + i);
+    }
+
+    static String artist(int i) {
+        return new String("Artist number " + (i % ARTIST_COUNT));
+    }
+
+    static String album(int i) {
+        return new String("Album number " + (i % ALBUM_COUNT));
+    }
+
+    static String albumArt(int i) {
+        return new String("/storage/emulated/0/Android/data/com.android.providers.media/albumthumbs/"
+                + (1520000000000L + i % ALBUM_COUNT));
+    }
+
+}
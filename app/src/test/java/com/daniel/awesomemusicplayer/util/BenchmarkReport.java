@@ -0,0 +1,25 @@
+package com.daniel.awesomemusicplayer.util;
+
+import java.util.logging.Logger;
+
+/**
+ * Records the results of the benchmarks on every run, whether they pass or not.
+ *
+ * The results are logged with java.util.logging - Gradle captures the output into the test report
+ * of the benchmark, and shows it in the console when the benchmarks are run (-Pbenchmarks).
+ */
+public final class BenchmarkReport {
+
+    private static final Logger LOGGER = Logger.getLogger("Benchmarks");
+
+    private BenchmarkReport() {}
+
+    /**
+     * @param benchmark The benchmark class
+     * @param result One result, e.g. "TrackStore: 120 bytes per track"
+     */
+    public static void record(Class<?> benchmark, String result) {
+        LOGGER.info(benchmark.getSimpleName() + " - " + result);
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.daniel.awesomemusicplayer.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * PowerStats counting and budget tests. The clocks don't advance in local unit tests,
+ * so every budget is checked against its minimum window of one minute.
+ */
+public class PowerStatsTest {
+
+    @Before
+    public void setUp() {
+        PowerStats.setState(PowerStats.State.INTERACTIVE);
+        PowerStats.reset();
+    }
+
+    @Test
+    public void interactiveStateHasNoBudget() {
+        for (int i = 0; i < 1000; i++)
+            PowerStats.end(PowerStats.Component.TRACK_BINDS, PowerStats.begin());
+        assertEquals(0, PowerStats.getViolations());
+    }
+
+    @Test
+    public void idleBudgetIsEnforcedOncePerState() {
+        int allowed = PowerStats.State.IDLE_PAUSED.getBudget().runsPerMinute;
+        PowerStats.setState(PowerStats.State.IDLE_PAUSED);
+        for (int i = 0; i < allowed; i++)
+            PowerStats.end(PowerStats.Component.POSITION_TICKER, PowerStats.begin());
+        assertEquals(0, PowerStats.getViolations());
+
+        // The first run over the budget is a violation, the next ones are part of it
+        PowerStats.end(PowerStats.Component.POSITION_TICKER, PowerStats.begin());
+        PowerStats.end(PowerStats.Component.POSITION_TICKER, PowerStats.begin());
+        assertEquals(1, PowerStats.getViolations());
+
+        // Entering the state again starts a new budget
+        PowerStats.setState(PowerStats.State.INTERACTIVE);
+        PowerStats.setState(PowerStats.State.IDLE_PAUSED);
+        PowerStats.end(PowerStats.Component.LYRICS_REQUESTS, PowerStats.begin());
+        assertEquals(1, PowerStats.getViolations());
+    }
+
+    @Test
+    public void reportCountsRunsAndPosts() {
+        PowerStats.post(PowerStats.Component.CROSSFADER);
+        PowerStats.post(PowerStats.Component.CROSSFADER);
+        PowerStats.end(PowerStats.Component.CROSSFADER, PowerStats.begin());
+
+        String report = PowerStats.getReport();
+        assertTrue(report, report.matches("(?s).*\\nCrossfader +1 +2 +0\\n.*"));
+        assertTrue(report, report.contains("State: Interactive"));
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.daniel.awesomemusicplayer.util;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Allocation benchmark - the time formatting and entity decoding fast paths of Utils,
+ * compared to the previous StringBuilder formatting and chained regex replacements.
+ *
+ * Allocated bytes are measured per call with HotSpot's thread allocation counter, the fast paths
+ * must not allocate at all. Both figures are recorded in the BenchmarkReport. The results depend
+ * on the JVM and the JIT - benchmarks aren't part of the unit test run, see app/build.gradle.
+ */
+public class UtilsBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int ITERATIONS = 100000;
+
+    private static final String HTML = UtilsTest.HTML;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    @Test
+    public void formattingDoesNotAllocate() {
+        final char[] buffer = new char[Utils.TIME_BUFFER_LENGTH];
+        long legacy = measure(new Runnable() {
+            private long seconds;
+
+            @Override
+            public void run() {
+                legacyFormatMillis(++seconds * 1000);
+            }
+        });
+        long fast = measure(new Runnable() {
+            private long seconds;
+
+            @Override
+            public void run() {
+                Utils.formatSeconds(++seconds, buffer);
+            }
+        });
+
+        BenchmarkReport.record(UtilsBenchmark.class,
+                "legacy formatMillis(): " + legacy + " bytes allocated per call");
+        BenchmarkReport.record(UtilsBenchmark.class,
+                "formatSeconds(char[]): " + fast + " bytes allocated per call");
+        assertEquals(0, fast);
+    }
+
+    @Test
+    public void decodingDoesNotAllocate() {
+        final StringBuilder out = new StringBuilder(HTML.length());
+        long legacy = measure(new Runnable() {
+            @Override
+            public void run() {
+                legacyTranslate(HTML);
+            }
+        });
+        long fast = measure(new Runnable() {
+            @Override
+            public void run() {
+                out.setLength(0);
+                Utils.decodeHTMLEntities(HTML, out);
+            }
+        });
+
+        BenchmarkReport.record(UtilsBenchmark.class,
+                "legacy translation: " + legacy + " bytes allocated per call");
+        BenchmarkReport.record(UtilsBenchmark.class,
+                "decodeHTMLEntities(): " + fast + " bytes allocated per call");
+        assertEquals(0, fast);
+    }
+
+    // --- Helper methods
+
+    /**
+     * @return The bytes allocated by one run of the task, on average
+     */
+    private static long measure(Runnable task) {
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP_ITERATIONS; i++)
+            task.run();
+
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++)
+            task.run();
+        return (THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore) / ITERATIONS;
+    }
+
+    /** The previous formatMillis() */
+    private static String legacyFormatMillis(long millis) {
+        StringBuilder sb = new StringBuilder();
+        millis %= 3600000;
+        legacyApd(sb, "", 2, (millis / 60000));
+        millis %= 60000;
+        legacyApd(sb, ":", 2, (millis / 1000));
+        return sb.toString();
+    }
+
+    private static void legacyApd(StringBuilder sb, String prefix, int digit, long val) {
+        sb.append(prefix);
+        if (digit > 1) {
+            int pad = digit - 1;
+            for (long xa = val; xa > 9 && pad > 0; xa /= 10)
+                pad--;
+            for (int xa = 0; xa < pad; xa++)
+                sb.append('0');
+        }
+        sb.append(val);
+    }
+
+    /** The previous translateSpecialHTMLCharacters() */
+    private static String legacyTranslate(String input) {
+        return input
+                .replaceAll("&amp;", "&")
+                .replaceAll("&lt;", "<")
+                .replaceAll("&gt;", ">")
+                .replaceAll("&quot;", "\"")
+                .replaceAll("&apos;", "'");
+    }
+
+}
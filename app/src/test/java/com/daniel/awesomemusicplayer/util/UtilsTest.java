@@ -0,0 +1,39 @@
+package com.daniel.awesomemusicplayer.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Time formatting and HTML entity decoding tests. The allocations of the fast paths are measured
+ * by UtilsBenchmark.
+ */
+public class UtilsTest {
+
+    static final String HTML = "Don&#39;t stop &amp; don&apos;t &quot;look&quot; back &lt;3 &#xE9; &unknown; a&b";
+
+    @Test
+    public void formatsTimes() {
+        assertEquals("00:00", Utils.formatMillis(0));
+        assertEquals("00:00", Utils.formatMillis(-5000));
+        assertEquals("00:59", Utils.formatMillis(59999));
+        assertEquals("03:07", Utils.formatSeconds(187));
+        assertEquals("59:59", Utils.formatSeconds(3599));
+        assertEquals("1:00:00", Utils.formatSeconds(3600));
+        assertEquals("10:02:03", Utils.formatSeconds(36123));
+        assertEquals("2562047788015:12:55", Utils.formatMillis(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void decodesEntitiesInOnePass() {
+        assertEquals("Don't stop & don't \"look\" back <3 \u00e9 &unknown; a&b",
+                Utils.translateSpecialHTMLCharacters(HTML));
+        assertEquals("&lt; \u00a0", Utils.translateSpecialHTMLCharacters("&amp;lt; &nbsp;"));
+        assertEquals("&#; &#x; &#12345678; & &amp", Utils.translateSpecialHTMLCharacters("&#; &#x; &#12345678; & &amp"));
+        assertEquals("\ud83c\udfb5", Utils.translateSpecialHTMLCharacters("&#127925;"));
+
+        String plain = "No entities";
+        assertSame(plain, Utils.translateSpecialHTMLCharacters(plain));
+    }
+
+}